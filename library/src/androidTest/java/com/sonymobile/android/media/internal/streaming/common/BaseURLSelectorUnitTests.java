@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media.internal.streaming.common;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser;
+import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParserUnitTests;
+
+public class BaseURLSelectorUnitTests extends TestCase {
+
+    public void testNoAlternatives() {
+        BaseURLSelector selector = new BaseURLSelector();
+
+        assertEquals("Wrong candidates", Arrays.asList("http://a.example.com/seg_1.m4s"),
+                selector.getCandidates("http://a.example.com/seg_1.m4s"));
+    }
+
+    public void testAlternativesInMPDOrder() {
+        BaseURLSelector selector = new BaseURLSelector();
+        selector.addAlternative("http://a.example.com/content/", "http://b.example.com/c/");
+        selector.addAlternative("http://a.example.com/content/", "http://c.example.com/");
+
+        // Neither added twice nor as an alternative to itself
+        selector.addAlternative("http://a.example.com/content/", "http://b.example.com/c/");
+        selector.addAlternative("http://a.example.com/content/",
+                "http://a.example.com/content/");
+
+        // Hosts that have not been used keep the MPD order
+        assertEquals("Wrong candidates", Arrays.asList(
+                "http://a.example.com/content/video/seg_1.m4s",
+                "http://b.example.com/c/video/seg_1.m4s",
+                "http://c.example.com/video/seg_1.m4s"),
+                selector.getCandidates("http://a.example.com/content/video/seg_1.m4s"));
+
+        assertEquals("Unrelated uri changed", Arrays.asList("http://d.example.com/seg_1.m4s"),
+                selector.getCandidates("http://d.example.com/seg_1.m4s"));
+    }
+
+    public void testLongestBaseURLMatches() {
+        BaseURLSelector selector = new BaseURLSelector();
+        selector.addAlternative("http://a.example.com/", "http://b.example.com/");
+        selector.addAlternative("http://a.example.com/video/", "http://v.example.com/");
+
+        assertEquals("Wrong candidates for video", Arrays.asList(
+                "http://a.example.com/video/seg_1.m4s",
+                "http://v.example.com/seg_1.m4s"),
+                selector.getCandidates("http://a.example.com/video/seg_1.m4s"));
+        assertEquals("Wrong candidates for audio", Arrays.asList(
+                "http://a.example.com/audio/seg_1.m4s",
+                "http://b.example.com/audio/seg_1.m4s"),
+                selector.getCandidates("http://a.example.com/audio/seg_1.m4s"));
+    }
+
+    public void testAlternativesFromMPD() {
+        MPDParser mpdParser = new MPDParser("http://example.com/manifest/manifest.mpd");
+        assertTrue("Parsing of mpd failed", mpdParser.parse(new ByteArrayInputStream(
+                MPDParserUnitTests.BASE_URL_MPD.getBytes(StandardCharsets.UTF_8))));
+
+        BaseURLSelector selector = mpdParser.getBaseURLSelector();
+
+        assertEquals("Wrong candidates for audio", Arrays.asList(
+                "http://cdn1.example.com/content/period1/audio/seg_1.m4s",
+                "http://cdn2.example.com/content/period1/audio/seg_1.m4s"),
+                selector.getCandidates(
+                        "http://cdn1.example.com/content/period1/audio/seg_1.m4s"));
+
+        ArrayList<String> candidates = selector.getCandidates(
+                "http://cdn1.example.com/content/period1/video/seg_1.m4s");
+        assertEquals("Wrong first candidate for video",
+                "http://cdn1.example.com/content/period1/video/seg_1.m4s", candidates.get(0));
+        assertTrue("Representation alternative missing",
+                candidates.contains("http://cdn3.example.com/video/seg_1.m4s"));
+    }
+}
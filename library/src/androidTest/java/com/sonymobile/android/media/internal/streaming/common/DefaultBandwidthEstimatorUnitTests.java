@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media.internal.streaming.common;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+public class DefaultBandwidthEstimatorUnitTests extends TestCase {
+
+    private DefaultBandwidthEstimator mEstimator;
+
+    @Override
+    protected void setUp() throws Exception {
+        mEstimator = new DefaultBandwidthEstimator();
+    }
+
+    public void testNoSamples() {
+        assertEquals("Estimate without samples", 0, mEstimator.getEstimatedBandwidth());
+    }
+
+    public void testSmallSamplesIgnored() {
+        mEstimator.addSample(1024, 1000000);
+        assertEquals("Too small sample used", 0, mEstimator.getEstimatedBandwidth());
+    }
+
+    public void testSteadyThroughput() {
+        for (int i = 0; i < 10; i++) {
+            // 100 kB per second
+            mEstimator.addSample(100000, 1000000);
+        }
+        assertEquals("Wrong estimate in bits per second", 800000,
+                mEstimator.getEstimatedBandwidth(), 1);
+    }
+
+    public void testThroughputDrop() {
+        for (int i = 0; i < 10; i++) {
+            mEstimator.addSample(1000000, 1000000);
+        }
+        for (int i = 0; i < 3; i++) {
+            mEstimator.addSample(125000, 1000000);
+        }
+
+        // The median is still high, the fast average must follow the drop
+        long estimate = mEstimator.getEstimatedBandwidth();
+        assertTrue("Estimate did not drop: " + estimate, estimate < 4000000);
+        assertTrue("Estimate below the new throughput: " + estimate, estimate > 1000000);
+    }
+
+    public void testShortSpikeIgnored() {
+        for (int i = 0; i < 10; i++) {
+            mEstimator.addSample(125000, 1000000);
+        }
+        // 1 MB in 80 ms
+        mEstimator.addSample(1000000, 80000);
+
+        assertEquals("Spike raised the estimate", 1000000,
+                mEstimator.getEstimatedBandwidth(), 1);
+    }
+
+    public void testOldSamplesDropped() {
+        for (int i = 0; i < 40; i++) {
+            mEstimator.addSample(1000000, 1000000);
+        }
+        for (int i = 0; i < 32; i++) {
+            mEstimator.addSample(125000, 1000000);
+        }
+
+        assertEquals("Old samples still used", 1000000, mEstimator.getEstimatedBandwidth(), 1);
+    }
+
+    public void testAbandonedTransfer() {
+        // Too little data to be sampled as a normal transfer
+        mEstimator.onDataTransferAbandoned(4000, 1000000);
+
+        assertEquals("Abandoned transfer not sampled", 32000,
+                mEstimator.getEstimatedBandwidth(), 1);
+
+        mEstimator.onDataTransferAbandoned(4000, 0);
+        assertEquals("Transfer without duration sampled", 32000,
+                mEstimator.getEstimatedBandwidth(), 1);
+    }
+
+    public void testTimeToFirstByte() throws InterruptedException {
+        mEstimator.onDataTransferStarted();
+        Thread.sleep(50);
+        mEstimator.onDataTransferred(1024);
+        mEstimator.onDataTransferEnded();
+
+        assertTrue("Time to first byte too short: " + mEstimator.getTimeToFirstByteUs(),
+                mEstimator.getTimeToFirstByteUs() >= 50000);
+        assertEquals("Time to first byte counted as transfer time", 0,
+                mEstimator.getEstimatedBandwidth());
+    }
+
+    public void testConcurrentTransfers() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch transferred = new CountDownLatch(2);
+
+        Runnable transfer = new Runnable() {
+            @Override
+            public void run() {
+                mEstimator.onDataTransferStarted();
+                mEstimator.onDataTransferred(1024);
+                started.countDown();
+                try {
+                    started.await();
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                }
+                mEstimator.onDataTransferred(100000);
+                transferred.countDown();
+                try {
+                    // End together so that a single sample is taken
+                    transferred.await();
+                } catch (InterruptedException e) {
+                }
+                mEstimator.onDataTransferEnded();
+            }
+        };
+
+        Thread first = new Thread(transfer);
+        Thread second = new Thread(transfer);
+        first.start();
+        second.start();
+        first.join();
+        second.join();
+
+        // 200 kB in about 300 ms, plus the first read of the second transfer.
+        // A single transfer alone would be measured at half of that.
+        long estimate = mEstimator.getEstimatedBandwidth();
+        assertTrue("Transfers not measured together: " + estimate, estimate > 3000000);
+        assertTrue("Estimate too high: " + estimate, estimate <= 201024L * 8 * 1000 / 300);
+    }
+}
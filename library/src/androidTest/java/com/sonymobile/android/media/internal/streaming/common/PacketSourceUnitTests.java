@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media.internal.streaming.common;
+
+import junit.framework.TestCase;
+
+import com.sonymobile.android.media.internal.AccessUnit;
+
+public class PacketSourceUnitTests extends TestCase {
+
+    private static final long FRAME_DURATION_US = 100000;
+
+    private static final int FRAME_SIZE = 100;
+
+    // Access units of a replacement are told apart by their size
+    private static final int REPLACEMENT_FRAME_SIZE = 200;
+
+    private static AccessUnit createAccessUnit(long timeUs, boolean isSyncSample) {
+        return createAccessUnit(timeUs, isSyncSample, FRAME_SIZE);
+    }
+
+    private static AccessUnit createAccessUnit(long timeUs, boolean isSyncSample, int size) {
+        AccessUnit accessUnit = new AccessUnit(AccessUnit.OK);
+        accessUnit.timeUs = timeUs;
+        accessUnit.durationUs = FRAME_DURATION_US;
+        accessUnit.isSyncSample = isSyncSample;
+        accessUnit.data = new byte[size];
+        accessUnit.size = size;
+        return accessUnit;
+    }
+
+    private static AccessUnit createFormatChange() {
+        return new AccessUnit(AccessUnit.FORMAT_CHANGED);
+    }
+
+    private static AccessUnit createCodecSpecificData() {
+        AccessUnit accessUnit = new AccessUnit(AccessUnit.OK);
+        accessUnit.timeUs = -1;
+        accessUnit.data = new byte[10];
+        accessUnit.size = 10;
+        return accessUnit;
+    }
+
+    /**
+     * Queues frames from startTimeUs to endTimeUs, with a sync sample every
+     * syncIntervalUs from startTimeUs. A syncIntervalUs of 0 makes every frame
+     * a sync sample.
+     */
+    private static void queueFrames(PacketSource source, long startTimeUs, long endTimeUs,
+            long syncIntervalUs) {
+        queueFrames(source, startTimeUs, endTimeUs, syncIntervalUs, FRAME_SIZE);
+    }
+
+    private static void queueFrames(PacketSource source, long startTimeUs, long endTimeUs,
+            long syncIntervalUs, int size) {
+        for (long timeUs = startTimeUs; timeUs < endTimeUs; timeUs += FRAME_DURATION_US) {
+            boolean isSyncSample = syncIntervalUs == 0
+                    || (timeUs - startTimeUs) % syncIntervalUs == 0;
+            source.queueAccessUnit(createAccessUnit(timeUs, isSyncSample, size));
+        }
+    }
+
+    /**
+     * Dequeues access units from startTimeUs to endTimeUs and checks that
+     * they are continuous and of the given size.
+     */
+    private static void assertFrames(PacketSource source, long startTimeUs, long endTimeUs,
+            int size) {
+        for (long timeUs = startTimeUs; timeUs < endTimeUs; timeUs += FRAME_DURATION_US) {
+            assertTrue("Missing access unit at " + timeUs, source.hasBufferAvailable());
+            AccessUnit accessUnit = source.dequeueAccessUnit();
+            assertEquals("Wrong access unit time", timeUs, accessUnit.timeUs);
+            assertEquals("Wrong version of access unit at " + timeUs, size, accessUnit.size);
+        }
+    }
+
+    private static void assertFormatChange(PacketSource source) {
+        assertEquals("No format change", AccessUnit.FORMAT_CHANGED,
+                source.dequeueAccessUnit().status);
+        assertTrue("No codec specific data", source.dequeueAccessUnit().timeUs < 0);
+    }
+
+    private static void queueFormatChange(PacketSource source) {
+        source.queueAccessUnit(createFormatChange());
+        source.queueAccessUnit(createCodecSpecificData());
+    }
+
+    public void testSeekInBuffer() {
+        PacketSource video = new PacketSource();
+        PacketSource audio = new PacketSource();
+        PacketSource subtitle = new PacketSource();
+        queueFrames(video, 0, 3000000, 1000000);
+        queueFrames(audio, 0, 3000000, 0);
+
+        assertEquals("Wrong seek time", 1000000,
+                PacketSource.seekInBuffer(1500000, video, true, audio, true, subtitle));
+
+        AccessUnit accessUnit = video.dequeueAccessUnit();
+        assertEquals("Video not at sync sample", 1000000, accessUnit.timeUs);
+        assertTrue("Video not at sync sample", accessUnit.isSyncSample);
+        assertEquals("Wrong video buffer size", 19 * FRAME_SIZE, video.getBufferSize());
+
+        assertEquals("Audio not at seek time", 1000000, audio.dequeueAccessUnit().timeUs);
+        assertEquals("Wrong audio buffer size", 19 * FRAME_SIZE, audio.getBufferSize());
+    }
+
+    public void testSeekInBuffer_NotBuffered() {
+        PacketSource video = new PacketSource();
+        PacketSource audio = new PacketSource();
+        PacketSource subtitle = new PacketSource();
+        queueFrames(video, 1000000, 3000000, 1000000);
+        queueFrames(audio, 1000000, 3000000, 0);
+
+        assertEquals("Seek after the buffer", -1,
+                PacketSource.seekInBuffer(3500000, video, true, audio, true, subtitle));
+        assertEquals("Seek before the buffer", -1,
+                PacketSource.seekInBuffer(500000, video, true, audio, true, subtitle));
+
+        assertEquals("Video dropped", 20 * FRAME_SIZE, video.getBufferSize());
+        assertEquals("Audio dropped", 20 * FRAME_SIZE, audio.getBufferSize());
+        assertEquals("Wrong first video access unit", 1000000,
+                video.dequeueAccessUnit().timeUs);
+    }
+
+    public void testSeekInBuffer_AudioNotBuffered() {
+        PacketSource video = new PacketSource();
+        PacketSource audio = new PacketSource();
+        PacketSource subtitle = new PacketSource();
+        queueFrames(video, 0, 3000000, 1000000);
+        queueFrames(audio, 0, 1200000, 0);
+
+        assertEquals("Seek with audio missing", -1,
+                PacketSource.seekInBuffer(1500000, video, true, audio, true, subtitle));
+        assertEquals("Video dropped", 30 * FRAME_SIZE, video.getBufferSize());
+        assertEquals("Audio dropped", 12 * FRAME_SIZE, audio.getBufferSize());
+    }
+
+    public void testSeekInBuffer_AudioOnly() {
+        PacketSource video = new PacketSource();
+        PacketSource audio = new PacketSource();
+        PacketSource subtitle = new PacketSource();
+        queueFrames(audio, 0, 3000000, 0);
+
+        assertEquals("Wrong seek time", 1550000,
+                PacketSource.seekInBuffer(1550000, video, false, audio, true, subtitle));
+        assertEquals("Audio not at the frame containing the seek time", 1500000,
+                audio.dequeueAccessUnit().timeUs);
+    }
+
+    public void testDiscardBefore_KeepsFormatChange() {
+        PacketSource source = new PacketSource();
+        source.queueAccessUnit(createFormatChange());
+        source.queueAccessUnit(createCodecSpecificData());
+        queueFrames(source, 0, 1000000, 1000000);
+        AccessUnit formatChange = createFormatChange();
+        source.queueAccessUnit(formatChange);
+        AccessUnit codecSpecificData = createCodecSpecificData();
+        source.queueAccessUnit(codecSpecificData);
+        queueFrames(source, 1000000, 3000000, 1000000);
+
+        source.discardBefore(2000000, true);
+
+        // Only the last format change dropped is kept
+        assertSame("Format change not kept", formatChange, source.dequeueAccessUnit());
+        assertSame("Codec specific data not kept", codecSpecificData,
+                source.dequeueAccessUnit());
+        AccessUnit accessUnit = source.dequeueAccessUnit();
+        assertEquals("Not at sync sample", 2000000, accessUnit.timeUs);
+        assertTrue("Not at sync sample", accessUnit.isSyncSample);
+        assertEquals("Wrong buffer size", 9 * FRAME_SIZE, source.getBufferSize());
+    }
+
+    public void testDiscardBefore_NonSyncSamples() {
+        PacketSource source = new PacketSource();
+        queueFrames(source, 0, 1000000, 0);
+
+        source.discardBefore(450000, false);
+
+        assertEquals("Wrong access unit after discard", 400000,
+                source.dequeueAccessUnit().timeUs);
+        assertEquals("Wrong buffer size", 5 * FRAME_SIZE, source.getBufferSize());
+    }
+
+    public void testDiscardBefore_NothingBuffered() {
+        PacketSource source = new PacketSource();
+        queueFrames(source, 0, 1000000, 1000000);
+
+        // No sync sample at or after the time, everything is dropped
+        source.discardBefore(500000, true);
+
+        assertFalse("Access units left", source.hasBufferAvailable());
+        assertEquals("Wrong buffer size", 0, source.getBufferSize());
+    }
+
+    public void testReplacement_AlignedSyncSamples() {
+        PacketSource source = new PacketSource();
+        queueFrames(source, 0, 3000000, 1000000);
+
+        assertEquals("Wrong replacement time", 1000000, source.startReplacement(900000));
+        assertTrue("Not replacing", source.isReplacing());
+
+        queueFormatChange(source);
+        queueFrames(source, 1000000, 4000000, 1000000, REPLACEMENT_FRAME_SIZE);
+        assertFalse("Replacement not spliced in", source.isReplacing());
+
+        assertFrames(source, 0, 1000000, FRAME_SIZE);
+        assertFormatChange(source);
+        assertFrames(source, 1000000, 4000000, REPLACEMENT_FRAME_SIZE);
+        assertFalse("Access units left", source.hasBufferAvailable());
+        assertEquals("Wrong buffer size", 0, source.getBufferSize());
+    }
+
+    public void testReplacement_SpliceAtEnd() {
+        PacketSource source = new PacketSource();
+        queueFrames(source, 0, 3000000, 1000000);
+
+        assertEquals("Wrong replacement time", 1000000, source.startReplacement(1000000));
+
+        // Sync samples of the replacement every 1.5 s, the one at 3 s is
+        // right after the buffered access units
+        queueFormatChange(source);
+        queueFrames(source, 1500000, 3500000, 1500000, REPLACEMENT_FRAME_SIZE);
+        assertFalse("Replacement not spliced in", source.isReplacing());
+
+        assertFrames(source, 0, 3000000, FRAME_SIZE);
+        assertFormatChange(source);
+        assertFrames(source, 3000000, 3500000, REPLACEMENT_FRAME_SIZE);
+        assertEquals("Wrong buffer size", 0, source.getBufferSize());
+    }
+
+    public void testReplacement_SpliceAtEndKeepsMissingAccessUnits() {
+        PacketSource source = new PacketSource();
+        queueFrames(source, 0, 3000000, 1000000);
+
+        assertEquals("Wrong replacement time", 1000000, source.startReplacement(1000000));
+
+        // Sync samples of the replacement every 3 s from 1.5 s. The one at
+        // 1.5 s is not buffered and the one at 4.5 s leaves a gap after the
+        // buffered access units.
+        queueFormatChange(source);
+        queueFrames(source, 1500000, 5000000, 3000000, REPLACEMENT_FRAME_SIZE);
+        assertFalse("Replacement not spliced in", source.isReplacing());
+
+        // The replacement continues from its sync sample at 1.5 s instead
+        assertFrames(source, 0, 1500000, FRAME_SIZE);
+        assertFormatChange(source);
+        assertFrames(source, 1500000, 5000000, REPLACEMENT_FRAME_SIZE);
+        assertEquals("Wrong buffer size", 0, source.getBufferSize());
+    }
+
+    public void testReplacement_SpliceAtEndAfterPlayback() {
+        PacketSource source = new PacketSource();
+        queueFrames(source, 0, 3000000, 1000000);
+
+        assertEquals("Wrong replacement time", 1000000, source.startReplacement(1000000));
+
+        queueFormatChange(source);
+        queueFrames(source, 1500000, 4500000, 3000000, REPLACEMENT_FRAME_SIZE);
+
+        // Played past the sync sample of the replacement, the access units
+        // depending on it can no longer be used
+        assertFrames(source, 0, 2000000, FRAME_SIZE);
+
+        queueFrames(source, 4500000, 5000000, 3000000, REPLACEMENT_FRAME_SIZE);
+        assertFalse("Replacement not spliced in", source.isReplacing());
+
+        assertFrames(source, 2000000, 3000000, FRAME_SIZE);
+        assertFormatChange(source);
+        assertFrames(source, 4500000, 5000000, REPLACEMENT_FRAME_SIZE);
+        assertEquals("Wrong buffer size", 0, source.getBufferSize());
+    }
+
+    public void testDiscardFrom() {
+        PacketSource source = new PacketSource();
+        queueFrames(source, 0, 2000000, 1000000);
+        // The part received of an abandoned segment, with its format change
+        queueFormatChange(source);
+        queueFrames(source, 2000000, 2500000, 1000000, REPLACEMENT_FRAME_SIZE);
+
+        assertTrue("Nothing dropped", source.discardFrom(2000000));
+
+        assertEquals("Wrong buffer size", 20 * FRAME_SIZE + 10, source.getBufferSize());
+
+        // The segment is downloaded again in another representation
+        queueFrames(source, 2000000, 3000000, 1000000);
+        assertFrames(source, 0, 2000000, FRAME_SIZE);
+        assertFormatChange(source);
+        assertFrames(source, 2000000, 3000000, FRAME_SIZE);
+    }
+
+    public void testDiscardFrom_AlreadyDequeued() {
+        PacketSource source = new PacketSource();
+        queueFrames(source, 0, 2000000, 1000000);
+
+        assertFrames(source, 0, 1000000, FRAME_SIZE);
+
+        assertFalse("Dropped after dequeue", source.discardFrom(500000));
+        assertFalse("Dropped without match", source.discardFrom(1050000));
+        assertEquals("Wrong buffer size", 10 * FRAME_SIZE, source.getBufferSize());
+        assertFrames(source, 1000000, 2000000, FRAME_SIZE);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media.internal.streaming.common;
+
+import junit.framework.TestCase;
+
+public class SegmentTimelineIndexUnitTests extends TestCase {
+
+    private static SegmentTimelineIndex createIndex() {
+        // Timescale 1000: three segments of 2 s, a gap of 1 s, then two
+        // segments of 4 s.
+        SegmentTimelineIndex index = new SegmentTimelineIndex(2, 1000);
+        index.addRun(0, 2000, 3);
+        index.addRun(7000, 4000, 2);
+        return index;
+    }
+
+    public void testSegmentCount() {
+        assertEquals("Wrong segment count", 5, createIndex().getSegmentCount());
+
+        SegmentTimelineIndex empty = new SegmentTimelineIndex(0, 1000);
+        assertEquals("Wrong segment count for empty index", 0, empty.getSegmentCount());
+        assertEquals("Segment found in empty index", -1, empty.findSegment(0));
+        assertEquals("Segment found in empty index", -1,
+                empty.findSegmentStartingAtOrAfter(0));
+    }
+
+    public void testLookupByNumber() {
+        SegmentTimelineIndex index = createIndex();
+
+        long[] expectedStartTicks = {
+                0, 2000, 4000, 7000, 11000
+        };
+        long[] expectedDurationTicks = {
+                2000, 2000, 2000, 4000, 4000
+        };
+        for (int i = 0; i < expectedStartTicks.length; i++) {
+            assertEquals("Wrong start of segment " + i, expectedStartTicks[i],
+                    index.getStartTicks(i));
+            assertEquals("Wrong duration of segment " + i, expectedDurationTicks[i],
+                    index.getDurationTicks(i));
+            assertEquals("Wrong start time of segment " + i, expectedStartTicks[i] * 1000,
+                    index.getStartTimeUs(i));
+            assertEquals("Wrong duration time of segment " + i,
+                    expectedDurationTicks[i] * 1000, index.getDurationUs(i));
+        }
+    }
+
+    public void testFindSegment() {
+        SegmentTimelineIndex index = createIndex();
+
+        assertEquals("Wrong segment at start", 0, index.findSegment(0));
+        assertEquals("Wrong segment inside first segment", 0, index.findSegment(1999999));
+        assertEquals("Wrong segment at segment boundary", 1, index.findSegment(2000000));
+        assertEquals("Wrong segment at end of first run", 2, index.findSegment(5999999));
+        assertEquals("Segment found in gap", -1, index.findSegment(6500000));
+        assertEquals("Wrong segment at start of second run", 3, index.findSegment(7000000));
+        assertEquals("Wrong segment in last segment", 4, index.findSegment(14999999));
+        assertEquals("Segment found after end", -1, index.findSegment(15000000));
+        assertEquals("Segment found before start", -1, index.findSegment(-1));
+    }
+
+    public void testFindSegmentStartingAtOrAfter() {
+        SegmentTimelineIndex index = createIndex();
+
+        assertEquals("Wrong segment at exact start", 0, index.findSegmentStartingAtOrAfter(0));
+        assertEquals("Wrong segment before start", 0, index.findSegmentStartingAtOrAfter(-1));
+        assertEquals("Wrong segment inside segment", 1,
+                index.findSegmentStartingAtOrAfter(1));
+        assertEquals("Wrong segment at exact boundary", 2,
+                index.findSegmentStartingAtOrAfter(4000000));
+        assertEquals("Wrong segment in gap", 3, index.findSegmentStartingAtOrAfter(6500000));
+        assertEquals("Wrong segment inside last segment", -1,
+                index.findSegmentStartingAtOrAfter(11000001));
+        assertEquals("Segment found after end", -1,
+                index.findSegmentStartingAtOrAfter(15000000));
+    }
+
+    public void testLongTimeline() {
+        // A 24 hour timeline of 2 s segments in 90 kHz ticks, as in long
+        // live sessions.
+        SegmentTimelineIndex index = new SegmentTimelineIndex(1, 90000);
+        index.addRun(0, 180000, 43200);
+
+        assertEquals("Wrong segment count", 43200, index.getSegmentCount());
+        assertEquals("Wrong last segment start", 43199L * 180000, index.getStartTicks(43199));
+        assertEquals("Wrong segment near the end", 43199, index.findSegment(86399000000L));
+        assertEquals("Wrong segment in the middle", 21600, index.findSegment(43200000000L));
+    }
+}
@@ -18,16 +18,84 @@ package com.sonymobile.android.media.internal.streaming.mpegdash;
 
 import java.io.ByteArrayInputStream;
 import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 
 import junit.framework.TestCase;
 
+import com.sonymobile.android.media.RepresentationConstraints;
 import com.sonymobile.android.media.TrackInfo.TrackType;
+import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser.AdaptationSet;
 import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser.Representation;
 import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser.SegmentBase;
 import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser.SegmentTemplate;
+import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser.SegmentTimeline;
+import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser.SegmentTimelineEntry;
 
 public class MPDParserUnitTests extends TestCase {
 
+    /**
+     * MPD with alternative BaseURLs on the MPD and representation levels.
+     */
+    public static final String BASE_URL_MPD = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\"\n"
+            + "  type=\"static\"\n"
+            + "  mediaPresentationDuration=\"PT60S\"\n"
+            + "  minBufferTime=\"PT2S\"\n"
+            + "  profiles=\"urn:mpeg:dash:profile:isoff-live:2011\">\n"
+            + "  <BaseURL>http://cdn1.example.com/content/</BaseURL>\n"
+            + "  <BaseURL>http://cdn2.example.com/content/</BaseURL>\n"
+            + "  <Period id=\"1\" duration=\"PT60S\">\n"
+            + "    <BaseURL>period1/</BaseURL>\n"
+            + "    <AdaptationSet mimeType=\"audio/mp4\" codecs=\"mp4a.40.2\" lang=\"en\">\n"
+            + "      <SegmentTemplate timescale=\"1000\" duration=\"2000\" startNumber=\"1\"\n"
+            + "        initialization=\"audio/init.mp4\" media=\"audio/seg_$Number$.m4s\"/>\n"
+            + "      <Representation id=\"a1\" bandwidth=\"64000\"/>\n"
+            + "    </AdaptationSet>\n"
+            + "    <AdaptationSet mimeType=\"video/mp4\" codecs=\"avc1.4D401E\">\n"
+            + "      <Representation id=\"v1\" bandwidth=\"500000\" width=\"640\""
+            + " height=\"360\">\n"
+            + "        <BaseURL>video/</BaseURL>\n"
+            + "        <BaseURL>http://cdn3.example.com/video/</BaseURL>\n"
+            + "        <SegmentTemplate timescale=\"1000\" duration=\"2000\" startNumber=\"1\"\n"
+            + "          initialization=\"init.mp4\" media=\"seg_$Number$.m4s\"/>\n"
+            + "      </Representation>\n"
+            + "    </AdaptationSet>\n"
+            + "  </Period>\n"
+            + "</MPD>\n";
+
+    private static final String LADDER_MPD = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\"\n"
+            + "  type=\"static\"\n"
+            + "  mediaPresentationDuration=\"PT60S\"\n"
+            + "  minBufferTime=\"PT2S\"\n"
+            + "  profiles=\"urn:mpeg:dash:profile:isoff-live:2011\">\n"
+            + "  <Period id=\"1\" duration=\"PT60S\">\n"
+            + "    <AdaptationSet mimeType=\"audio/mp4\" codecs=\"mp4a.40.2\" lang=\"en\">\n"
+            + "      <SegmentTemplate timescale=\"1000\" duration=\"2000\" startNumber=\"1\"\n"
+            + "        initialization=\"a_$RepresentationID$.mp4\""
+            + " media=\"a_$RepresentationID$_$Number$.m4s\"/>\n"
+            + "      <Representation id=\"a1\" bandwidth=\"64000\"/>\n"
+            + "    </AdaptationSet>\n"
+            + "    <AdaptationSet mimeType=\"video/mp4\" codecs=\"avc1.4D401E\">\n"
+            + "      <SegmentTemplate timescale=\"1000\" duration=\"2000\" startNumber=\"1\"\n"
+            + "        initialization=\"v_$RepresentationID$.mp4\""
+            + " media=\"v_$RepresentationID$_$Number$.m4s\"/>\n"
+            + "      <Representation id=\"v1\" bandwidth=\"300000\" width=\"426\""
+            + " height=\"240\"/>\n"
+            + "      <Representation id=\"v2\" bandwidth=\"800000\" width=\"640\""
+            + " height=\"360\"/>\n"
+            + "      <Representation id=\"v3\" bandwidth=\"2500000\" width=\"1280\""
+            + " height=\"720\" codecs=\"hev1.1.6.L93.B0\"/>\n"
+            + "      <Representation id=\"v4\" bandwidth=\"5000000\" width=\"1920\""
+            + " height=\"1080\"/>\n"
+            + "    </AdaptationSet>\n"
+            + "  </Period>\n"
+            + "</MPD>\n";
+
     public void testDASHIF_SRMT_TestVector1() {
         String mpd = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
                 + "<MPD xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n"
@@ -974,4 +1042,276 @@ public class MPDParserUnitTests extends TestCase {
         assertFalse("Parsing of mpd did not fail as expected",
                 mpdParser.parse(new ByteArrayInputStream(mpd.getBytes(StandardCharsets.UTF_8))));
     }
+
+    public void testParseISO8601DateTime() {
+        // 2014-10-19T10:00:00Z
+        long expectedMs = 1413712800000L;
+
+        assertEquals("Wrong UTC time", expectedMs,
+                MPDParser.parseISO8601DateTime("2014-10-19T10:00:00Z"));
+        assertEquals("Wrong time without zone", expectedMs,
+                MPDParser.parseISO8601DateTime("2014-10-19T10:00:00"));
+        assertEquals("Wrong time with positive offset", expectedMs,
+                MPDParser.parseISO8601DateTime("2014-10-19T12:30:00+02:30"));
+        assertEquals("Wrong time with negative offset", expectedMs,
+                MPDParser.parseISO8601DateTime("2014-10-19T05:00:00-05:00"));
+        assertEquals("Wrong time with offset without colon", expectedMs,
+                MPDParser.parseISO8601DateTime("2014-10-19T11:00:00+0100"));
+        assertEquals("Wrong time with hour offset", expectedMs,
+                MPDParser.parseISO8601DateTime("2014-10-19T11:00:00+01"));
+
+        assertEquals("Wrong fractional seconds", expectedMs + 250,
+                MPDParser.parseISO8601DateTime("2014-10-19T10:00:00.25Z"));
+        assertEquals("Wrong fractional seconds with offset", expectedMs + 123,
+                MPDParser.parseISO8601DateTime("2014-10-19T11:00:00.1234+01:00"));
+
+        assertEquals("Date only accepted", -1, MPDParser.parseISO8601DateTime("2014-10-19"));
+        assertEquals("Garbage accepted", -1, MPDParser.parseISO8601DateTime("yesterday"));
+        assertEquals("Null accepted", -1, MPDParser.parseISO8601DateTime(null));
+    }
+
+    public void testPruneSegmentTimeline_SharedTemplate() {
+        SegmentTemplate template = new SegmentTemplate();
+        template.timescale = 1000;
+        template.segmentTimeline = new SegmentTimeline(createTimeline(), 1);
+
+        // The same template is referenced by the adaptation set and the
+        // representation, so it is pruned twice for each update.
+        MPDParser.pruneSegmentTimeline(template, 5000000);
+        MPDParser.pruneSegmentTimeline(template, 5000000);
+
+        SegmentTimeline timeline = template.segmentTimeline;
+        assertEquals("Wrong start number", 3, timeline.startNumber);
+        assertEquals("Wrong number of entries", 2, timeline.entries.size());
+        assertEquals("Wrong first segment time", 4000, timeline.entries.get(0).timeTicks);
+        assertEquals("Wrong first segment duration", 2000,
+                timeline.entries.get(0).durationTicks);
+        assertEquals("Wrong repeat count", 2, timeline.entries.get(0).repeat);
+        assertEquals("Wrong second entry time", 10000, timeline.entries.get(1).timeTicks);
+
+        MPDParser.pruneSegmentTimeline(template, 12000000);
+        MPDParser.pruneSegmentTimeline(template, 12000000);
+
+        timeline = template.segmentTimeline;
+        assertEquals("Wrong start number after second prune", 6, timeline.startNumber);
+        assertEquals("Wrong number of entries after second prune", 1, timeline.entries.size());
+        assertEquals("Wrong first segment time after second prune", 10000,
+                timeline.entries.get(0).timeTicks);
+    }
+
+    public void testPruneSegmentTimeline_OldTimelineUnchanged() {
+        SegmentTemplate template = new SegmentTemplate();
+        template.timescale = 1000;
+        SegmentTimeline oldTimeline = new SegmentTimeline(createTimeline(), 1);
+        template.segmentTimeline = oldTimeline;
+
+        MPDParser.pruneSegmentTimeline(template, 5000000);
+
+        assertNotSame("Timeline not replaced", oldTimeline, template.segmentTimeline);
+        assertEquals("Old start number changed", 1, oldTimeline.startNumber);
+        assertEquals("Old entries changed", 2, oldTimeline.entries.size());
+        assertEquals("Old repeat count changed", 4, oldTimeline.entries.get(0).repeat);
+    }
+
+    public void testGetLiveStartTimeUs_LimitedByTimeShiftBuffer() {
+        // Live edge two minutes in, the suggested delay reaches further back
+        // than the time shift buffer.
+        MPDParser mpdParser = parseLiveMPD(120, "PT20S", "PT60S");
+
+        long liveEdgeTimeUs = mpdParser.getLiveEdgeTimeUs();
+        assertEquals("Wrong live edge", 120000000, liveEdgeTimeUs, 5000000);
+        assertEquals("Wrong time shift buffer start", liveEdgeTimeUs - 20000000,
+                mpdParser.getTimeShiftBufferStartTimeUs(), 1000000);
+        assertEquals("Live start outside of time shift buffer", liveEdgeTimeUs - 20000000,
+                mpdParser.getLiveStartTimeUs(), 1000000);
+    }
+
+    public void testGetLiveStartTimeUs_SuggestedPresentationDelay() {
+        MPDParser mpdParser = parseLiveMPD(120, "PT60S", "PT10S");
+
+        long liveEdgeTimeUs = mpdParser.getLiveEdgeTimeUs();
+        assertEquals("Wrong live edge", 120000000, liveEdgeTimeUs, 5000000);
+        assertEquals("Wrong time shift buffer start", liveEdgeTimeUs - 60000000,
+                mpdParser.getTimeShiftBufferStartTimeUs(), 1000000);
+        assertEquals("Wrong live start", liveEdgeTimeUs - 10000000,
+                mpdParser.getLiveStartTimeUs(), 1000000);
+    }
+
+    public void testBaseURL_MakeURL() {
+        MPDParser mpdParser = new MPDParser("http://example.com/manifest/manifest.mpd");
+
+        assertTrue("Parsing of mpd failed", mpdParser.parse(
+                new ByteArrayInputStream(BASE_URL_MPD.getBytes(StandardCharsets.UTF_8))));
+
+        mpdParser.updateRepresentations(new int[] {0, 0, -1});
+
+        Representation video = mpdParser.getRepresentation(TrackType.VIDEO);
+        assertNotNull("No video representation", video);
+        assertEquals("Wrong video media uri",
+                "http://cdn1.example.com/content/period1/video/seg_$Number$.m4s",
+                video.segmentTemplate.media);
+        assertEquals("Wrong video init uri",
+                "http://cdn1.example.com/content/period1/video/init.mp4",
+                video.segmentTemplate.initialization);
+
+        // The template is on the adaptation set, outside of the representation
+        // BaseURL
+        Representation audio = mpdParser.getRepresentation(TrackType.AUDIO);
+        assertNotNull("No audio representation", audio);
+        assertEquals("Wrong audio media uri",
+                "http://cdn1.example.com/content/period1/audio/seg_$Number$.m4s",
+                audio.segmentTemplate.media);
+    }
+
+    public void testRepresentationConstraints_MaxVideoSize() {
+        MPDParser mpdParser = parseLadderMPD();
+
+        RepresentationConstraints constraints = new RepresentationConstraints();
+        constraints.setMaxVideoSize(1280, 720);
+        mpdParser.setRepresentationConstraints(constraints);
+
+        assertAllowed(mpdParser, true, true, true, false);
+
+        int[] selected = new int[] {0, 3, -1};
+        mpdParser.constrainRepresentations(selected);
+        assertEquals("Audio selection changed", 0, selected[TrackType.AUDIO.ordinal()]);
+        assertEquals("Wrong video replacement", 2, selected[TrackType.VIDEO.ordinal()]);
+        assertEquals("Subtitle selection changed", -1, selected[TrackType.SUBTITLE.ordinal()]);
+
+        // Removing the constraints allows all representations again
+        mpdParser.setRepresentationConstraints(null);
+        assertAllowed(mpdParser, true, true, true, true);
+    }
+
+    public void testRepresentationConstraints_Viewport() {
+        MPDParser mpdParser = parseLadderMPD();
+
+        RepresentationConstraints constraints = new RepresentationConstraints();
+        constraints.setViewportSize(800, 450);
+        mpdParser.setRepresentationConstraints(constraints);
+
+        // Only the smallest of the representations scaled down to the
+        // viewport is kept
+        assertAllowed(mpdParser, true, true, true, false);
+    }
+
+    public void testRepresentationConstraints_Codecs() {
+        MPDParser mpdParser = parseLadderMPD();
+
+        RepresentationConstraints constraints = new RepresentationConstraints();
+        constraints.setAllowedCodecs("avc1", "mp4a");
+        mpdParser.setRepresentationConstraints(constraints);
+
+        assertAllowed(mpdParser, true, true, false, true);
+
+        int[] selected = new int[] {0, 2, -1};
+        mpdParser.constrainRepresentations(selected);
+        assertEquals("Wrong video replacement", 1, selected[TrackType.VIDEO.ordinal()]);
+    }
+
+    public void testRepresentationConstraints_NoneSatisfied() {
+        MPDParser mpdParser = parseLadderMPD();
+
+        RepresentationConstraints constraints = new RepresentationConstraints();
+        constraints.setMaxBitrate(100000);
+        mpdParser.setRepresentationConstraints(constraints);
+
+        // The lowest bitrate is used when nothing satisfies the constraints
+        assertAllowed(mpdParser, true, false, false, false);
+
+        int[] selected = new int[] {0, 3, -1};
+        mpdParser.constrainRepresentations(selected);
+        assertEquals("Wrong video replacement", 0, selected[TrackType.VIDEO.ordinal()]);
+    }
+
+    public void testRepresentationConstraints_AppliedWhileParsing() {
+        MPDParser mpdParser = new MPDParser("http://example.com/vod/manifest.mpd");
+
+        RepresentationConstraints constraints = new RepresentationConstraints();
+        constraints.setMaxBitrate(1000000);
+        mpdParser.setRepresentationConstraints(constraints);
+
+        assertTrue("Parsing of mpd failed", mpdParser.parse(
+                new ByteArrayInputStream(LADDER_MPD.getBytes(StandardCharsets.UTF_8))));
+
+        assertAllowed(mpdParser, true, true, false, false);
+    }
+
+    private static void assertAllowed(MPDParser mpdParser, boolean... expected) {
+        AdaptationSet video = null;
+        for (AdaptationSet adaptationSet : mpdParser.getActivePeriod().adaptationSets) {
+            if (adaptationSet.type == TrackType.VIDEO) {
+                video = adaptationSet;
+            }
+        }
+        assertNotNull("No video adaptation set", video);
+        assertEquals("Wrong number of representations", expected.length,
+                video.representations.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Wrong constraint result for representation " + i, expected[i],
+                    video.representations.get(i).allowed);
+        }
+    }
+
+    private static MPDParser parseLadderMPD() {
+        MPDParser mpdParser = new MPDParser("http://example.com/vod/manifest.mpd");
+
+        assertTrue("Parsing of mpd failed", mpdParser.parse(
+                new ByteArrayInputStream(LADDER_MPD.getBytes(StandardCharsets.UTF_8))));
+
+        return mpdParser;
+    }
+
+    private static ArrayList<SegmentTimelineEntry> createTimeline() {
+        ArrayList<SegmentTimelineEntry> entries = new ArrayList<>();
+
+        // Five segments of 2 s followed by one segment of 4 s
+        SegmentTimelineEntry entry = new SegmentTimelineEntry();
+        entry.timeTicks = 0;
+        entry.durationTicks = 2000;
+        entry.repeat = 4;
+        entries.add(entry);
+
+        entry = new SegmentTimelineEntry();
+        entry.timeTicks = 10000;
+        entry.durationTicks = 4000;
+        entries.add(entry);
+
+        return entries;
+    }
+
+    private static MPDParser parseLiveMPD(int secondsSinceStart, String timeShiftBufferDepth,
+            String suggestedPresentationDelay) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String availabilityStartTime = format.format(
+                new Date(System.currentTimeMillis() - secondsSinceStart * 1000L));
+
+        String mpd = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\"\n"
+                + "  type=\"dynamic\"\n"
+                + "  availabilityStartTime=\"" + availabilityStartTime + "\"\n"
+                + "  timeShiftBufferDepth=\"" + timeShiftBufferDepth + "\"\n"
+                + "  suggestedPresentationDelay=\"" + suggestedPresentationDelay + "\"\n"
+                + "  minimumUpdatePeriod=\"PT10S\"\n"
+                + "  minBufferTime=\"PT2S\"\n"
+                + "  profiles=\"urn:mpeg:dash:profile:isoff-live:2011\">\n"
+                + "  <Period id=\"1\" start=\"PT0S\">\n"
+                + "    <AdaptationSet mimeType=\"video/mp4\" codecs=\"avc1.4D401E\">\n"
+                + "      <SegmentTemplate timescale=\"1000\" duration=\"2000\" startNumber=\"1\"\n"
+                + "        initialization=\"video_init.mp4\" media=\"video_$Number$.m4s\"/>\n"
+                + "      <Representation id=\"1\" bandwidth=\"500000\" width=\"640\""
+                + " height=\"360\"/>\n"
+                + "    </AdaptationSet>\n"
+                + "  </Period>\n"
+                + "</MPD>\n";
+
+        MPDParser mpdParser = new MPDParser("http://example.com/live/manifest.mpd");
+
+        assertTrue("Parsing of mpd failed",
+                mpdParser.parse(new ByteArrayInputStream(mpd.getBytes(StandardCharsets.UTF_8))));
+        assertTrue("MPD not dynamic", mpdParser.isDynamic());
+
+        return mpdParser;
+    }
 }
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media;
+
+/**
+ * Interface definition for a BandwidthEstimator that is also told about
+ * segment downloads abandoned because they were too slow to complete before
+ * the buffer would run dry.
+ */
+public interface AbandonedTransferBandwidthEstimator extends BandwidthEstimator {
+
+    /**
+     * Called when a segment download is abandoned, with the data received
+     * for it so far.
+     *
+     * @param byteCount The number of bytes received.
+     * @param durationUs The time in microseconds since the download started.
+     */
+    public void onDataTransferAbandoned(long byteCount, long durationUs);
+
+}
@@ -24,7 +24,7 @@ public interface BandwidthEstimator {
     /**
      * Get the currently estimated bandwidth.
      *
-     * @return the estimated bandwidth in bytes/s
+     * @return the estimated bandwidth in bits/s
      */
 
     public long getEstimatedBandwidth();
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media;
+
+import java.util.Arrays;
+
+import com.sonymobile.android.media.TrackInfo.TrackType;
+
+/**
+ * RepresentationSelector that selects the video representation from the
+ * amount of buffered video, based on the BOLA algorithm. The selector starts
+ * in a start-up phase where the estimated bandwidth is used until the buffer
+ * has reached the minimum buffer duration. After that the buffer level alone
+ * decides the representation, with a hysteresis around each switch point.
+ * Switching up is also limited to what the estimated bandwidth can sustain.
+ * The audio representation with the highest bitrate and the first subtitle
+ * representation is always selected.
+ */
+public class BufferBasedRepresentationSelector implements BufferLevelRepresentationSelector {
+
+    private static final long DEFAULT_MIN_BUFFER_US = 3000000;
+
+    private static final long DEFAULT_TARGET_BUFFER_US = 10000000;
+
+    private static final long DEFAULT_HYSTERESIS_US = 1000000;
+
+    private static final float BANDWIDTH_SAFETY_FACTOR = 0.9f;
+
+    private final long mMinBufferUs;
+
+    private final long mTargetBufferUs;
+
+    private final long mHysteresisUs;
+
+    private final long[] mBufferDurationsUs = new long[TrackType.values().length];
+
+    private TrackInfo[] mTrackInfo;
+
+    private boolean mStartUp = true;
+
+    /**
+     * Creates a BufferBasedRepresentationSelector with default buffer
+     * durations.
+     */
+    public BufferBasedRepresentationSelector() {
+        this(DEFAULT_MIN_BUFFER_US, DEFAULT_TARGET_BUFFER_US, DEFAULT_HYSTERESIS_US);
+    }
+
+    /**
+     * Creates a BufferBasedRepresentationSelector.
+     *
+     * @param minBufferUs The buffer duration below which the lowest
+     *            representation is selected, and that ends the start-up
+     *            phase.
+     * @param targetBufferUs The buffer duration at which the highest
+     *            representation is selected.
+     * @param hysteresisUs How far the buffer duration must pass a switch point
+     *            before the representation is changed.
+     */
+    public BufferBasedRepresentationSelector(long minBufferUs, long targetBufferUs,
+            long hysteresisUs) {
+        if (minBufferUs <= 0 || targetBufferUs <= minBufferUs || hysteresisUs < 0) {
+            throw new IllegalArgumentException("Invalid buffer durations");
+        }
+
+        mMinBufferUs = minBufferUs;
+        mTargetBufferUs = targetBufferUs;
+        mHysteresisUs = hysteresisUs;
+    }
+
+    @Override
+    public void onBufferLevelsChanged(long[] bufferDurationsUs) {
+        System.arraycopy(bufferDurationsUs, 0, mBufferDurationsUs, 0,
+                Math.min(bufferDurationsUs.length, mBufferDurationsUs.length));
+    }
+
+    @Override
+    public void selectDefaultRepresentations(int[] selectedTracks, TrackInfo[] trackInfo,
+            int[] selectedRepresentations) {
+        mTrackInfo = trackInfo.clone();
+        mStartUp = true;
+
+        selectedRepresentations[TrackType.AUDIO.ordinal()] =
+                getHighestRepresentation(selectedTracks[TrackType.AUDIO.ordinal()]);
+
+        selectedRepresentations[TrackType.SUBTITLE.ordinal()] =
+                selectedTracks[TrackType.SUBTITLE.ordinal()] >= 0 ? 0 : -1;
+
+        // Start with the lowest video representation
+        int videoTrack = selectedTracks[TrackType.VIDEO.ordinal()];
+        if (videoTrack >= 0) {
+            selectedRepresentations[TrackType.VIDEO.ordinal()] = getSortedRepresentations(
+                    mTrackInfo[videoTrack].getRepresentations())[0];
+        } else {
+            selectedRepresentations[TrackType.VIDEO.ordinal()] = -1;
+        }
+    }
+
+    @Override
+    public boolean selectRepresentations(long bandwidth, int[] selectedTracks,
+            int[] selectedRepresentations) {
+        boolean representationsChanged = false;
+
+        long audioBandwidth = 0;
+        int audioTrack = selectedTracks[TrackType.AUDIO.ordinal()];
+        if (audioTrack > -1) {
+            int audioRepresentation = selectedRepresentations[TrackType.AUDIO.ordinal()];
+            if (audioRepresentation == -1) {
+                audioRepresentation = getHighestRepresentation(audioTrack);
+                selectedRepresentations[TrackType.AUDIO.ordinal()] = audioRepresentation;
+                representationsChanged = true;
+            }
+            audioBandwidth = mTrackInfo[audioTrack].getRepresentations()[audioRepresentation]
+                    .getBitrate();
+        }
+
+        long subtitleBandwidth = 0;
+        int subtitleTrack = selectedTracks[TrackType.SUBTITLE.ordinal()];
+        if (subtitleTrack > -1) {
+            int subtitleRepresentation = selectedRepresentations[TrackType.SUBTITLE.ordinal()];
+            if (subtitleRepresentation == -1) {
+                subtitleRepresentation = 0;
+                selectedRepresentations[TrackType.SUBTITLE.ordinal()] = 0;
+                representationsChanged = true;
+            }
+            subtitleBandwidth = mTrackInfo[subtitleTrack].getRepresentations()
+                    [subtitleRepresentation].getBitrate();
+        }
+
+        int videoTrack = selectedTracks[TrackType.VIDEO.ordinal()];
+        if (videoTrack > -1 && mTrackInfo[videoTrack].getRepresentations() != null) {
+            TrackRepresentation[] representations = mTrackInfo[videoTrack].getRepresentations();
+            int[] sortedRepresentations = getSortedRepresentations(representations);
+            int[] bitrates = new int[sortedRepresentations.length];
+            for (int i = 0; i < sortedRepresentations.length; i++) {
+                bitrates[i] = representations[sortedRepresentations[i]].getBitrate();
+            }
+
+            int currentRepresentation = selectedRepresentations[TrackType.VIDEO.ordinal()];
+            int currentLevel = -1;
+            for (int i = 0; i < sortedRepresentations.length; i++) {
+                if (sortedRepresentations[i] == currentRepresentation) {
+                    currentLevel = i;
+                    break;
+                }
+            }
+
+            long availableBandwidth = (long)((bandwidth - audioBandwidth - subtitleBandwidth)
+                    * BANDWIDTH_SAFETY_FACTOR);
+            int bandwidthLevel = 0;
+            for (int i = bitrates.length - 1; i > 0; i--) {
+                if (bitrates[i] < availableBandwidth) {
+                    bandwidthLevel = i;
+                    break;
+                }
+            }
+
+            long bufferUs = mBufferDurationsUs[TrackType.VIDEO.ordinal()];
+            if (bufferUs == 0) {
+                // Buffer drained or flushed, e.g. after a seek
+                mStartUp = true;
+            } else if (mStartUp && bufferUs >= mMinBufferUs) {
+                mStartUp = false;
+            }
+
+            int level;
+            if (mStartUp || currentLevel == -1) {
+                level = bandwidthLevel;
+            } else {
+                int upLevel = getBufferLevel(bitrates, bufferUs - mHysteresisUs);
+                int downLevel = getBufferLevel(bitrates, bufferUs + mHysteresisUs);
+                if (upLevel > currentLevel) {
+                    level = Math.min(upLevel, Math.max(bandwidthLevel, currentLevel));
+                } else if (downLevel < currentLevel) {
+                    level = downLevel;
+                } else {
+                    level = currentLevel;
+                }
+            }
+
+            if (level != currentLevel) {
+                selectedRepresentations[TrackType.VIDEO.ordinal()] =
+                        sortedRepresentations[level];
+                representationsChanged = true;
+            }
+        }
+
+        return representationsChanged;
+    }
+
+    /**
+     * Returns the level, in the sorted bitrates, that maximizes the BOLA
+     * objective for the given buffer duration.
+     */
+    private int getBufferLevel(int[] bitrates, long bufferUs) {
+        int highestLevel = bitrates.length - 1;
+        if (highestLevel == 0 || bitrates[highestLevel] <= bitrates[0]) {
+            return 0;
+        }
+
+        double lowestBitrate = Math.max(bitrates[0], 1);
+        double highestUtility = Math.log(bitrates[highestLevel] / lowestBitrate) + 1;
+        double gp = (highestUtility - 1) / ((double)mTargetBufferUs / mMinBufferUs - 1);
+        double v = mMinBufferUs / gp;
+
+        int level = 0;
+        double bestScore = -Double.MAX_VALUE;
+        for (int i = 0; i <= highestLevel; i++) {
+            double bitrate = Math.max(bitrates[i], 1);
+            double utility = Math.log(bitrate / lowestBitrate) + 1;
+            double score = (v * (utility + gp) - bufferUs) / bitrate;
+            if (score > bestScore) {
+                bestScore = score;
+                level = i;
+            }
+        }
+        return level;
+    }
+
+    private int getHighestRepresentation(int track) {
+        if (track < 0) {
+            return -1;
+        }
+
+        TrackRepresentation[] representations = mTrackInfo[track].getRepresentations();
+        int[] sortedRepresentations = getSortedRepresentations(representations);
+        return sortedRepresentations[sortedRepresentations.length - 1];
+    }
+
+    /**
+     * Returns the representation indices sorted by increasing bitrate.
+     */
+    private static int[] getSortedRepresentations(TrackRepresentation[] representations) {
+        int count = representations != null ? representations.length : 0;
+        long[] keys = new long[Math.max(count, 1)];
+        for (int i = 0; i < count; i++) {
+            keys[i] = ((long)representations[i].getBitrate() << 32) | i;
+        }
+        if (count > 1) {
+            Arrays.sort(keys);
+        }
+
+        int[] sorted = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            sorted[i] = (int)(keys[i] & 0xFFFFFFFFL);
+        }
+        return sorted;
+    }
+}
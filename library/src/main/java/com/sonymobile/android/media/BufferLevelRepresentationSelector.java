@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media;
+
+/**
+ * Interface definition for a RepresentationSelector that also takes the
+ * amount of buffered media into account when selecting representations.
+ */
+public interface BufferLevelRepresentationSelector extends RepresentationSelector {
+
+    /**
+     * Called with the current buffer levels before each call to
+     * {@link #selectRepresentations(long, int[], int[])}.
+     *
+     * @param bufferDurationsUs The buffered duration in microseconds for
+     *            each track type. The array is indexed according to
+     *            {@link TrackInfo.TrackType}.
+     */
+    public void onBufferLevelsChanged(long[] bufferDurationsUs);
+
+}
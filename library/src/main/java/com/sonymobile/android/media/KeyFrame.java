@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media;
+
+import java.util.Arrays;
+
+import android.media.MediaFormat;
+
+/**
+ * Class to describe an encoded key frame.
+ */
+public class KeyFrame {
+
+    private final long mTimeUs;
+
+    private final byte[] mData;
+
+    private final MediaFormat mFormat;
+
+    /**
+     * Creates a new KeyFrame object. KeyFrames should normally not be created
+     * by Applications.
+     *
+     * @param timeUs presentation time in microseconds for the key frame.
+     * @param data the encoded key frame.
+     * @param size size of the data.
+     * @param format the format of the key frame.
+     */
+    public KeyFrame(long timeUs, byte[] data, int size, MediaFormat format) {
+        mTimeUs = timeUs;
+        mData = Arrays.copyOf(data, size);
+        mFormat = format;
+    }
+
+    /**
+     * Gets the presentation time of the key frame.
+     *
+     * @return Presentation time in microseconds.
+     */
+    public long getTimeUs() {
+        return mTimeUs;
+    }
+
+    /**
+     * Gets the encoded data of the key frame. The data can be queued directly
+     * to a decoder configured with the format of the key frame.
+     *
+     * @return the encoded data.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Gets the format of the key frame, including codec specific data.
+     *
+     * @return the MediaFormat of the key frame.
+     */
+    public MediaFormat getFormat() {
+        return mFormat;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.sonymobile.android.media.TrackInfo.TrackType;
+import com.sonymobile.android.media.internal.AccessUnit;
+import com.sonymobile.android.media.internal.Configuration;
+import com.sonymobile.android.media.internal.MediaParser;
+import com.sonymobile.android.media.internal.MediaParserFactory;
+
+/**
+ * Class for extracting key frames from a media file without creating a
+ * MediaPlayer, e.g. for generating seek bar thumbnails. Only the key frames
+ * are read from the file, the frames in between are never touched.
+ */
+public class KeyFrameExtractor {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "KeyFrameExtractor";
+
+    private final MediaParser mParser;
+
+    private KeyFrameExtractor(MediaParser parser) {
+        mParser = parser;
+    }
+
+    /**
+     * Static method for creating a key frame extractor. User is responsible
+     * for calling release() on the extractor after usage.
+     *
+     * @param path the path to the content.
+     * @return A KeyFrameExtractor object or null if the content has no
+     *         supported video track.
+     */
+    public static KeyFrameExtractor create(String path) {
+        try {
+            return create(MediaParserFactory.createParser(path, 0L, Long.MAX_VALUE, -1, null));
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.e(TAG, "Could not create parser", e);
+            return null;
+        }
+    }
+
+    /**
+     * Static method for creating a key frame extractor. User is responsible
+     * for calling release() on the extractor after usage.
+     *
+     * @param fd the FileDescriptor of the content.
+     * @param offset the offset to the content.
+     * @param length the length of the content.
+     * @return A KeyFrameExtractor object or null if the content has no
+     *         supported video track.
+     */
+    public static KeyFrameExtractor create(FileDescriptor fd, long offset, long length) {
+        return create(MediaParserFactory.createParser(fd, offset, length));
+    }
+
+    private static KeyFrameExtractor create(MediaParser parser) {
+        if (parser == null) {
+            return null;
+        }
+
+        if (parser.getSelectedTrackIndex(TrackType.VIDEO) < 0) {
+            if (LOGS_ENABLED) Log.w(TAG, "No video track");
+            parser.release();
+            return null;
+        }
+
+        return new KeyFrameExtractor(parser);
+    }
+
+    /**
+     * Gets the format of the video track.
+     *
+     * @return the MediaFormat of the video track.
+     */
+    public MediaFormat getFormat() {
+        return mParser.getFormat(TrackType.VIDEO);
+    }
+
+    /**
+     * Gets the key frames closest to a list of times. The key frames are read
+     * in file order and a key frame shared by several times is only read
+     * once.
+     *
+     * @param timesUs the times in microseconds to get key frames for.
+     * @return An array with one KeyFrame for each time, where an entry is null
+     *         if no key frame could be read for that time. Returns null if key
+     *         frame extraction is not supported for the content.
+     */
+    public KeyFrame[] getKeyFrames(long[] timesUs) {
+        AccessUnit[] accessUnits = mParser.getSyncSamples(TrackType.VIDEO, timesUs);
+        if (accessUnits == null) {
+            return null;
+        }
+
+        KeyFrame[] keyFrames = new KeyFrame[accessUnits.length];
+        for (int i = 0; i < accessUnits.length; i++) {
+            AccessUnit accessUnit = accessUnits[i];
+            if (accessUnit == null || accessUnit.status != AccessUnit.OK) {
+                continue;
+            }
+
+            if (i > 0 && accessUnit == accessUnits[i - 1]) {
+                keyFrames[i] = keyFrames[i - 1];
+            } else {
+                keyFrames[i] = new KeyFrame(accessUnit.timeUs, accessUnit.data,
+                        accessUnit.size, accessUnit.format);
+            }
+        }
+
+        return keyFrames;
+    }
+
+    /**
+     * Releases this extractor and closes all resources that belongs to it.
+     */
+    public void release() {
+        mParser.release();
+    }
+}
@@ -46,11 +46,13 @@ import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.Process;
 import android.util.Log;
+import android.graphics.Rect;
 import android.view.SurfaceHolder;
 
 import com.sonymobile.android.media.internal.Configuration;
 import com.sonymobile.android.media.internal.OutputControllerUpdateListener;
 import com.sonymobile.android.media.internal.Player;
+import com.sonymobile.android.media.internal.streaming.common.PacketBufferBudget;
 
 /**
  * MediaPlayer class for controlling media playback. <h3>State Diagram</h3>
@@ -277,6 +279,13 @@ import com.sonymobile.android.media.internal.Player;
  * <td></p></td>
  * </tr>
  * <tr>
+ * <td>setRepresentationConstraints </p></td>
+ * <td>{IDLE, INITIALIZED, PREPARING, PREPARED, PLAYING, PAUSED, COMPLETED} </p>
+ * </td>
+ * <td>{ERROR, END} </p></td>
+ * <td></p></td>
+ * </tr>
+ * <tr>
  * <td>setVideoScalingMode </p></td>
  * <td>{INITIALIZED, PREPARING, PREPARED, PLAYING, PAUSED, COMPLETED} </p></td>
  * <td>{IDLE, ERROR, END} </p></td>
@@ -328,6 +337,19 @@ import com.sonymobile.android.media.internal.Player;
  * <td></p></td>
  * </tr>
  * <tr>
+ * <td>getQoEMetrics </p></td>
+ * <td>{IDLE, INITIALIZED, PREPARING, PREPARED, PLAYING, PAUSED, COMPLETED} </p>
+ * </td>
+ * <td>{ERROR, END} </p></td>
+ * <td></p></td>
+ * </tr>
+ * <tr>
+ * <td>setKeyFrameOnly </p></td>
+ * <td>{PREPARED, PLAYING, PAUSED, COMPLETED} </p></td>
+ * <td>{IDLE, INITIALIZED, PREPARING, ERROR, END} </p></td>
+ * <td></p></td>
+ * </tr>
+ * <tr>
  * <td>setMaxBufferSize </p></td>
  * <td>{IDLE, INITIALIZED} </p></td>
  * <td>{PREPARING, PREPARED, PLAYING, PAUSED, ERROR, END, COMPLETED} </p></td>
@@ -492,6 +514,22 @@ public final class MediaPlayer {
         public void onRepresentationChanged(MediaPlayer mp, Statistics statistics);
     }
 
+    /**
+     * Interface definition of a callback to be invoked when the QoE metrics
+     * of the playback have been updated.
+     */
+    public interface OnQoEMetricsUpdateListener {
+        /**
+         * Called when playback has started, a rebuffer has started or ended,
+         * the representation has changed or a segment has been downloaded.
+         * Updates close in time may be reported in a single call.
+         *
+         * @param mp the MediaPlayer the metrics pertain to.
+         * @param metrics a snapshot of the metrics.
+         */
+        public void onQoEMetricsUpdate(MediaPlayer mp, QoEMetrics metrics);
+    }
+
     /**
      * Interface definition of a callback to be invoked when displaying DRM
      * protected content with output restrictions on another device.
@@ -652,7 +690,10 @@ public final class MediaPlayer {
 
     /**
      * Set the representation selector. If no representation selector is set a
-     * default implementation will be used.
+     * default implementation will be used. A selector implementing
+     * {@link BufferLevelRepresentationSelector}, such as
+     * {@link BufferBasedRepresentationSelector}, is also given the buffer level
+     * of each track.
      *
      * @param selector the RepresentationSelector to be used.
      */
@@ -667,6 +708,29 @@ public final class MediaPlayer {
         mPlayer.setRepresentationSelector(selector);
     }
 
+    /**
+     * Set constraints limiting which representations of an adaptive stream
+     * that may be selected, applied before the RepresentationSelector is
+     * consulted. Unless a viewport size is given in the constraints, the size
+     * of the SurfaceHolder set with {@link #setDisplay} is used as viewport
+     * and followed when the surface changes size.
+     *
+     * @param constraints the RepresentationConstraints or null to remove the
+     *            constraints.
+     */
+    public void setRepresentationConstraints(RepresentationConstraints constraints) {
+        synchronized (mStateLock) {
+            if (mState == State.ERROR || mState == State.END) {
+                throw new IllegalStateException(
+                        "Can't call setRepresentationConstraints in " + mState + " state.");
+            }
+
+            mRepresentationConstraints = constraints != null
+                    ? new RepresentationConstraints(constraints) : null;
+            updateRepresentationConstraints();
+        }
+    }
+
     /**
      * Set the bandwidth estimator. If no bandwidth estimator is set a default
      * implementation will be used.
@@ -705,6 +769,8 @@ public final class MediaPlayer {
 
     private OnVideoSizeChangedListener mOnVideoSizeChangedListener;
 
+    private OnQoEMetricsUpdateListener mOnQoEMetricsUpdateListener;
+
     private Player mPlayer;
 
     private State mState;
@@ -723,6 +789,27 @@ public final class MediaPlayer {
 
     private SurfaceHolder mSurfaceHolder;
 
+    private RepresentationConstraints mRepresentationConstraints;
+
+    private final SurfaceHolder.Callback mSurfaceHolderCallback = new SurfaceHolder.Callback() {
+        @Override
+        public void surfaceCreated(SurfaceHolder holder) {
+        }
+
+        @Override
+        public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            synchronized (mStateLock) {
+                if (mState != State.ERROR && mState != State.END) {
+                    updateRepresentationConstraints();
+                }
+            }
+        }
+
+        @Override
+        public void surfaceDestroyed(SurfaceHolder holder) {
+        }
+    };
+
     private boolean mKeepScreenOn = false;
 
     private WakeLock mWakeLock;
@@ -842,6 +929,18 @@ public final class MediaPlayer {
                             thiz.mOnBufferingListener.onBufferingUpdate(thiz, msg.arg1);
                         }
                         break;
+                    case Player.NOTIFY_QOE_METRICS_UPDATE:
+                        if (thiz.mOnQoEMetricsUpdateListener != null) {
+                            Player player;
+                            synchronized (thiz.mStateLock) {
+                                player = thiz.mPlayer;
+                            }
+                            if (player != null) {
+                                thiz.mOnQoEMetricsUpdateListener.onQoEMetricsUpdate(thiz,
+                                        player.getQoEMetrics());
+                            }
+                        }
+                        break;
                     default:
                         if (LOGS_ENABLED) Log.w(TAG, "Unknown callback");
                         break;
@@ -944,6 +1043,7 @@ public final class MediaPlayer {
         if (LOGS_ENABLED) Log.d(TAG, "MediaPlayer(Context)");
         if (context != null) {
             mContext = context.getApplicationContext();
+            PacketBufferBudget.registerComponentCallbacks(mContext);
         }
         mPlayerEventThread = new HandlerThread("MediaPlayerEventThread",
                 Process.THREAD_PRIORITY_MORE_FAVORABLE);
@@ -1009,18 +1109,49 @@ public final class MediaPlayer {
 
         if (mSurfaceHolder != null) {
             mSurfaceHolder.setKeepScreenOn(false);
+            mSurfaceHolder.removeCallback(mSurfaceHolderCallback);
         }
 
         if (surfaceHolder == null) {
             mPlayer.setSurface(null);
         } else {
             mPlayer.setSurface(surfaceHolder.getSurface());
+            surfaceHolder.addCallback(mSurfaceHolderCallback);
         }
         mSurfaceHolder = surfaceHolder;
 
+        synchronized (mStateLock) {
+            updateRepresentationConstraints();
+        }
+
         updateKeepDeviceAlive();
     }
 
+    /**
+     * Sends the constraints to the player, with the viewport size taken from
+     * the display unless set by the application. Must be called with
+     * mStateLock held.
+     */
+    private void updateRepresentationConstraints() {
+        if (mPlayer == null) {
+            return;
+        }
+
+        RepresentationConstraints constraints = mRepresentationConstraints != null
+                ? new RepresentationConstraints(mRepresentationConstraints)
+                : new RepresentationConstraints();
+
+        if (mSurfaceHolder != null && (constraints.getViewportWidth() <= 0
+                || constraints.getViewportHeight() <= 0)) {
+            Rect frame = mSurfaceHolder.getSurfaceFrame();
+            if (frame != null && frame.width() > 0 && frame.height() > 0) {
+                constraints.setViewportSize(frame.width(), frame.height());
+            }
+        }
+
+        mPlayer.setRepresentationConstraints(constraints);
+    }
+
     /**
      * Sets the data source to use.
      *
@@ -1569,6 +1700,7 @@ public final class MediaPlayer {
                 if (mSurfaceHolder != null) {
                     mPlayer.setSurface(mSurfaceHolder.getSurface());
                 }
+                updateRepresentationConstraints();
 
                 updateKeepDeviceAlive();
             } else {
@@ -1642,6 +1774,7 @@ public final class MediaPlayer {
                 mOnSeekCompleteListener = null;
                 mOnSubtitleDataListener = null;
                 mOnVideoSizeChangedListener = null;
+                mOnQoEMetricsUpdateListener = null;
             }
         }
 
@@ -1654,6 +1787,10 @@ public final class MediaPlayer {
 
                 mState = State.END;
 
+                if (mSurfaceHolder != null) {
+                    mSurfaceHolder.removeCallback(mSurfaceHolderCallback);
+                }
+
                 updateKeepDeviceAlive();
                 mPlayerEventThread.quitSafely();
                 mPlayerEventThread = null;
@@ -1936,6 +2073,30 @@ public final class MediaPlayer {
         }
     }
 
+    /**
+     * Sets if only key frames should be decoded and rendered, e.g. for fast
+     * scrubbing. The data of the other video frames is not read. Audio is not
+     * affected. Only supported for MPEG-4 based files and DASH.
+     *
+     * @param keyFrameOnly true to only render key frames, false to return to
+     *            normal playback from the next key frame.
+     * @exception IllegalStateException if it is called in an invalid state.
+     */
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        if (LOGS_ENABLED) Log.d(TAG, "setKeyFrameOnly(" + keyFrameOnly + ")");
+        synchronized (mStateLock) {
+            if (mState == State.END) {
+                throw new IllegalStateException("setKeyFrameOnly not available in END state.");
+            } else if (mState != State.PREPARED && mState != State.PLAYING
+                    && mState != State.PAUSED
+                    && mState != State.COMPLETED) {
+                moveToErrorStateAndSendInvalidStateCallback_l();
+            } else {
+                mPlayer.setKeyFrameOnly(keyFrameOnly);
+            }
+        }
+    }
+
     /**
      * Get statistics for the media. Only works with DASH.
      *
@@ -1954,6 +2115,40 @@ public final class MediaPlayer {
         return mPlayer.getStatistics();
     }
 
+    /**
+     * Get the QoE metrics of the current playback: start-up time, rebuffers,
+     * dropped frames, and for adaptive streams the representation switches
+     * and segment downloads. The metrics are cleared when a new data source
+     * is prepared.
+     *
+     * @return QoEMetrics object with a snapshot of the metrics.
+     * @throws IllegalStateException if it is called in an invalid state.
+     */
+    public QoEMetrics getQoEMetrics() {
+        if (LOGS_ENABLED) Log.d(TAG, "getQoEMetrics()");
+        synchronized (mStateLock) {
+            if (mState == State.ERROR || mState == State.END) {
+                throw new IllegalStateException(
+                        "Can't call getQoEMetrics in " + mState + " state.");
+            }
+
+            return mPlayer.getQoEMetrics();
+        }
+    }
+
+    /**
+     * Sets the listener for onQoEMetricsUpdate. Called when the QoE metrics
+     * are updated, see {@link #getQoEMetrics()}.
+     *
+     * @param listener the listener to be set.
+     */
+    public void setOnQoEMetricsUpdateListener(OnQoEMetricsUpdateListener listener) {
+        if (LOGS_ENABLED) Log.d(TAG, "setOnQoEMetricsUpdateListener()");
+        synchronized (mListenerLock) {
+            mOnQoEMetricsUpdateListener = listener;
+        }
+    }
+
     /**
      * Sets the listener for onRepresentationChanged. Called when representation
      * is changed during playback of DASH content.
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.sonymobile.android.media.TrackInfo.TrackType;
+
+/**
+ * Quality of experience metrics of a playback session. A QoEMetrics object
+ * is a snapshot, get a new one from {@link MediaPlayer#getQoEMetrics()} or
+ * through a {@link MediaPlayer.OnQoEMetricsUpdateListener} to see later
+ * changes. Representation switches and segment downloads are only recorded
+ * for adaptive streams, and only the latest ones are kept.
+ */
+public final class QoEMetrics {
+
+    /**
+     * A switch to a new video representation.
+     */
+    public static final class RepresentationSwitch {
+        private final long timeMs;
+
+        private final String id;
+
+        private final int bandwidth;
+
+        private final int width;
+
+        private final int height;
+
+        /**
+         * Create a new RepresentationSwitch.
+         *
+         * @param timeMs the time of the switch, in ms of elapsed realtime.
+         * @param id the id of the representation switched to.
+         * @param bandwidth the bandwidth of the representation, in bits per
+         *            second.
+         * @param width the width of the representation in pixels.
+         * @param height the height of the representation in pixels.
+         */
+        public RepresentationSwitch(long timeMs, String id, int bandwidth, int width,
+                int height) {
+            this.timeMs = timeMs;
+            this.id = id;
+            this.bandwidth = bandwidth;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Get the time the download of the representation started.
+         *
+         * @return the time in ms of elapsed realtime.
+         */
+        public long getTimeMs() {
+            return timeMs;
+        }
+
+        /**
+         * Get the id of the representation.
+         *
+         * @return the id of the representation.
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Get the bandwidth of the representation.
+         *
+         * @return the bandwidth in bits per second.
+         */
+        public int getBandwidth() {
+            return bandwidth;
+        }
+
+        /**
+         * Get the width of the representation.
+         *
+         * @return the width in pixels.
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Get the height of the representation.
+         *
+         * @return the height in pixels.
+         */
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    /**
+     * The download of a media segment.
+     */
+    public static final class Segment {
+        private final TrackType type;
+
+        private final String uri;
+
+        private final int bandwidth;
+
+        private final long bytes;
+
+        private final long timeToFirstByteMs;
+
+        private final long downloadTimeMs;
+
+        /**
+         * Create a new Segment.
+         *
+         * @param type the type of the track the segment belongs to.
+         * @param uri the uri of the segment.
+         * @param bandwidth the bandwidth of the representation, in bits per
+         *            second.
+         * @param bytes the number of bytes downloaded.
+         * @param timeToFirstByteMs the time from the request to the first
+         *            byte, in ms.
+         * @param downloadTimeMs the time from the request to the last byte,
+         *            in ms.
+         */
+        public Segment(TrackType type, String uri, int bandwidth, long bytes,
+                long timeToFirstByteMs, long downloadTimeMs) {
+            this.type = type;
+            this.uri = uri;
+            this.bandwidth = bandwidth;
+            this.bytes = bytes;
+            this.timeToFirstByteMs = timeToFirstByteMs;
+            this.downloadTimeMs = downloadTimeMs;
+        }
+
+        /**
+         * Get the type of the track the segment belongs to.
+         *
+         * @return the track type.
+         */
+        public TrackType getType() {
+            return type;
+        }
+
+        /**
+         * Get the uri of the segment.
+         *
+         * @return the uri.
+         */
+        public String getUri() {
+            return uri;
+        }
+
+        /**
+         * Get the bandwidth of the representation the segment belongs to.
+         *
+         * @return the bandwidth in bits per second.
+         */
+        public int getBandwidth() {
+            return bandwidth;
+        }
+
+        /**
+         * Get the number of bytes downloaded. This is less than the segment
+         * size if the download was aborted.
+         *
+         * @return the number of bytes.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Get the time from the request to the first byte received.
+         *
+         * @return the time in ms, or -1 if no data was received.
+         */
+        public long getTimeToFirstByteMs() {
+            return timeToFirstByteMs;
+        }
+
+        /**
+         * Get the time from the request to the last byte received.
+         *
+         * @return the time in ms.
+         */
+        public long getDownloadTimeMs() {
+            return downloadTimeMs;
+        }
+    }
+
+    private final long startupTimeMs;
+
+    private final int rebufferCount;
+
+    private final long rebufferDurationMs;
+
+    private final int droppedFrames;
+
+    private final List<RepresentationSwitch> representationSwitches;
+
+    private final List<Segment> segments;
+
+    /**
+     * Create a new QoEMetrics object.
+     *
+     * @param startupTimeMs initvalue for the start-up time, in ms.
+     * @param rebufferCount initvalue for the number of rebuffers.
+     * @param rebufferDurationMs initvalue for the rebuffer duration, in ms.
+     * @param droppedFrames initvalue for the number of dropped frames.
+     * @param representationSwitches initvalue for the representation
+     *            switches, oldest first.
+     * @param segments initvalue for the segment downloads, oldest first.
+     */
+    public QoEMetrics(long startupTimeMs, int rebufferCount, long rebufferDurationMs,
+            int droppedFrames, List<RepresentationSwitch> representationSwitches,
+            List<Segment> segments) {
+        this.startupTimeMs = startupTimeMs;
+        this.rebufferCount = rebufferCount;
+        this.rebufferDurationMs = rebufferDurationMs;
+        this.droppedFrames = droppedFrames;
+        this.representationSwitches = Collections.unmodifiableList(representationSwitches);
+        this.segments = Collections.unmodifiableList(segments);
+    }
+
+    /**
+     * Get the time from the first call to start until the first video frame
+     * was rendered, or for audio only content until playback could begin.
+     *
+     * @return the time in ms, or -1 if playback has not started.
+     */
+    public long getStartupTimeMs() {
+        return startupTimeMs;
+    }
+
+    /**
+     * Get the number of times playback stopped to buffer after it had
+     * started. Buffering after a seek is not counted.
+     *
+     * @return the number of rebuffers.
+     */
+    public int getRebufferCount() {
+        return rebufferCount;
+    }
+
+    /**
+     * Get the total time spent rebuffering, including a rebuffer in progress.
+     *
+     * @return the time in ms.
+     */
+    public long getRebufferDurationMs() {
+        return rebufferDurationMs;
+    }
+
+    /**
+     * Get the number of video frames dropped for being late.
+     *
+     * @return the number of dropped frames.
+     */
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Get the latest switches of video representation, oldest first. The
+     * first entry is the representation playback started with. Switches are
+     * recorded when the download of the new representation starts.
+     *
+     * @return the representation switches.
+     */
+    public List<RepresentationSwitch> getRepresentationSwitches() {
+        return representationSwitches;
+    }
+
+    /**
+     * Get the latest segment downloads, oldest first. Segments read from the
+     * segment cache are not included.
+     *
+     * @return the segment downloads.
+     */
+    public List<Segment> getSegments() {
+        return segments;
+    }
+}
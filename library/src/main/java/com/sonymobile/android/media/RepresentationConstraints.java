@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media;
+
+import java.util.Arrays;
+
+/**
+ * Constraints limiting which representations of an adaptive stream that may
+ * be selected. Representations not satisfying the constraints are removed
+ * from the ladder before any {@link RepresentationSelector} is consulted. A
+ * value of 0, or null for the codecs, means no constraint. If no
+ * representation of a track satisfies the constraints the one with the
+ * lowest bitrate is used.
+ */
+public class RepresentationConstraints {
+
+    private int mMaxVideoWidth;
+
+    private int mMaxVideoHeight;
+
+    private int mViewportWidth;
+
+    private int mViewportHeight;
+
+    private int mMaxBitrate;
+
+    private float mMaxFrameRate;
+
+    private String[] mAllowedCodecs;
+
+    /**
+     * Create new RepresentationConstraints without any constraints.
+     */
+    public RepresentationConstraints() {
+    }
+
+    /**
+     * Create a copy of other RepresentationConstraints.
+     *
+     * @param constraints the constraints to copy.
+     */
+    public RepresentationConstraints(RepresentationConstraints constraints) {
+        mMaxVideoWidth = constraints.mMaxVideoWidth;
+        mMaxVideoHeight = constraints.mMaxVideoHeight;
+        mViewportWidth = constraints.mViewportWidth;
+        mViewportHeight = constraints.mViewportHeight;
+        mMaxBitrate = constraints.mMaxBitrate;
+        mMaxFrameRate = constraints.mMaxFrameRate;
+        mAllowedCodecs = constraints.mAllowedCodecs;
+    }
+
+    /**
+     * Set the maximum video size. Video representations larger than this in
+     * any dimension are not selected.
+     *
+     * @param width the maximum width in pixels.
+     * @param height the maximum height in pixels.
+     */
+    public void setMaxVideoSize(int width, int height) {
+        mMaxVideoWidth = width;
+        mMaxVideoHeight = height;
+    }
+
+    /**
+     * Get the maximum video width.
+     *
+     * @return the maximum width in pixels.
+     */
+    public int getMaxVideoWidth() {
+        return mMaxVideoWidth;
+    }
+
+    /**
+     * Get the maximum video height.
+     *
+     * @return the maximum height in pixels.
+     */
+    public int getMaxVideoHeight() {
+        return mMaxVideoHeight;
+    }
+
+    /**
+     * Set the size of the area the video is shown in. Of the video
+     * representations that would be scaled down to fit the viewport only the
+     * smallest is selected. If not set, the MediaPlayer uses the size of the
+     * SurfaceHolder given to {@link MediaPlayer#setDisplay}.
+     *
+     * @param width the viewport width in pixels.
+     * @param height the viewport height in pixels.
+     */
+    public void setViewportSize(int width, int height) {
+        mViewportWidth = width;
+        mViewportHeight = height;
+    }
+
+    /**
+     * Get the viewport width.
+     *
+     * @return the viewport width in pixels.
+     */
+    public int getViewportWidth() {
+        return mViewportWidth;
+    }
+
+    /**
+     * Get the viewport height.
+     *
+     * @return the viewport height in pixels.
+     */
+    public int getViewportHeight() {
+        return mViewportHeight;
+    }
+
+    /**
+     * Set the maximum video bitrate.
+     *
+     * @param bitrate the maximum bitrate in bits per second.
+     */
+    public void setMaxBitrate(int bitrate) {
+        mMaxBitrate = bitrate;
+    }
+
+    /**
+     * Get the maximum video bitrate.
+     *
+     * @return the maximum bitrate in bits per second.
+     */
+    public int getMaxBitrate() {
+        return mMaxBitrate;
+    }
+
+    /**
+     * Set the maximum video frame rate. Representations with unknown frame
+     * rate are not affected.
+     *
+     * @param frameRate the maximum frame rate.
+     */
+    public void setMaxFrameRate(float frameRate) {
+        mMaxFrameRate = frameRate;
+    }
+
+    /**
+     * Get the maximum video frame rate.
+     *
+     * @return the maximum frame rate.
+     */
+    public float getMaxFrameRate() {
+        return mMaxFrameRate;
+    }
+
+    /**
+     * Set the codecs that may be selected, for both audio and video. A codec
+     * is allowed if its codec string, such as "avc1.4d401f", starts with one
+     * of the given codecs, such as "avc1". Representations with unknown codec
+     * are not affected.
+     *
+     * @param codecs the allowed codecs or null to allow all codecs.
+     */
+    public void setAllowedCodecs(String... codecs) {
+        mAllowedCodecs = codecs != null ? Arrays.copyOf(codecs, codecs.length) : null;
+    }
+
+    /**
+     * Get the codecs that may be selected.
+     *
+     * @return the allowed codecs or null if all codecs are allowed.
+     */
+    public String[] getAllowedCodecs() {
+        return mAllowedCodecs != null ? Arrays.copyOf(mAllowedCodecs, mAllowedCodecs.length)
+                : null;
+    }
+
+    /**
+     * Check if a codec may be selected.
+     *
+     * @param codec the codec string.
+     * @return true if the codec is allowed or unknown.
+     */
+    public boolean isCodecAllowed(String codec) {
+        if (mAllowedCodecs == null || codec == null || codec.isEmpty()) {
+            return true;
+        }
+
+        String lowerCaseCodec = codec.toLowerCase();
+        for (String allowedCodec : mAllowedCodecs) {
+            if (allowedCodec != null && lowerCaseCodec.startsWith(allowedCodec.toLowerCase())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
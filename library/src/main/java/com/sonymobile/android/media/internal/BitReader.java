@@ -16,37 +16,204 @@
 
 package com.sonymobile.android.media.internal;
 
+import com.sonymobile.android.media.internal.streaming.common.ParseException;
+
+/**
+ * Reads bits from a byte array, most significant bit first. Bits are read
+ * from a 64 bit cache that is refilled a byte at a time, so exp-Golomb codes
+ * are decoded by counting the leading zeros of the cache instead of reading
+ * one bit at a time.
+ *
+ * For NAL unit payloads the emulation prevention bytes (0x03 following two
+ * zero bytes) are removed while refilling the cache, so no copy of the
+ * unescaped payload is needed before parsing SPS, PPS, VPS or SEI data.
+ */
 public class BitReader {
 
     private final byte[] mBytes;
 
-    private int mPos = 0;
+    private final int mEndOffset;
+
+    private final boolean mRemoveEmulationPrevention;
+
+    private int mByteOffset;
+
+    private int mZeroCount = 0;
+
+    private long mCache = 0;
+
+    private int mCacheBits = 0;
+
+    private int mBitsRead = 0;
 
     public BitReader(byte[] byteData) {
-        mBytes = byteData.clone();
-        mPos = 0;
+        this(byteData, 0, byteData.length, false);
     }
 
-    public void skipBits(int nbrBits) {
-        mPos += nbrBits;
+    /**
+     * Creates a BitReader for a part of a byte array. The array is not
+     * copied.
+     *
+     * @param byteData the data to read from.
+     * @param offset the offset of the first byte to read.
+     * @param length the number of bytes to read.
+     * @param removeEmulationPrevention true if the data is a NAL unit where
+     *            emulation prevention bytes should be skipped.
+     */
+    public BitReader(byte[] byteData, int offset, int length, boolean removeEmulationPrevention) {
+        mBytes = byteData;
+        mByteOffset = offset;
+        mEndOffset = offset + length;
+        mRemoveEmulationPrevention = removeEmulationPrevention;
     }
 
-    private int getBit(int pos) {
-        int currentByte = 0xFF & mBytes[pos / 8];
+    private void fillCache() {
+        while (mCacheBits <= 56 && mByteOffset < mEndOffset) {
+            int value = mBytes[mByteOffset++] & 0xFF;
+
+            if (mRemoveEmulationPrevention) {
+                if (mZeroCount >= 2 && value == 0x03) {
+                    mZeroCount = 0;
+                    continue;
+                }
+                mZeroCount = value == 0 ? mZeroCount + 1 : 0;
+            }
 
-        int bitIndex = pos % 8;
-        return 0x01 & (currentByte >> (7 - bitIndex));
+            mCache |= (long)value << (56 - mCacheBits);
+            mCacheBits += 8;
+        }
+    }
+
+    public void skipBits(int nbrBits) {
+        while (nbrBits > 0) {
+            if (mCacheBits == 0) {
+                fillCache();
+                if (mCacheBits == 0) {
+                    // Past the end of the data, keep counting.
+                    mBitsRead += nbrBits;
+                    return;
+                }
+            }
+            int bits = Math.min(nbrBits, mCacheBits);
+            mCache = bits == 64 ? 0 : mCache << bits;
+            mCacheBits -= bits;
+            mBitsRead += bits;
+            nbrBits -= bits;
+        }
     }
 
+    /**
+     * Reads up to 32 bits. Bits past the end of the data are read as zero.
+     */
     public int getBits(int nbrBits) {
-        int bitValue = 0;
+        if (nbrBits == 0) {
+            return 0;
+        }
+
+        if (mCacheBits < nbrBits) {
+            fillCache();
+        }
+
+        int value = (int)(mCache >>> (64 - nbrBits));
+        mCache <<= nbrBits;
+        mCacheBits = Math.max(mCacheBits - nbrBits, 0);
+        mBitsRead += nbrBits;
+        return value;
+    }
+
+    public boolean getFlag() {
+        return getBits(1) == 1;
+    }
+
+    /**
+     * Reads an unsigned exp-Golomb code, ue(v).
+     *
+     * @throws ParseException if the code does not fit in an int or runs past
+     *             the end of the data.
+     */
+    public int getUE() {
+        if (mCacheBits < 32) {
+            fillCache();
+        }
+
+        int leadingZeroBits = Long.numberOfLeadingZeros(mCache);
+        if (leadingZeroBits < 32 && leadingZeroBits < mCacheBits) {
+            // Whole code in the cache
+            int codeLength = 2 * leadingZeroBits + 1;
+            if (codeLength <= mCacheBits) {
+                long value = (mCache >>> (64 - codeLength)) - 1;
+                mCache <<= codeLength;
+                mCacheBits -= codeLength;
+                mBitsRead += codeLength;
+                return checkUE(value);
+            }
+        }
+
+        leadingZeroBits = 0;
+        while (getBits(1) == 0) {
+            if (++leadingZeroBits >= 32) {
+                throw new ParseException("Exp-Golomb code too long");
+            }
+            if (!hasMoreData()) {
+                throw new ParseException("Exp-Golomb code past end of data");
+            }
+        }
+
+        return checkUE((1L << leadingZeroBits) - 1 + (getBits(leadingZeroBits) & 0xFFFFFFFFL));
+    }
+
+    private static int checkUE(long value) {
+        if (value > Integer.MAX_VALUE) {
+            throw new ParseException("Exp-Golomb code overflow: " + value);
+        }
+        return (int)value;
+    }
+
+    /**
+     * Reads a signed exp-Golomb code, se(v).
+     *
+     * @throws ParseException if the code does not fit in an int or runs past
+     *             the end of the data.
+     */
+    public int getSE() {
+        int codeNum = getUE();
+        return (codeNum & 1) == 1 ? (codeNum + 1) >>> 1 : -(codeNum >>> 1);
+    }
 
-        for (int i = 0; i < nbrBits; ++i) {
-            bitValue = bitValue << 1;
-            bitValue |= getBit(mPos);
-            mPos++;
+    public void byteAlign() {
+        skipBits(mCacheBits & 7);
+    }
+
+    public boolean isByteAligned() {
+        return (mCacheBits & 7) == 0;
+    }
+
+    public boolean hasMoreData() {
+        return mCacheBits > 0 || mByteOffset < mEndOffset;
+    }
+
+    /**
+     * Checks if there is more data before the rbsp trailing bits, i.e.
+     * more_rbsp_data() of the AVC and HEVC specifications.
+     */
+    public boolean hasMoreRbspData() {
+        fillCache();
+        if (mByteOffset < mEndOffset) {
+            return true;
         }
+        if (mCacheBits == 0) {
+            return false;
+        }
+        // The last set bit in the cache is the rbsp_stop_one_bit.
+        long payload = mCache >>> (64 - mCacheBits);
+        return Long.numberOfTrailingZeros(payload) < mCacheBits - 1;
+    }
 
-        return bitValue;
+    /**
+     * Returns the number of bits read, after removal of emulation prevention
+     * bytes.
+     */
+    public int getBitPosition() {
+        return mBitsRead;
     }
 }
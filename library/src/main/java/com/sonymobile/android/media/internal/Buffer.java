@@ -209,6 +209,30 @@ public class Buffer {
         mCurrentWritePosition -= discardPosition;
     }
 
+    /**
+     * Changes the size of the buffer. Data that has not been read is always
+     * kept, so the buffer stays larger than size until enough of it has been
+     * read. Data that has been read is kept for rewinding as far as it fits.
+     *
+     * @param size The new size of the buffer in bytes
+     */
+    protected synchronized void resize(int size) {
+        if (mClosed) {
+            return;
+        }
+
+        int discardPosition = Math.min(Math.max(0, mCurrentWritePosition - size),
+                mCurrentReadPosition);
+        int dataSize = mCurrentWritePosition - discardPosition;
+
+        byte[] byteBuffer = new byte[Math.max(size, dataSize)];
+        System.arraycopy(mByteBuffer, discardPosition, byteBuffer, 0, dataSize);
+
+        mByteBuffer = byteBuffer;
+        mCurrentReadPosition -= discardPosition;
+        mCurrentWritePosition -= discardPosition;
+    }
+
     /**
      * Moves current read position back rewindBytes bytes. It is up the caller
      * to make sure we don't end up below our marked position or a subsequent
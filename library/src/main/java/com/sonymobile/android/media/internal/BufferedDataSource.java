@@ -54,6 +54,10 @@ public abstract class BufferedDataSource extends DataSource {
 
     protected static final int SHORT = 2;
 
+    // Upper bound for a single wait on the stream, the downloader wakes
+    // readers up as soon as new data has been buffered.
+    private static final long DATA_WAIT_TIMEOUT_MS = 100;
+
     protected HttpURLConnection mHttpURLConnection;
 
     protected BufferedStream mBis;
@@ -225,6 +229,38 @@ public abstract class BufferedDataSource extends DataSource {
         return totalSkipped;
     }
 
+    @Override
+    public int readAvailable(byte[] buffer) throws IOException {
+        checkConnectionAndStream();
+
+        while (true) {
+            // Closed asynchronously, possibly from another thread
+            BufferedStream bis = mBis;
+            if (bis == null) {
+                throw new IOException("Stream is closed");
+            }
+
+            int read = bis.read(buffer, 0, buffer.length);
+
+            if (read > 0) {
+                mCurrentOffset += read;
+                return read;
+            } else if (read == 0) {
+                bis.compact(-1);
+                bis.waitForData(DATA_WAIT_TIMEOUT_MS);
+            } else if (mRangeExtended && mLength != -1 && mCurrentOffset < mOffset + mLength) {
+                // EOS, but range was extended - so reconnect.
+                if (LOGS_ENABLED) Log.d(TAG, "reconnect, EOS at " + mCurrentOffset);
+                mOffset = mCurrentOffset;
+
+                doCloseSync();
+                openConnectionsAndStreams();
+            } else {
+                return -1;
+            }
+        }
+    }
+
     @Override
     public void setRange(long offset, long length) {
         if (LOGS_ENABLED) Log.v(TAG, "setRange " + offset + " length " + length);
@@ -243,6 +279,11 @@ public abstract class BufferedDataSource extends DataSource {
         return mServerIP;
     }
 
+    @Override
+    public String getUri() {
+        return mUri;
+    }
+
     @Override
     public long length() throws IOException {
         return mContentLength;
@@ -48,7 +48,7 @@ public final class BufferedStream implements Closeable {
     // small reads, however this could mess up bandwidth measure.
     private InputStream mInputStream;
 
-    private final int mBufferSize;
+    private int mBufferSize;
 
     private Buffer mDataBuffer;
 
@@ -96,6 +96,7 @@ public final class BufferedStream implements Closeable {
         }
 
         mClosed = true; // Mark as closed so we will exit ASAP
+        notifyAll();
 
         if (mDownloaderThread != null) {
             try {
@@ -162,6 +163,21 @@ public final class BufferedStream implements Closeable {
         return read;
     }
 
+    /**
+     * Blocks until data is available, the end of stream is reached, the
+     * stream is closed or the timeout expires.
+     */
+    public synchronized void waitForData(long timeoutMs) {
+        if (mClosed || mDataBuffer.available() > 0 || isAtEndOfStream()) {
+            return;
+        }
+
+        try {
+            wait(timeoutMs);
+        } catch (InterruptedException e) {
+        }
+    }
+
     public synchronized void reset() throws IOException {
         if (mClosed) {
             throw streamIsClosed();
@@ -221,6 +237,19 @@ public final class BufferedStream implements Closeable {
         mDataBuffer.compact(bytesToDiscard);
     }
 
+    /**
+     * Changes the size of the buffer, e.g. when the memory is shared with
+     * another stream. Buffered data that has not been read is kept.
+     */
+    public synchronized void setBufferSize(int bufferSize) {
+        if (mClosed) {
+            return;
+        }
+
+        mBufferSize = bufferSize;
+        mDataBuffer.resize(bufferSize);
+    }
+
     public synchronized void reconnect(InputStream in) {
         mInputStream = in;
 
@@ -267,8 +296,11 @@ public final class BufferedStream implements Closeable {
 
             mTotalBytesLoaded = 0;
 
-            if (mBandwidthEstimator != null) {
-                mBandwidthEstimator.onDataTransferStarted();
+            // Kept so that the end of the transfer is reported also when the
+            // stream is closed while a read is blocked
+            BandwidthEstimator estimator = mBandwidthEstimator;
+            if (estimator != null) {
+                estimator.onDataTransferStarted();
             }
 
             if (LOGS_ENABLED) Log.v(TAG, "DownloaderThread will now start.");
@@ -295,6 +327,9 @@ public final class BufferedStream implements Closeable {
                         if (mDataBuffer != null) {
                             int put = mDataBuffer.put(data, totalSaved, read - totalSaved);
                             totalSaved += put;
+                            if (put > 0) {
+                                signalDataAvailable();
+                            }
                             if (totalSaved < read) {
                                 if (put == 0 && freeSpace() < (mBufferSize / 200) &&
                                         available() < mBufferSize / 10) {
@@ -353,10 +388,12 @@ public final class BufferedStream implements Closeable {
                 }
             }
 
-            if (mBandwidthEstimator != null) {
-                mBandwidthEstimator.onDataTransferEnded();
+            if (estimator != null) {
+                estimator.onDataTransferEnded();
             }
 
+            signalDataAvailable();
+
             if (!mClosed && mInputStream != null) {
                 try {
                     mInputStream.close();
@@ -369,6 +406,12 @@ public final class BufferedStream implements Closeable {
                 Log.v(TAG, "DownloaderThread will now exit, stream should be closed by now.");
         }
 
+        private void signalDataAvailable() {
+            synchronized (BufferedStream.this) {
+                BufferedStream.this.notifyAll();
+            }
+        }
+
         private boolean isClosed() {
             synchronized (BufferedStream.this) {
                 return mClosed;
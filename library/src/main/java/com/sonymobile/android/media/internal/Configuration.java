@@ -31,4 +31,29 @@ public class Configuration {
     public static final int HTTP_MIN_BUFFERING_DURATION_US = 2000000;
 
     public static final boolean ENABLE_PLATFORM_PARSER = true;
+
+    public static final int DASH_SEGMENT_REQUEST_DEPTH = 2;
+
+    // Longest media duration fetched in one request for SegmentBase content.
+    public static final int DASH_MAX_SUBSEGMENT_REQUEST_DURATION_US = 6000000;
+
+    // Number of video representations next to the selected one whose init
+    // segments are fetched in the background during prepare, 0 to disable.
+    public static final int DASH_PREFETCH_REPRESENTATIONS = 2;
+
+    // Memory shared by the buffered access units of all players.
+    public static final int PACKET_BUFFER_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+    // Download buffered video segments again after switching up to a
+    // higher quality, when there is time to do so.
+    public static final boolean DASH_SEGMENT_REPLACEMENT = true;
+
+    // Abandon a video segment download that would not complete before the
+    // buffer runs dry and download it from a lower representation instead.
+    public static final boolean DASH_SEGMENT_ABANDONMENT = true;
+
+    public static final int SEGMENT_CACHE_MEMORY_SIZE = 16 * 1024 * 1024;
+
+    // 0 disables the disk tier of the segment cache.
+    public static final int SEGMENT_CACHE_DISK_SIZE = 0;
 }
@@ -186,6 +186,13 @@ public abstract class DataSource implements Closeable {
 
     public abstract String getRemoteIP();
 
+    /**
+     * Returns the uri the data is read from, or null if not known.
+     */
+    public String getUri() {
+        return null;
+    }
+
     public long readUint() throws IOException, EOFException {
         return 0xFFFFFFFFL & readInt();
     }
@@ -200,6 +207,39 @@ public abstract class DataSource implements Closeable {
 
     public abstract void seek(long offset) throws IOException;
 
+    /**
+     * Creates a DataSource for the same content with a read position of its
+     * own, so that it can be read in parallel with this DataSource.
+     *
+     * @param offset The offset the new DataSource is expected to be read from
+     *            first.
+     * @return The new DataSource or null if not supported.
+     */
+    public DataSource createView(long offset) {
+        // Empty implementation, interested subclasses should override.
+        return null;
+    }
+
+    /**
+     * Read the data that is available at the current offset without waiting
+     * for the whole buffer to be filled.
+     *
+     * @param buffer The buffer to read into.
+     * @return The number of bytes read or -1 if the end of the source has
+     *         been reached.
+     */
+    public int readAvailable(byte[] buffer) throws IOException {
+        // Default implementation for sources where all data is directly
+        // accessible, interested subclasses should override.
+        long remaining = length() - getCurrentOffset();
+        if (remaining <= 0) {
+            return -1;
+        }
+
+        int size = (int)Math.min(buffer.length, remaining);
+        return readAt(getCurrentOffset(), buffer, size);
+    }
+
     protected long peekLong(byte[] src, int offset) {
         int h = ((src[offset++] & 0xff) << 24) | ((src[offset++] & 0xff) << 16)
                 | ((src[offset++] & 0xff) << 8) | (src[offset++] & 0xff);
@@ -52,6 +52,8 @@ public class DirectDataSource extends DataSource {
 
     private long mLength;
 
+    private boolean mIsView = false;
+
     public DirectDataSource(FileDescriptor fd, long offset, long length) {
         if (LOGS_ENABLED) Log.d(TAG, "Create DirectFDDataSource");
 
@@ -82,6 +84,14 @@ public class DirectDataSource extends DataSource {
         }
     }
 
+    private DirectDataSource(DirectDataSource source) {
+        mFileChannel = source.mFileChannel;
+        mStartOffset = source.mStartOffset;
+        mLength = source.mLength;
+        mCurrentPosition = source.mCurrentPosition;
+        mIsView = true;
+    }
+
     private void setup(FileDescriptor fd, long offset, long length) throws IOException {
         mFis = new FileInputStream(fd);
         mFileChannel = mFis.getChannel();
@@ -91,8 +101,20 @@ public class DirectDataSource extends DataSource {
         mCurrentPosition = mStartOffset;
     }
 
+    @Override
+    public DataSource createView(long offset) {
+        // Reads are positional on the shared FileChannel, the view only
+        // keeps its own current position.
+        return new DirectDataSource(this);
+    }
+
     @Override
     public void close() throws IOException {
+        if (mIsView) {
+            // The FileChannel is owned by the original DataSource
+            return;
+        }
+
         mFileChannel.close();
         mFis.close();
 
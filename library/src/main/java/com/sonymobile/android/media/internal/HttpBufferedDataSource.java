@@ -209,6 +209,48 @@ public class HttpBufferedDataSource extends BufferedDataSource {
         openConnectionsAndStreams();
     }
 
+    @Override
+    public DataSource createView(long offset) {
+        // The new connection takes half of the buffer budget. Only this source
+        // reports buffering, errors on the view surface as failed reads.
+        int bufferSize = mBufferSize / 2;
+        try {
+            HttpBufferedDataSource source = new HttpBufferedDataSource(mUri, offset, -1,
+                    bufferSize, null, mBandwidthEstimator);
+            mBufferSize = bufferSize;
+            if (mBis != null) {
+                mBis.setBufferSize(bufferSize);
+            }
+            return source;
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.e(TAG, "Could not open second connection", e);
+            return null;
+        }
+    }
+
+    /**
+     * Opens a separate connection for a range of the same content, e.g. for
+     * reading the end of a file without moving the read position of this
+     * source.
+     *
+     * @param offset The offset of the range.
+     * @param length The length of the range in bytes.
+     * @return The new DataSource or null if the connection failed.
+     */
+    public DataSource openRange(long offset, long length) {
+        try {
+            return new HttpBufferedDataSource(mUri, offset,
+                    (int)Math.min(length, Integer.MAX_VALUE), -1, null, mBandwidthEstimator);
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.e(TAG, "Could not open range " + offset, e);
+            return null;
+        }
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
     public int getBuffering() {
         int percentage = 0;
         try {
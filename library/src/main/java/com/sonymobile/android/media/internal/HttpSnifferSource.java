@@ -34,6 +34,7 @@ import com.sonymobile.android.media.BandwidthEstimator;
 import com.sonymobile.android.media.MediaError;
 import com.sonymobile.android.media.MediaPlayer;
 import com.sonymobile.android.media.MetaData;
+import com.sonymobile.android.media.RepresentationConstraints;
 import com.sonymobile.android.media.RepresentationSelector;
 import com.sonymobile.android.media.TrackInfo;
 import com.sonymobile.android.media.internal.streaming.mpegdash.DASHSource;
@@ -67,6 +68,8 @@ public class HttpSnifferSource extends MediaSource {
 
     private RepresentationSelector mRepresentationSelector;
 
+    private RepresentationConstraints mRepresentationConstraints;
+
     public HttpSnifferSource(String url, Handler notify, int maxBufferSize) {
         super(notify);
 
@@ -161,6 +164,15 @@ public class HttpSnifferSource extends MediaSource {
         }
     }
 
+    @Override
+    public void setRepresentationConstraints(RepresentationConstraints constraints) {
+        if (mSource != null) {
+            mSource.setRepresentationConstraints(constraints);
+        } else {
+            mRepresentationConstraints = constraints;
+        }
+    }
+
     @Override
     public void selectRepresentations(int trackIndex, Vector<Integer> representations) {
         mSource.selectRepresentations(trackIndex, representations);
@@ -171,6 +183,11 @@ public class HttpSnifferSource extends MediaSource {
         return mSource.getStatistics();
     }
 
+    @Override
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        mSource.setKeyFrameOnly(keyFrameOnly);
+    }
+
     public static boolean canHandle(String url) {
         return url.startsWith("http://") || url.startsWith("https://");
     }
@@ -213,6 +230,8 @@ public class HttpSnifferSource extends MediaSource {
                 if (thiz.mSource != null) {
                     thiz.mSource.setBandwidthEstimator(thiz.mBandwidthEstimator);
                     thiz.mSource.setRepresentationSelector(thiz.mRepresentationSelector);
+                    thiz.mSource.setRepresentationConstraints(thiz.mRepresentationConstraints);
+                    thiz.mSource.setQoEMetricsCollector(thiz.getQoEMetricsCollector());
                     thiz.mSource.prepareAsync();
                 } else {
                     thiz.notifyPrepareFailed(MediaError.UNSUPPORTED);
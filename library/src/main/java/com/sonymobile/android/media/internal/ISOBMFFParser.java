@@ -27,6 +27,9 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import android.media.MediaCodec;
 import android.media.MediaCodec.CryptoInfo;
@@ -42,6 +45,7 @@ import com.sonymobile.android.media.TrackInfo.TrackType;
 import com.sonymobile.android.media.TrackRepresentation;
 import com.sonymobile.android.media.VideoTrackRepresentation;
 import com.sonymobile.android.media.internal.DataSource.DataAvailability;
+import com.sonymobile.android.media.internal.streaming.common.ParseException;
 
 public class ISOBMFFParser extends MediaParser {
 
@@ -267,6 +271,9 @@ public class ISOBMFFParser extends MediaParser {
 
     protected static final int HEVC_NAL_UNIT_TYPE_CRA_PICTURE = 21;
 
+    // sample_is_non_sync_sample bit of the sample flags in 'trex', 'tfhd' and 'trun'
+    protected static final int SAMPLE_FLAG_IS_NON_SYNC_SAMPLE = 0x00010000;
+
     protected static final String UUID_SOMD = "736F6D6489094E5DBE807CA58018263B";
 
     protected IsoTrack mCurrentAudioTrack;
@@ -313,6 +320,14 @@ public class ISOBMFFParser extends MediaParser {
 
     protected boolean mFoundMfra = false;
 
+    // Read position of the first mdat while boxes after it are parsed from a
+    // separate connection.
+    private DataSource mHeadDataSource;
+
+    // Start of the range read by the separate connection. Offsets are
+    // absolute but its length() is the length of the range, not the file.
+    private long mTailOffset;
+
     protected boolean mMdatFound = false;
 
     protected boolean mParsedSencData = false;
@@ -321,6 +336,20 @@ public class ISOBMFFParser extends MediaParser {
 
     protected final ArrayList<IsoTrack> mTracks = new ArrayList<>(2);
 
+    protected volatile boolean mKeyFrameOnly = false;
+
+    protected volatile boolean mResumeAtSyncSample = false;
+
+    // Held for reading while a track is dequeued from and for writing while
+    // the read position or selection of the tracks is changed. Each track is
+    // locked separately and moof parsing, which uses the shared parser
+    // state, is locked on the parser, so tracks can be read in parallel.
+    private final ReentrantReadWriteLock mTrackLock = new ReentrantReadWriteLock();
+
+    // Size of the range requested from the end of the file when looking for
+    // mfra, large enough for mfro and a typical mfra in one request.
+    private static final int TAIL_FETCH_SIZE = 64 * 1024;
+
     private static final int[] ISOBMFF_COMPATIBLE_BRANDS = {
             fourCC('i', 's', 'o', 'm'), fourCC('m', 'p', '4', '1'), fourCC('m', 'p', '4', '2'),
             fourCC('a', 'v', 'c', '1'), fourCC('3', 'g', 'p', '5'), fourCC('h', 'v', 'c', '1')
@@ -367,6 +396,12 @@ public class ISOBMFFParser extends MediaParser {
                     parseOK = false;
                 } else {
                     parseOK = parseBox(nextHeader);
+                    if (parseOK && nextHeader.boxType == BOX_ID_MDAT && mTracks.isEmpty()
+                            && sourceLength != -1 && mCurrentOffset < sourceLength) {
+                        // moov is after mdat. Keep this connection at the
+                        // first sample and read the rest from the tail.
+                        openTailDataSource(mCurrentOffset, sourceLength);
+                    }
                 }
             }
 
@@ -378,6 +413,8 @@ public class ISOBMFFParser extends MediaParser {
 
             if (parseOK && mIsFragmented && !mFoundMfra && sourceLength != -1) {
                 long curOffset = mCurrentOffset;
+                openTailDataSource(Math.max(mCurrentOffset, sourceLength - TAIL_FETCH_SIZE),
+                        sourceLength);
                 // read mfra at end of file
                 mCurrentOffset = sourceLength - 16;
                 nextHeader = getNextBoxHeader();
@@ -385,11 +422,20 @@ public class ISOBMFFParser extends MediaParser {
                     byte[] buffer = new byte[4];
                     mDataSource.readAt(sourceLength - buffer.length, buffer,
                             buffer.length);
-                    int mfraLength = ((buffer[0] & 0xFF) << 24 | (buffer[1] & 0xFF) << 16
-                            | (buffer[2] & 0xFF) << 8 | buffer[3] & 0xFF);
-                    mCurrentOffset = sourceLength - mfraLength;
-                    nextHeader = getNextBoxHeader();
-                    if (nextHeader.boxType == BOX_ID_MFRA) {
+                    long mfraLength = ((buffer[0] & 0xFF) << 24 | (buffer[1] & 0xFF) << 16
+                            | (buffer[2] & 0xFF) << 8 | buffer[3] & 0xFF) & 0xFFFFFFFFL;
+                    long mfraOffset = sourceLength - mfraLength;
+                    if (mHeadDataSource != null && mfraOffset < mTailOffset) {
+                        // mfra is larger than the tail range, request all of
+                        // it or read it from the main connection.
+                        closeTailDataSource();
+                        if (mfraOffset >= curOffset) {
+                            openTailDataSource(mfraOffset, sourceLength);
+                        }
+                    }
+                    mCurrentOffset = mfraOffset;
+                    nextHeader = mfraOffset >= curOffset ? getNextBoxHeader() : null;
+                    if (nextHeader != null && nextHeader.boxType == BOX_ID_MFRA) {
                         parseOK = parseBox(nextHeader);
                     } else {
                         if (LOGS_ENABLED) Log.w(TAG, "No mfra at end of file");
@@ -402,6 +448,8 @@ public class ISOBMFFParser extends MediaParser {
         } catch (IOException e) {
             if (LOGS_ENABLED) Log.e(TAG, "Error parsing content", e);
             return false;
+        } finally {
+            closeTailDataSource();
         }
 
         if (mCurrentVideoTrack != null) {
@@ -431,6 +479,8 @@ public class ISOBMFFParser extends MediaParser {
                 mCurrentSubtitleTrack.buildSampleTable();
             }
 
+            setupTrackDataSources();
+
             long firstOffset = 0;
             if (mIsFragmented) {
                 firstOffset = mFirstMoofOffset;
@@ -474,6 +524,92 @@ public class ISOBMFFParser extends MediaParser {
         return null;
     }
 
+    /**
+     * Continues parsing from a separate connection to the given offset, so
+     * that the current connection is not moved away from the media data.
+     */
+    private void openTailDataSource(long offset, long sourceLength) {
+        if (mHeadDataSource != null || !(mDataSource instanceof HttpBufferedDataSource)) {
+            return;
+        }
+
+        DataSource tailSource =
+                ((HttpBufferedDataSource)mDataSource).openRange(offset, sourceLength - offset);
+        if (tailSource != null) {
+            if (LOGS_ENABLED) Log.d(TAG, "Reading tail from " + offset);
+            mHeadDataSource = mDataSource;
+            mDataSource = tailSource;
+            mTailOffset = offset;
+        }
+    }
+
+    private void closeTailDataSource() {
+        if (mHeadDataSource == null) {
+            return;
+        }
+
+        try {
+            mDataSource.close();
+        } catch (IOException e) {
+        }
+        mDataSource = mHeadDataSource;
+        mHeadDataSource = null;
+    }
+
+    private void setupTrackDataSources() {
+        if (!(mDataSource instanceof HttpBufferedDataSource)) {
+            for (IsoTrack track : mTracks) {
+                track.setDataSource(mDataSource.createView(0));
+            }
+            return;
+        }
+
+        if (mIsFragmented || mCurrentAudioTrack == null || mCurrentVideoTrack == null) {
+            return;
+        }
+
+        // A single connection only waits for data less than a third of the
+        // buffer ahead and reconnects otherwise. If audio and video are
+        // stored further apart than that, give audio a connection of its own.
+        long interleaveDistance = getInterleaveDistance(mCurrentAudioTrack.getSampleTable(),
+                mCurrentVideoTrack.getSampleTable());
+        int bufferSize = ((HttpBufferedDataSource)mDataSource).getBufferSize();
+
+        if (LOGS_ENABLED) Log.d(TAG, "Interleave distance " + interleaveDistance);
+
+        if (bufferSize > 0 && interleaveDistance > bufferSize / 3) {
+            if (LOGS_ENABLED) Log.i(TAG, "Badly interleaved content, using two connections");
+            mCurrentAudioTrack.setDataSource(
+                    mDataSource.createView(mCurrentAudioTrack.getSampleTable().getOffset(0)));
+        }
+    }
+
+    /**
+     * Returns the largest distance in the file between samples of two tracks
+     * that are played at the same time.
+     */
+    private static long getInterleaveDistance(SampleTable first, SampleTable second) {
+        int firstCount = first.getSampleCount();
+        int secondCount = second.getSampleCount();
+        if (firstCount == 0 || secondCount == 0) {
+            return 0;
+        }
+
+        long maxDistance = 0;
+        int j = 0;
+        for (int i = 0; i < firstCount; i++) {
+            long timeUs = first.getTimestampUs(i);
+            while (j + 1 < secondCount && second.getTimestampUs(j + 1) <= timeUs) {
+                j++;
+            }
+            long distance = Math.abs(first.getOffset(i) - second.getOffset(j));
+            if (distance > maxDistance) {
+                maxDistance = distance;
+            }
+        }
+        return maxDistance;
+    }
+
     protected void updateAspectRatio() {
         if (mCurrentVideoTrack != null) {
             MediaFormat videoFormat = mCurrentVideoTrack.getMediaFormat();
@@ -522,20 +658,99 @@ public class ISOBMFFParser extends MediaParser {
     }
 
     @Override
-    public synchronized AccessUnit dequeueAccessUnit(TrackType type) {
-        IsoTrack currentTrack;
+    public AccessUnit dequeueAccessUnit(TrackType type) {
+        mTrackLock.readLock().lock();
+        try {
+            IsoTrack currentTrack;
+
+            if (type == TrackType.AUDIO && mCurrentAudioTrack != null) {
+                currentTrack = mCurrentAudioTrack;
+            } else if (type == TrackType.VIDEO && mCurrentVideoTrack != null) {
+                currentTrack = mCurrentVideoTrack;
+            } else if (type == TrackType.SUBTITLE && mCurrentSubtitleTrack != null) {
+                currentTrack = mCurrentSubtitleTrack;
+            } else {
+                return null;
+            }
 
-        if (type == TrackType.AUDIO && mCurrentAudioTrack != null) {
-            currentTrack = mCurrentAudioTrack;
-        } else if (type == TrackType.VIDEO && mCurrentVideoTrack != null) {
-            currentTrack = mCurrentVideoTrack;
-        } else if (type == TrackType.SUBTITLE && mCurrentSubtitleTrack != null) {
-            currentTrack = mCurrentSubtitleTrack;
+            synchronized (currentTrack) {
+                boolean skipNonSyncSamples = isSkippingNonSyncSamples(type);
+                if (skipNonSyncSamples) {
+                    currentTrack.skipToSyncSample(mIsFragmented);
+                }
+
+                AccessUnit accessUnit = currentTrack.dequeueAccessUnit(mIsFragmented);
+
+                if (skipNonSyncSamples && accessUnit.status == AccessUnit.OK) {
+                    mResumeAtSyncSample = false;
+                }
+
+                return accessUnit;
+            }
+        } finally {
+            mTrackLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        if (mKeyFrameOnly && !keyFrameOnly) {
+            // The decoder has not seen the samples after the last sync sample,
+            // continue skipping until the next one.
+            mResumeAtSyncSample = true;
+        }
+        mKeyFrameOnly = keyFrameOnly;
+    }
+
+    @Override
+    public AccessUnit[] getSyncSamples(TrackType type, long[] timesUs) {
+        mTrackLock.writeLock().lock();
+        try {
+            return getSyncSamplesLocked(type, timesUs);
+        } finally {
+            mTrackLock.writeLock().unlock();
+        }
+    }
+
+    private AccessUnit[] getSyncSamplesLocked(TrackType type, long[] timesUs) {
+        IsoTrack track;
+        if (type == TrackType.AUDIO) {
+            track = mCurrentAudioTrack;
+        } else if (type == TrackType.VIDEO) {
+            track = mCurrentVideoTrack;
         } else {
+            track = mCurrentSubtitleTrack;
+        }
+
+        if (track == null) {
             return null;
         }
 
-        return currentTrack.dequeueAccessUnit(mIsFragmented);
+        AccessUnit[] accessUnits = track.readSyncSamples(timesUs);
+        if (accessUnits != null || !mIsFragmented) {
+            return accessUnits;
+        }
+
+        // No sample table, use the fragment random access info through seek
+        // and take the first sync sample after each seek point.
+        accessUnits = new AccessUnit[timesUs.length];
+        for (int i = 0; i < timesUs.length; i++) {
+            seekTo(timesUs[i]);
+            track.skipToSyncSample(true);
+            AccessUnit accessUnit = track.dequeueAccessUnit(true);
+            if (accessUnit.status != AccessUnit.OK) {
+                // Error, end of stream and no data are shared instances,
+                // leave the entry empty rather than modifying them.
+                continue;
+            }
+            accessUnit.format = track.getMediaFormat();
+            accessUnits[i] = accessUnit;
+        }
+        return accessUnits;
+    }
+
+    protected boolean isSkippingNonSyncSamples(TrackType type) {
+        return type == TrackType.VIDEO && (mKeyFrameOnly || mResumeAtSyncSample);
     }
 
     protected BoxHeader getNextBoxHeader() {
@@ -1011,7 +1226,7 @@ public class ISOBMFFParser extends MediaParser {
                 mDataSource.skipBytes(4); // Skip Default Sample Description Index
                 newTrex.defaultSampleDuration = mDataSource.readInt();
                 newTrex.defaultSampleSize = mDataSource.readInt();
-                mDataSource.skipBytes(4); // Skip Default Sample Flags
+                newTrex.defaultSampleFlags = mDataSource.readInt();
 
                 IsoTrack track = null;
                 int numTracks = mTracks.size();
@@ -1991,8 +2206,15 @@ public class ISOBMFFParser extends MediaParser {
             if ((versionFlags & 0x000001) != 0) {
                 dataOffset = mDataSource.readInt();
             }
+            int firstSampleFlags = 0;
             if ((versionFlags & 0x000004) != 0) {
-                mDataSource.skipBytes(4);
+                firstSampleFlags = mDataSource.readInt();
+            }
+            int defaultSampleFlags = 0;
+            if (mCurrentTrackFragment.defaultSampleFlags != Integer.MIN_VALUE) {
+                defaultSampleFlags = mCurrentTrackFragment.defaultSampleFlags;
+            } else if (mCurrentTrack.getTrex() != null) {
+                defaultSampleFlags = mCurrentTrack.getTrex().defaultSampleFlags;
             }
             long sumSampleSizes = 0;
             for (int i = 0; i < sampleCount; i++) {
@@ -2030,9 +2252,13 @@ public class ISOBMFFParser extends MediaParser {
                         return false;
                     }
                 }
+                int sampleFlags = defaultSampleFlags;
                 if ((versionFlags & 0x000400) != 0) {
-                    mDataSource.skipBytes(4);
+                    sampleFlags = mDataSource.readInt();
+                } else if (i == 0 && (versionFlags & 0x000004) != 0) {
+                    sampleFlags = firstSampleFlags;
                 }
+                sample.isSyncSample = (sampleFlags & SAMPLE_FLAG_IS_NON_SYNC_SAMPLE) == 0;
                 if ((versionFlags & 0x000800) != 0) {
                     sample.compositionTimeOffset = mDataSource.readInt();
                 }
@@ -2107,7 +2333,7 @@ public class ISOBMFFParser extends MediaParser {
                 mCurrentTrackFragment.defaultSampleSize = mDataSource.readInt();
             }
             if ((versionFlags & 0x000020) != 0) {
-                mDataSource.skipBytes(4);
+                mCurrentTrackFragment.defaultSampleFlags = mDataSource.readInt();
             }
 
         } catch (IOException e) {
@@ -2863,6 +3089,8 @@ public class ISOBMFFParser extends MediaParser {
 
         protected ArrayList<SidxEntry> mSidxList = null;
 
+        protected DataSource mTrackDataSource;
+
         public IsoTrack() {
             mMetaData = new MetaDataImpl();
             mSampleTable = new SampleTable();
@@ -2913,6 +3141,108 @@ public class ISOBMFFParser extends MediaParser {
             mTfraList = tfraEntryList;
         }
 
+        /**
+         * Sets a DataSource with its own read position that is used for the
+         * sample data of this track, or null to read through the parser
+         * DataSource.
+         */
+        public void setDataSource(DataSource source) {
+            mTrackDataSource = source;
+        }
+
+        public void releaseDataSource() {
+            if (mTrackDataSource != null) {
+                try {
+                    mTrackDataSource.close();
+                } catch (IOException e) {
+                    if (LOGS_ENABLED) Log.e(TAG, "Exception closing track datasource", e);
+                }
+                mTrackDataSource = null;
+            }
+        }
+
+        /**
+         * Reads sample data. Without a DataSource of its own the track
+         * shares the read position of the parser, so reads are serialized
+         * with moof parsing and the other tracks.
+         */
+        protected int readSampleBytes(long offset, byte[] buffer, int size) throws IOException {
+            if (mTrackDataSource != null) {
+                return mTrackDataSource.readAt(offset, buffer, size);
+            }
+
+            synchronized (ISOBMFFParser.this) {
+                return mDataSource.readAt(offset, buffer, size);
+            }
+        }
+
+        protected boolean isSampleDataAvailable(long offset, int size) throws IOException {
+            if (mTrackDataSource != null) {
+                return isSampleDataAvailable(mTrackDataSource, offset, size);
+            }
+
+            synchronized (ISOBMFFParser.this) {
+                return isSampleDataAvailable(mDataSource, offset, size);
+            }
+        }
+
+        private boolean isSampleDataAvailable(DataSource source, long offset, int size)
+                throws IOException {
+            DataAvailability hasData = source.hasDataAvailable(offset, size);
+            if (hasData == DataAvailability.NOT_AVAILABLE) {
+                source.seek(offset);
+            }
+            return hasData != DataAvailability.IN_FUTURE;
+        }
+
+        public FragmentSample peekFragmentSample() {
+            if (mCurrentFragmentSampleQueue == null) {
+                return null;
+            }
+            return mCurrentFragmentSampleQueue.peekFirst();
+        }
+
+        public void clearFragmentSamples() {
+            if (mCurrentFragmentSampleQueue != null) {
+                mCurrentFragmentSampleQueue.clear();
+            }
+            if (mCurrentCryptoInfoQueue != null) {
+                mCurrentCryptoInfoQueue.clear();
+            }
+        }
+
+        /**
+         * Moves the read position to the next sync sample without reading
+         * the data of the samples in between.
+         */
+        public void skipToSyncSample(boolean readFragmented) {
+            int sampleCount = mSampleTable.getSampleCount();
+            while (mCurrentSampleIndex < sampleCount
+                    && !mSampleTable.isSyncSample(mCurrentSampleIndex)) {
+                mCurrentSampleIndex++;
+            }
+
+            if (!readFragmented || mCurrentSampleIndex < sampleCount) {
+                return;
+            }
+
+            while (fillFragmentQueue() && mCurrentFragmentSampleQueue != null
+                    && !mCurrentFragmentSampleQueue.isEmpty()) {
+                while (!mCurrentFragmentSampleQueue.isEmpty()) {
+                    FragmentSample sample = mCurrentFragmentSampleQueue.peekFirst();
+                    if (sample.isSyncSample) {
+                        return;
+                    }
+
+                    mCurrentFragmentSampleQueue.removeFirst();
+                    mTimeTicks += sample.durationTicks;
+                    if (mCurrentCryptoInfoQueue != null) {
+                        mCurrentCryptoInfoQueue.pollFirst();
+                    }
+                }
+            }
+        }
+
         public AccessUnit dequeueAccessUnit(boolean readFragmented) {
             /*
              * if (LOGS_ENABLED) Log.v(TAG, "dequeueAccessUnit track " +
@@ -2947,22 +3277,37 @@ public class ISOBMFFParser extends MediaParser {
             accessUnit.timeUs = mSampleTable.getTimestampUs(mCurrentSampleIndex)
                     - mEditMediaTimeTicks * 1000000 / mTimeScale;
             accessUnit.durationUs = mSampleTable.getDurationUs(mCurrentSampleIndex);
-            long dataOffset = mSampleTable.getOffset(mCurrentSampleIndex);
-            int dataSize = mSampleTable.getSize(mCurrentSampleIndex);
+            if (!readSampleData(mCurrentSampleIndex, accessUnit)) {
+                accessUnit.status = AccessUnit.ERROR;
+                return accessUnit;
+            }
+            accessUnit.isSyncSample = mSampleTable.isSyncSample(mCurrentSampleIndex);
+
+            mLastTimestampUs = accessUnit.timeUs;
+
+            mCurrentSampleIndex++;
+            return accessUnit;
+        }
+
+        /**
+         * Reads the data of a sample in the sample table into the access unit
+         * and replaces the NAL unit lengths with start codes.
+         */
+        protected boolean readSampleData(int sampleIndex, AccessUnit accessUnit) {
+            long dataOffset = mSampleTable.getOffset(sampleIndex);
+            int dataSize = mSampleTable.getSize(sampleIndex);
             if (accessUnit.data == null || accessUnit.data.length < dataSize) {
                 accessUnit.data = null;
                 accessUnit.data = new byte[dataSize];
             }
             accessUnit.size = dataSize;
             try {
-                if (mDataSource.readAt(dataOffset, accessUnit.data, dataSize) != dataSize) {
-                    accessUnit.status = AccessUnit.ERROR;
-                    return accessUnit;
+                if (readSampleBytes(dataOffset, accessUnit.data, dataSize) != dataSize) {
+                    return false;
                 }
             } catch (IOException e) {
                 if (LOGS_ENABLED) Log.e(TAG, "IOException while reading accessunit from source");
-                accessUnit.status = AccessUnit.ERROR;
-                return accessUnit;
+                return false;
             }
             if (mMediaFormat.getString(MediaFormat.KEY_MIME).equals(MimeType.AVC) ||
                     mMediaFormat.getString(MediaFormat.KEY_MIME).equals(MimeType.HEVC)) {
@@ -2973,16 +3318,14 @@ public class ISOBMFFParser extends MediaParser {
                 // TODO: Support files with nalLengthSize other than 4
                 while (srcOffset < dataSize) {
                     if ((srcOffset + nalLengthSize) > dataSize) {
-                        accessUnit.status = AccessUnit.ERROR;
-                        return accessUnit;
+                        return false;
                     }
                     int nalLength = (accessUnit.data[srcOffset++] & 0xff) << 24
                             | (accessUnit.data[srcOffset++] & 0xff) << 16
                             | (accessUnit.data[srcOffset++] & 0xff) << 8
                             | (accessUnit.data[srcOffset++] & 0xff);
                     if (srcOffset + nalLength > dataSize) {
-                        accessUnit.status = AccessUnit.ERROR;
-                        return accessUnit;
+                        return false;
                     }
                     accessUnit.data[dstOffset++] = 0;
                     accessUnit.data[dstOffset++] = 0;
@@ -2992,12 +3335,55 @@ public class ISOBMFFParser extends MediaParser {
                     dstOffset += nalLength;
                 }
             }
-            accessUnit.isSyncSample = mSampleTable.isSyncSample(mCurrentSampleIndex);
+            return true;
+        }
 
-            mLastTimestampUs = accessUnit.timeUs;
+        /**
+         * Reads the sync samples closest to the given times using the sync
+         * sample index of the sample table. The samples are read in file order
+         * and each sample is only read once.
+         *
+         * @return The access units in the same order as the times, or null if
+         *         the track has no sample table.
+         */
+        public AccessUnit[] readSyncSamples(long[] timesUs) {
+            if (mSampleTable.getSampleCount() == 0) {
+                return null;
+            }
 
-            mCurrentSampleIndex++;
-            return accessUnit;
+            long editTimeUs = mEditMediaTimeTicks * 1000000 / mTimeScale;
+            int[] sampleIndexes = new int[timesUs.length];
+            TreeMap<Long, Integer> samplesByOffset = new TreeMap<>();
+            for (int i = 0; i < timesUs.length; i++) {
+                sampleIndexes[i] = mSampleTable.findNearestSyncSampleIndex(timesUs[i] + editTimeUs);
+                if (sampleIndexes[i] >= 0) {
+                    samplesByOffset.put(mSampleTable.getOffset(sampleIndexes[i]), sampleIndexes[i]);
+                }
+            }
+
+            HashMap<Integer, AccessUnit> accessUnits = new HashMap<>(samplesByOffset.size());
+            for (int sampleIndex : samplesByOffset.values()) {
+                AccessUnit accessUnit = new AccessUnit(AccessUnit.OK);
+                accessUnit.trackIndex = mTrackIndex;
+                accessUnit.timeUs = mSampleTable.getTimestampUs(sampleIndex) - editTimeUs;
+                accessUnit.durationUs = mSampleTable.getDurationUs(sampleIndex);
+                accessUnit.isSyncSample = true;
+                accessUnit.format = mMediaFormat;
+                if (!readSampleData(sampleIndex, accessUnit)) {
+                    accessUnit.status = AccessUnit.ERROR;
+                }
+                accessUnits.put(sampleIndex, accessUnit);
+            }
+
+            AccessUnit[] result = new AccessUnit[timesUs.length];
+            for (int i = 0; i < timesUs.length; i++) {
+                if (sampleIndexes[i] >= 0) {
+                    result[i] = accessUnits.get(sampleIndexes[i]);
+                } else {
+                    result[i] = AccessUnit.ACCESS_UNIT_NO_DATA_AVAILABLE;
+                }
+            }
+            return result;
         }
 
         protected AccessUnit dequeueAccessUnitFragmented() {
@@ -3039,7 +3425,7 @@ public class ISOBMFFParser extends MediaParser {
             }
             accessUnit.size = dataSize;
             try {
-                if (mDataSource.readAt(dataOffset, accessUnit.data, dataSize) != dataSize) {
+                if (readSampleBytes(dataOffset, accessUnit.data, dataSize) != dataSize) {
                     if (LOGS_ENABLED) Log.e(TAG, "could not read sample data");
                     accessUnit.status = AccessUnit.ERROR;
                     return accessUnit;
@@ -3335,29 +3721,30 @@ public class ISOBMFFParser extends MediaParser {
                 }
 
                 FragmentSample sample = mCurrentFragmentSampleQueue.peek();
-                DataAvailability hasData = mDataSource
-                        .hasDataAvailable(sample.dataOffset, sample.size);
-                if (hasData == DataAvailability.NOT_AVAILABLE) {
-                    mDataSource.seek(sample.dataOffset);
-                }
-                return hasData != DataAvailability.IN_FUTURE;
+                return isSampleDataAvailable(sample.dataOffset, sample.size);
             } else {
                 if (mCurrentSampleIndex >= mSampleTable.getSampleCount()) {
                     // End of stream, return true so other tracks can run to
                     // completion
                     return true;
                 }
-                DataAvailability hasData = mDataSource
-                        .hasDataAvailable(mSampleTable.getOffset(mCurrentSampleIndex),
-                                mSampleTable.getSize(mCurrentSampleIndex));
-                if (hasData == DataAvailability.NOT_AVAILABLE) {
-                    mDataSource.seek(mSampleTable.getOffset(mCurrentSampleIndex));
-                }
-                return hasData != DataAvailability.IN_FUTURE;
+                return isSampleDataAvailable(mSampleTable.getOffset(mCurrentSampleIndex),
+                        mSampleTable.getSize(mCurrentSampleIndex));
             }
         }
 
         private boolean fillFragmentQueue() {
+            if (mCurrentFragmentSampleQueue != null && !mCurrentFragmentSampleQueue.isEmpty()) {
+                return true;
+            }
+
+            // Loading a moof uses the shared parser state
+            synchronized (ISOBMFFParser.this) {
+                return fillFragmentQueueLocked();
+            }
+        }
+
+        private boolean fillFragmentQueueLocked() {
             long contentLength = 0;
             try {
                 contentLength = mDataSource.length();
@@ -3494,6 +3881,8 @@ public class ISOBMFFParser extends MediaParser {
         public int defaultSampleDuration = 0;
 
         public int defaultSampleSize = 0;
+
+        public int defaultSampleFlags = 0;
     }
 
     public static class Traf {
@@ -3502,6 +3891,8 @@ public class ISOBMFFParser extends MediaParser {
         public int defaultSampleDuration = Integer.MIN_VALUE;
 
         public int defaultSampleSize = Integer.MIN_VALUE;
+
+        public int defaultSampleFlags = Integer.MIN_VALUE;
     }
 
     public static class FragmentSample {
@@ -3513,8 +3904,11 @@ public class ISOBMFFParser extends MediaParser {
 
         public long dataOffset = 0;
 
+        public boolean isSyncSample = true;
+
         public String toString() {
-            return "offset = " + dataOffset + ", size = " + size + ", duration = " + durationTicks;
+            return "offset = " + dataOffset + ", size = " + size + ", duration = " + durationTicks
+                    + ", sync = " + isSyncSample;
         }
     }
 
@@ -3595,27 +3989,41 @@ public class ISOBMFFParser extends MediaParser {
     }
 
     @Override
-    public synchronized void seekTo(long seekTimeUs) {
-        // Seek video to nearest previous sync sample
-        // Then use timestamp of that sample to seek audio
-
-        long timeUs = seekTimeUs;
-        if (mCurrentVideoTrack != null) {
-            timeUs = mCurrentVideoTrack.seekTo(seekTimeUs, mIsFragmented);
-        }
+    public void seekTo(long seekTimeUs) {
+        mTrackLock.writeLock().lock();
+        try {
+            // Seek video to nearest previous sync sample
+            // Then use timestamp of that sample to seek audio
 
-        if (timeUs >= 0) {
-            if (mCurrentAudioTrack != null) {
-                mCurrentAudioTrack.seekTo(timeUs, mIsFragmented);
+            long timeUs = seekTimeUs;
+            if (mCurrentVideoTrack != null) {
+                timeUs = mCurrentVideoTrack.seekTo(seekTimeUs, mIsFragmented);
             }
-            if (mCurrentSubtitleTrack != null) {
-                mCurrentSubtitleTrack.seekTo(timeUs, mIsFragmented);
+
+            if (timeUs >= 0) {
+                if (mCurrentAudioTrack != null) {
+                    mCurrentAudioTrack.seekTo(timeUs, mIsFragmented);
+                }
+                if (mCurrentSubtitleTrack != null) {
+                    mCurrentSubtitleTrack.seekTo(timeUs, mIsFragmented);
+                }
             }
+        } finally {
+            mTrackLock.writeLock().unlock();
         }
     }
 
     @Override
     public TrackType selectTrack(boolean select, int index) {
+        mTrackLock.writeLock().lock();
+        try {
+            return selectTrackLocked(select, index);
+        } finally {
+            mTrackLock.writeLock().unlock();
+        }
+    }
+
+    private TrackType selectTrackLocked(boolean select, int index) {
         if (index < 0 || index > mTracks.size()) {
             if (LOGS_ENABLED) Log.e(TAG, "Invalid track: " + index);
             return TrackType.UNKNOWN;
@@ -3636,6 +4044,11 @@ public class ISOBMFFParser extends MediaParser {
                 if (mCurrentAudioTrack != null) {
                     mCurrentAudioTrack.releaseSampleTable();
                     timeUs = mCurrentAudioTrack.getLastTimestampUs();
+                    if (track.mTrackDataSource == null) {
+                        // Continue on the connection of the previous track
+                        track.setDataSource(mCurrentAudioTrack.mTrackDataSource);
+                        mCurrentAudioTrack.mTrackDataSource = null;
+                    }
                 } else if (mCurrentVideoTrack != null) {
                     timeUs = mCurrentVideoTrack.getLastTimestampUs();
                 } else if (mCurrentSubtitleTrack != null) {
@@ -3784,17 +4197,28 @@ public class ISOBMFFParser extends MediaParser {
         return moofOffset;
     }
 
-    private static int parseUE(BitReader br) {
-        int leadingZeroBits = 0;
-        while (br.getBits(1) == 0) {
-            leadingZeroBits++;
+    private static void skipScalingList(BitReader br, int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int i = 0; i < size; i++) {
+            if (nextScale != 0) {
+                int deltaScale = br.getSE();
+                nextScale = (lastScale + deltaScale + 256) % 256;
+            }
+            lastScale = nextScale == 0 ? lastScale : nextScale;
         }
-
-        return (1 << leadingZeroBits) - 1 + br.getBits(leadingZeroBits);
     }
 
     protected void parseSPS(byte[] spsData) {
-        BitReader br = new BitReader(spsData);
+        try {
+            parseSPS(new BitReader(spsData, 0, spsData.length, true));
+        } catch (ParseException e) {
+            // Only informative fields are read, the track can still be played
+            if (LOGS_ENABLED) Log.e(TAG, "Malformed SPS", e);
+        }
+    }
+
+    private void parseSPS(BitReader br) {
         br.skipBits(4 * 8); // NAL marker 00 00 00 01
         br.skipBits(3); // NAL Header - forbidden_zero_bit(1) + nal_ref_idc(2)
 
@@ -3808,19 +4232,19 @@ public class ISOBMFFParser extends MediaParser {
         br.skipBits(8); // constraint_set0_flag ... constraint_set5 _flag +
                         // reserved_zero_2bits
         br.getBits(8); // level_idc
-        parseUE(br); // seq_parameter_set_id
+        br.getUE(); // seq_parameter_set_id
 
         if (profile_idc == 100 || profile_idc == 110 ||
                 profile_idc == 122 || profile_idc == 244 || profile_idc == 44 ||
                 profile_idc == 83 || profile_idc == 86 || profile_idc == 118 ||
                 profile_idc == 128 || profile_idc == 138) {
-            int chroma_format_idc = parseUE(br);
+            int chroma_format_idc = br.getUE();
             if (chroma_format_idc == 3) {
                 br.getBits(1); // separate_colour_plane_flag
             }
 
-            parseUE(br); // bit_depth_luma_minus8
-            parseUE(br); // bit_depth_chroma_minus8
+            br.getUE(); // bit_depth_luma_minus8
+            br.getUE(); // bit_depth_chroma_minus8
             br.getBits(1); // qpprime_y_zero_transform_bypass_flag
 
             int seq_scaling_matrix_present_flag = br.getBits(1);
@@ -3831,31 +4255,37 @@ public class ISOBMFFParser extends MediaParser {
                 }
 
                 for (int i = 0; i < nbrScaling; ++i) {
-                    br.getBits(1); // seq_scaling_list_present_flag[ i ]
+                    if (br.getFlag()) { // seq_scaling_list_present_flag[ i ]
+                        skipScalingList(br, i < 6 ? 16 : 64);
+                    }
                 }
             }
         }
 
-        parseUE(br); // log2_max_frame_num_minus4
-        int pic_order_cnt_type = parseUE(br);
+        br.getUE(); // log2_max_frame_num_minus4
+        int pic_order_cnt_type = br.getUE();
         if (pic_order_cnt_type == 0) {
-            parseUE(br); // log2_max_pic_order_cnt_lsb_minus4
+            br.getUE(); // log2_max_pic_order_cnt_lsb_minus4
         } else if (pic_order_cnt_type == 1) {
             br.getBits(1); // delta_pic_order_always_zero_flag
-            parseUE(br); // offset_for_non_ref_pic TODO: parseSE
-            parseUE(br); // offset_for_top_to_bottom_field TODO: parseSE
+            br.getSE(); // offset_for_non_ref_pic
+            br.getSE(); // offset_for_top_to_bottom_field
 
-            int num_ref_frames_in_pic_order_cnt_cycle = parseUE(br);
+            int num_ref_frames_in_pic_order_cnt_cycle = br.getUE();
+            if (num_ref_frames_in_pic_order_cnt_cycle > 255) {
+                throw new ParseException("Invalid num_ref_frames_in_pic_order_cnt_cycle "
+                        + num_ref_frames_in_pic_order_cnt_cycle);
+            }
             for (int i = 0; i < num_ref_frames_in_pic_order_cnt_cycle; ++i) {
-                parseUE(br); // offset_for_ref_frame[ i ] TODO: parseSE
+                br.getSE(); // offset_for_ref_frame[ i ]
             }
         }
 
-        parseUE(br); // max_num_ref_frames
+        br.getUE(); // max_num_ref_frames
         br.getBits(1); // gaps_in_frame_num_value_allowed_flag
 
-        parseUE(br); // pic_width_in_mbs_minus1
-        parseUE(br); // pic_height_in_map_units_minus1
+        br.getUE(); // pic_width_in_mbs_minus1
+        br.getUE(); // pic_height_in_map_units_minus1
         int frame_mbs_only_flag = br.getBits(1);
         if (frame_mbs_only_flag == 0) {
             br.getBits(1); // mb_adaptive_frame_field_flag
@@ -3864,10 +4294,10 @@ public class ISOBMFFParser extends MediaParser {
         br.getBits(1); // direct_8x8_inference_flag
         int frame_cropping_flag = br.getBits(1);
         if (frame_cropping_flag == 1) {
-            parseUE(br); // frame_crop_left_offset
-            parseUE(br); // frame_crop_right_offset
-            parseUE(br); // frame_crop_top_offset
-            parseUE(br); // frame_crop_bottom_offset
+            br.getUE(); // frame_crop_left_offset
+            br.getUE(); // frame_crop_right_offset
+            br.getUE(); // frame_crop_top_offset
+            br.getUE(); // frame_crop_bottom_offset
         }
 
         int vui_parameters_present_flag = br.getBits(1);
@@ -3903,17 +4333,37 @@ public class ISOBMFFParser extends MediaParser {
     }
 
     @Override
-    public synchronized boolean hasDataAvailable(TrackType type) throws IOException {
-        boolean hasData = true;
+    public boolean hasDataAvailable(TrackType type) throws IOException {
+        mTrackLock.readLock().lock();
+        try {
+            IsoTrack currentTrack = null;
 
-        if (type == TrackType.AUDIO && mCurrentAudioTrack != null) {
-            hasData = mCurrentAudioTrack.hasDataAvailable(mIsFragmented);
-        } else if (type == TrackType.VIDEO && mCurrentVideoTrack != null) {
-            hasData = mCurrentVideoTrack.hasDataAvailable(mIsFragmented);
-        } else if (type == TrackType.SUBTITLE && mCurrentSubtitleTrack != null) {
-            hasData = mCurrentSubtitleTrack.hasDataAvailable(mIsFragmented);
+            if (type == TrackType.AUDIO) {
+                currentTrack = mCurrentAudioTrack;
+            } else if (type == TrackType.VIDEO) {
+                currentTrack = mCurrentVideoTrack;
+            } else if (type == TrackType.SUBTITLE) {
+                currentTrack = mCurrentSubtitleTrack;
+            }
+
+            if (currentTrack == null) {
+                return true;
+            }
+
+            synchronized (currentTrack) {
+                return currentTrack.hasDataAvailable(mIsFragmented);
+            }
+        } finally {
+            mTrackLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void release() {
+        for (IsoTrack track : mTracks) {
+            track.releaseDataSource();
         }
 
-        return hasData;
+        super.release();
     }
 }
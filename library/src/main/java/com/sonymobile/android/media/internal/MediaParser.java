@@ -244,6 +244,32 @@ abstract public class MediaParser implements MetaDataParser, MetaData {
      */
     public abstract boolean hasDataAvailable(TrackType type) throws IOException;
 
+    /**
+     * Reads the sync samples closest to the given times without reading the
+     * samples in between, e.g. for creating preview images. The dequeue
+     * position may change, so the parser should not be used for playback at
+     * the same time.
+     *
+     * @param type The type of track to read from.
+     * @param timesUs The times in microseconds to find sync samples for.
+     * @return The access units in the same order as the times, or null if
+     *         not supported by the parser.
+     */
+    public AccessUnit[] getSyncSamples(TrackType type, long[] timesUs) {
+        return null;
+    }
+
+    /**
+     * Sets if only sync samples should be dequeued from the video track. The
+     * data of the skipped samples is not read.
+     *
+     * @param keyFrameOnly true to only dequeue sync samples, false for normal
+     *            playback.
+     */
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        // Empty implementation, interested subclasses should override.
+    }
+
     /**
      * Query the source about how much data is played and buffered
      *
@@ -24,6 +24,7 @@ import android.os.Handler;
 import com.sonymobile.android.media.BandwidthEstimator;
 import com.sonymobile.android.media.MediaPlayer.Statistics;
 import com.sonymobile.android.media.MetaData;
+import com.sonymobile.android.media.RepresentationConstraints;
 import com.sonymobile.android.media.RepresentationSelector;
 import com.sonymobile.android.media.TrackInfo;
 import com.sonymobile.android.media.TrackInfo.TrackType;
@@ -50,6 +51,8 @@ public abstract class MediaSource {
 
     protected boolean mSupportsPreview;
 
+    private QoEMetricsCollector mQoEMetrics;
+
     protected MediaSource(Handler notify) {
         mNotify = notify;
     }
@@ -104,10 +107,22 @@ public abstract class MediaSource {
 
     public abstract void setRepresentationSelector(RepresentationSelector selector);
 
+    public abstract void setRepresentationConstraints(RepresentationConstraints constraints);
+
     public abstract void selectRepresentations(int trackIndex, Vector<Integer> representations);
 
     public abstract Statistics getStatistics();
 
+    public abstract void setKeyFrameOnly(boolean keyFrameOnly);
+
+    public void setQoEMetricsCollector(QoEMetricsCollector collector) {
+        mQoEMetrics = collector;
+    }
+
+    public QoEMetricsCollector getQoEMetricsCollector() {
+        return mQoEMetrics;
+    }
+
     public boolean supportsPreview() {
         return mSupportsPreview;
     }
@@ -39,6 +39,7 @@ import com.sonymobile.android.media.MetaData;
 import com.sonymobile.android.media.TrackInfo;
 import com.sonymobile.android.media.TrackRepresentation;
 import com.sonymobile.android.media.VideoTrackRepresentation;
+import com.sonymobile.android.media.internal.streaming.common.PacketBufferBudget;
 import com.sonymobile.android.media.internal.streaming.common.PacketSource;
 
 import static com.sonymobile.android.media.TrackInfo.TrackType;
@@ -114,6 +115,12 @@ public final class PlatformParser extends MediaParser {
         mPacketSources.put(TrackType.VIDEO, new PacketSource());
         mPacketSources.put(TrackType.SUBTITLE, new PacketSource());
 
+        for (PacketSource packetSource : mPacketSources.values()) {
+            // Not in use until a track is selected, the bitrate is unknown
+            packetSource.setBitrate(0);
+            PacketBufferBudget.getInstance().register(packetSource);
+        }
+
         mEventThread = new HandlerThread("PlatformParser");
         mEventThread.start();
 
@@ -162,6 +169,7 @@ public final class PlatformParser extends MediaParser {
                     if (mSelectedTracks[TrackType.VIDEO.ordinal()] == -1) {
                         mSelectedTracks[TrackType.VIDEO.ordinal()] = i;
                         mExtractor.selectTrack(i);
+                        mPacketSources.get(TrackType.VIDEO).setBitrate(-1);
 
                         if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
                             if (format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) >
@@ -187,6 +195,7 @@ public final class PlatformParser extends MediaParser {
                     if (mSelectedTracks[TrackType.AUDIO.ordinal()] == -1) {
                         mSelectedTracks[TrackType.AUDIO.ordinal()] = i;
                         mExtractor.selectTrack(i);
+                        mPacketSources.get(TrackType.AUDIO).setBitrate(-1);
 
                         if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
                             if (format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) >
@@ -361,6 +370,7 @@ public final class PlatformParser extends MediaParser {
             }
             mSelectedTracks[type.ordinal()] = index;
             mExtractor.selectTrack(index);
+            mPacketSources.get(type).setBitrate(-1);
         } else {
             if (mSelectedTracks[type.ordinal()] == -1) {
                 if (LOGS_ENABLED) Log.w(TAG, "Track " + index + " is not selected");
@@ -369,6 +379,7 @@ public final class PlatformParser extends MediaParser {
 
             mSelectedTracks[type.ordinal()] = -1;
             mExtractor.unselectTrack(index);
+            mPacketSources.get(type).setBitrate(0);
         }
 
         mPacketSources.get(type).clear();
@@ -416,6 +427,25 @@ public final class PlatformParser extends MediaParser {
         return false;
     }
 
+    /**
+     * Returns the number of bytes to buffer, the smaller of the max buffer
+     * size and the share of the PacketBufferBudget of the selected tracks.
+     */
+    private long getBufferSizeLimit() {
+        long budgetSize = 0;
+        for (PacketSource packetSource : mPacketSources.values()) {
+            long size = packetSource.getMaxBufferSize();
+            if (size > 0) {
+                budgetSize += size;
+            }
+        }
+
+        if (budgetSize > 0 && budgetSize < mMaxBufferSize) {
+            return budgetSize;
+        }
+        return mMaxBufferSize;
+    }
+
     private long getCurrentBufferedSize() {
         return mPacketSources.get(TrackType.AUDIO).getBufferSize() +
         mPacketSources.get(TrackType.VIDEO).getBufferSize() +
@@ -443,6 +473,10 @@ public final class PlatformParser extends MediaParser {
     @Override
     public void release() {
         mEventThread.quit();
+
+        for (PacketSource packetSource : mPacketSources.values()) {
+            PacketBufferBudget.getInstance().unregister(packetSource);
+        }
     }
 
     private void onSeek(long seekTimeUs) {
@@ -457,8 +491,9 @@ public final class PlatformParser extends MediaParser {
 
     private void onReadData() {
         long currentBufferedSize = getCurrentBufferedSize();
+        long bufferSizeLimit = getBufferSizeLimit();
 
-        while (!mEOS && currentBufferedSize < mMaxBufferSize) {
+        while (!mEOS && currentBufferedSize < bufferSizeLimit) {
             try {
                 int sampleSize = mExtractor.readSampleData(mInputBuffer, 0);
 
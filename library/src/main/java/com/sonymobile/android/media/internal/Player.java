@@ -40,6 +40,8 @@ import com.sonymobile.android.media.BandwidthEstimator;
 import com.sonymobile.android.media.MediaError;
 import com.sonymobile.android.media.MediaPlayer.Statistics;
 import com.sonymobile.android.media.MetaData;
+import com.sonymobile.android.media.QoEMetrics;
+import com.sonymobile.android.media.RepresentationConstraints;
 import com.sonymobile.android.media.RepresentationSelector;
 import com.sonymobile.android.media.SubtitleData;
 import com.sonymobile.android.media.TrackInfo;
@@ -100,12 +102,16 @@ public final class Player {
 
     private static final int MSG_GET_STATISTICS = 22;
 
+    private static final int MSG_SET_KEY_FRAME_ONLY = 23;
+
     private static final int MSG_SET_VIDEO_SCALING_MODE = 24;
 
     private static final int MSG_WAIT_FOR_VIDEO_READY_TO_RENDER = 25;
 
     public static final int MSG_DRM_NOTIFY = 26;
 
+    private static final int MSG_SET_REPRESENTATION_CONSTRAINTS = 27;
+
     public static final int NOTIFY_PREPARED = 1;
 
     public static final int NOTIFY_ERROR = 3;
@@ -130,6 +136,8 @@ public final class Player {
 
     public static final int NOTIFY_BUFFERING_UPDATE = 13;
 
+    public static final int NOTIFY_QOE_METRICS_UPDATE = 14;
+
     private static final int DEFAULT_SEEK_DELAY_MS = 200;
 
     private AudioThread mAudioThread;
@@ -172,6 +180,8 @@ public final class Player {
 
     private RepresentationSelector mRepresentationSelector;
 
+    private RepresentationConstraints mRepresentationConstraints;
+
     private int mAudioSessionId = 0;
 
     private DrmSession mDrmSession;
@@ -216,6 +226,8 @@ public final class Player {
 
     private final HandlerHelper mHandlerHelper;
 
+    private final QoEMetricsCollector mQoEMetrics;
+
     public Player(Handler callbackListener, Context context, int audioSessionId) {
         mContext = context;
 
@@ -236,6 +248,8 @@ public final class Player {
         mCallbacks = callbackListener;
 
         mHandlerHelper = new HandlerHelper();
+
+        mQoEMetrics = new QoEMetricsCollector(callbackListener);
     }
 
     public void setSurface(Surface surface) {
@@ -373,6 +387,7 @@ public final class Player {
                 mSubtitleThread.flush();
             }
 
+            mQoEMetrics.onSeek();
             mSource.seekTo(msec * 1000L);
 
             if (mVideoThread == null && mAudioThread == null) {
@@ -444,6 +459,11 @@ public final class Player {
         mEventHandler.obtainMessage(MSG_SET_REPRESENTATION_SELECTOR, selector).sendToTarget();
     }
 
+    public void setRepresentationConstraints(RepresentationConstraints constraints) {
+        mEventHandler.obtainMessage(MSG_SET_REPRESENTATION_CONSTRAINTS, constraints)
+                .sendToTarget();
+    }
+
     public int getAudioSessionId() {
         Object reply = mHandlerHelper.sendMessageAndAwaitResponse(mEventHandler
                 .obtainMessage(MSG_GET_AUDIO_SESSION_ID));
@@ -460,6 +480,11 @@ public final class Player {
         mEventHandler.obtainMessage(MSG_SET_SPEED, speed).sendToTarget();
     }
 
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        mEventHandler.obtainMessage(MSG_SET_KEY_FRAME_ONLY, keyFrameOnly ? 1 : 0, 0)
+                .sendToTarget();
+    }
+
     public Statistics getStatistics() {
         Object reply = mHandlerHelper.sendMessageAndAwaitResponse(mEventHandler
                 .obtainMessage(MSG_GET_STATISTICS));
@@ -470,6 +495,10 @@ public final class Player {
         return null;
     }
 
+    public QoEMetrics getQoEMetrics() {
+        return mQoEMetrics.getMetrics();
+    }
+
     public void setVideoScalingMode(int mode) {
         mEventHandler.obtainMessage(MSG_SET_VIDEO_SCALING_MODE, mode, 0).sendToTarget();
     }
@@ -531,6 +560,7 @@ public final class Player {
                     if (msg.obj != null) {
                         thiz.mPrepareHandler = (Handler)msg.obj;
                     }
+                    thiz.mQoEMetrics.reset();
                     if (thiz.mDataSourceFd != null) {
                         try {
                             thiz.mSource = new SimpleSource(thiz.mDataSourceFd, thiz.mDataSourceOffset,
@@ -565,6 +595,9 @@ public final class Player {
                     } else {
                         thiz.mSource.setBandwidthEstimator(thiz.mBandwidthEstimator);
                         thiz.mSource.setRepresentationSelector(thiz.mRepresentationSelector);
+                        thiz.mSource.setRepresentationConstraints(
+                                thiz.mRepresentationConstraints);
+                        thiz.mSource.setQoEMetricsCollector(thiz.mQoEMetrics);
                         thiz.mSource.prepareAsync();
                     }
 
@@ -613,6 +646,7 @@ public final class Player {
                                         thiz.mSurface, thiz.mClockSource, thiz.mEventHandler,
                                         thiz.mDrmSession, thiz.mVideoScalingMode,
                                         thiz.mCustomVideoMediaFormatParams);
+                                thiz.mVideoThread.setQoEMetricsCollector(thiz.mQoEMetrics);
 
                                 if (thiz.mVideoWidth != 0 || thiz.mVideoHeight != 0) {
                                     // We have already found a video size,
@@ -707,6 +741,7 @@ public final class Player {
                     break;
                 }
                 case MSG_START:
+                    thiz.mQoEMetrics.onStart();
                     thiz.mSource.start();
                     thiz.mEventHandler.obtainMessage(MSG_SCAN_SOURCES).sendToTarget();
                     thiz.mVideoCompleted = false;
@@ -908,6 +943,14 @@ public final class Player {
                         thiz.mSource.setRepresentationSelector((RepresentationSelector)msg.obj);
                     }
                     break;
+                case MSG_SET_REPRESENTATION_CONSTRAINTS:
+                    if (thiz.mSource == null) {
+                        thiz.mRepresentationConstraints = (RepresentationConstraints)msg.obj;
+                    } else {
+                        thiz.mSource.setRepresentationConstraints(
+                                (RepresentationConstraints)msg.obj);
+                    }
+                    break;
                 case MSG_GET_AUDIO_SESSION_ID: {
                     int audioSessionId = thiz.mAudioSessionId;
                     if (thiz.mAudioThread != null) {
@@ -928,6 +971,11 @@ public final class Player {
                     }
                     thiz.mPlaybackSpeed = (Float)msg.obj;
                     break;
+                case MSG_SET_KEY_FRAME_ONLY:
+                    if (thiz.mSource != null) {
+                        thiz.mSource.setKeyFrameOnly(msg.arg1 == 1);
+                    }
+                    break;
                 case MSG_GET_STATISTICS: {
                     Statistics statistics = thiz.mSource.getStatistics();
                     Handler replyHandler = (Handler)msg.obj;
@@ -1031,6 +1079,7 @@ public final class Player {
                             thiz.mSeekPositionMs = -1;
                             break;
                         case Codec.CODEC_VIDEO_RENDERING_START:
+                            thiz.mQoEMetrics.onPlaybackStarted();
                             if (thiz.mCallbacks != null) {
                                 thiz.mCallbacks.obtainMessage(NOTIFY_VIDEO_RENDERING_START)
                                         .sendToTarget();
@@ -1077,9 +1126,15 @@ public final class Player {
                             thiz.onError(msg.arg2);
                             break;
                         case MediaSource.SOURCE_BUFFERING_START:
+                            thiz.mQoEMetrics.onBufferingStart();
                             thiz.mCallbacks.obtainMessage(NOTIFY_BUFFERING_START).sendToTarget();
                             break;
                         case MediaSource.SOURCE_BUFFERING_END:
+                            thiz.mQoEMetrics.onBufferingEnd();
+                            if (thiz.mSource.getSelectedTrackIndex(TrackType.VIDEO) == -1) {
+                                // Audio only, playback starts when buffered
+                                thiz.mQoEMetrics.onPlaybackStarted();
+                            }
                             thiz.mCallbacks.obtainMessage(NOTIFY_BUFFERING_END).sendToTarget();
                             break;
                         case MediaSource.SOURCE_CHANGE_SUBTITLE:
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.sonymobile.android.media.BandwidthEstimator;
+import com.sonymobile.android.media.QoEMetrics;
+import com.sonymobile.android.media.QoEMetrics.RepresentationSwitch;
+import com.sonymobile.android.media.QoEMetrics.Segment;
+import com.sonymobile.android.media.TrackInfo.TrackType;
+
+/**
+ * Collects the quality of experience metrics of a Player. Events are
+ * reported from the player, codec and download threads and only update a
+ * few counters, so collection is always on. Listeners are notified through
+ * the callback handler, with at most one notification pending at a time.
+ */
+public final class QoEMetricsCollector {
+
+    private static final int MAX_SWITCHES = 50;
+
+    private static final int MAX_SEGMENTS = 100;
+
+    // Buffering starting this soon after a seek is caused by the seek.
+    private static final long SEEK_BUFFERING_TIME_MS = 1000;
+
+    private final Handler mCallbacks;
+
+    private long mStartTimeMs = -1;
+
+    private long mStartupTimeMs = -1;
+
+    private int mRebufferCount;
+
+    private long mRebufferDurationMs;
+
+    private long mRebufferStartTimeMs = -1;
+
+    private long mSeekTimeMs = -1;
+
+    private int mDroppedFrames;
+
+    private String mRepresentationId;
+
+    private final ArrayDeque<RepresentationSwitch> mSwitches = new ArrayDeque<>();
+
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+
+    public QoEMetricsCollector(Handler callbacks) {
+        mCallbacks = callbacks;
+    }
+
+    /**
+     * Clears the metrics before a new data source is prepared.
+     */
+    public synchronized void reset() {
+        mStartTimeMs = -1;
+        mStartupTimeMs = -1;
+        mRebufferCount = 0;
+        mRebufferDurationMs = 0;
+        mRebufferStartTimeMs = -1;
+        mSeekTimeMs = -1;
+        mDroppedFrames = 0;
+        mRepresentationId = null;
+        mSwitches.clear();
+        mSegments.clear();
+    }
+
+    public synchronized void onStart() {
+        if (mStartTimeMs < 0) {
+            mStartTimeMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Called when the first video frame has been rendered, or for audio only
+     * content when the initial buffering has ended.
+     */
+    public synchronized void onPlaybackStarted() {
+        if (mStartTimeMs >= 0 && mStartupTimeMs < 0) {
+            mStartupTimeMs = SystemClock.elapsedRealtime() - mStartTimeMs;
+            notifyUpdate();
+        }
+    }
+
+    public synchronized void onSeek() {
+        long nowMs = SystemClock.elapsedRealtime();
+        endRebuffer(nowMs);
+        mSeekTimeMs = nowMs;
+    }
+
+    public synchronized void onBufferingStart() {
+        long nowMs = SystemClock.elapsedRealtime();
+        if (mStartupTimeMs < 0 || mRebufferStartTimeMs >= 0
+                || (mSeekTimeMs >= 0 && nowMs - mSeekTimeMs < SEEK_BUFFERING_TIME_MS)) {
+            return;
+        }
+
+        mRebufferStartTimeMs = nowMs;
+        mRebufferCount++;
+        notifyUpdate();
+    }
+
+    public synchronized void onBufferingEnd() {
+        if (endRebuffer(SystemClock.elapsedRealtime())) {
+            notifyUpdate();
+        }
+    }
+
+    public synchronized void onFrameDropped() {
+        mDroppedFrames++;
+    }
+
+    /**
+     * Records a switch of video representation. Nothing is recorded if the
+     * representation is the same as the last one.
+     */
+    public synchronized void onRepresentationSwitch(String id, int bandwidth, int width,
+            int height) {
+        if (id != null && id.equals(mRepresentationId)) {
+            return;
+        }
+
+        mRepresentationId = id;
+        if (mSwitches.size() == MAX_SWITCHES) {
+            mSwitches.removeFirst();
+        }
+        mSwitches.add(new RepresentationSwitch(SystemClock.elapsedRealtime(), id, bandwidth,
+                width, height));
+        notifyUpdate();
+    }
+
+    /**
+     * Returns a BandwidthEstimator recording the download of a segment that
+     * forwards all calls to estimator. The request time is taken now. The
+     * segment is recorded by onSegmentClosed().
+     */
+    public BandwidthEstimator createSegmentRecorder(TrackType type, String uri, int bandwidth,
+            BandwidthEstimator estimator) {
+        return new SegmentRecorder(type, uri, bandwidth, estimator);
+    }
+
+    /**
+     * Records the download of a segment opened with a BandwidthEstimator from
+     * createSegmentRecorder(), with the uri of the host that served it. Called
+     * when the source is closed, also for downloads that were abandoned or
+     * failed. A download is only recorded once.
+     */
+    public void onSegmentClosed(DataSource source) {
+        BandwidthEstimator estimator = source.getBandwidthEstimator();
+        if (estimator instanceof SegmentRecorder) {
+            ((SegmentRecorder)estimator).record(source.getUri());
+        }
+    }
+
+    public synchronized QoEMetrics getMetrics() {
+        long rebufferDurationMs = mRebufferDurationMs;
+        if (mRebufferStartTimeMs >= 0) {
+            rebufferDurationMs += SystemClock.elapsedRealtime() - mRebufferStartTimeMs;
+        }
+
+        return new QoEMetrics(mStartupTimeMs, mRebufferCount, rebufferDurationMs,
+                mDroppedFrames, new ArrayList<>(mSwitches), new ArrayList<>(mSegments));
+    }
+
+    private synchronized void onSegmentDownloaded(Segment segment) {
+        if (mSegments.size() == MAX_SEGMENTS) {
+            mSegments.removeFirst();
+        }
+        mSegments.add(segment);
+        notifyUpdate();
+    }
+
+    private boolean endRebuffer(long nowMs) {
+        if (mRebufferStartTimeMs < 0) {
+            return false;
+        }
+
+        mRebufferDurationMs += nowMs - mRebufferStartTimeMs;
+        mRebufferStartTimeMs = -1;
+        return true;
+    }
+
+    private void notifyUpdate() {
+        if (mCallbacks != null && !mCallbacks.hasMessages(Player.NOTIFY_QOE_METRICS_UPDATE)) {
+            mCallbacks.obtainMessage(Player.NOTIFY_QOE_METRICS_UPDATE).sendToTarget();
+        }
+    }
+
+    /**
+     * Measures one segment download. The BandwidthEstimator calls are made
+     * from the thread downloading the segment, record() from the thread
+     * closing it.
+     */
+    private class SegmentRecorder implements BandwidthEstimator {
+
+        private final TrackType mType;
+
+        private final String mUri;
+
+        private final int mBandwidth;
+
+        private final BandwidthEstimator mEstimator;
+
+        private final long mRequestTimeMs;
+
+        private volatile long mFirstByteTimeMs = -1;
+
+        private volatile long mLastByteTimeMs = -1;
+
+        private volatile long mByteCount = 0;
+
+        private boolean mRecorded = false;
+
+        SegmentRecorder(TrackType type, String uri, int bandwidth, BandwidthEstimator estimator) {
+            mType = type;
+            mUri = uri;
+            mBandwidth = bandwidth;
+            mEstimator = estimator;
+            mRequestTimeMs = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public long getEstimatedBandwidth() {
+            return mEstimator != null ? mEstimator.getEstimatedBandwidth() : 0;
+        }
+
+        @Override
+        public void onDataTransferStarted() {
+            mLastByteTimeMs = -1;
+            if (mEstimator != null) {
+                mEstimator.onDataTransferStarted();
+            }
+        }
+
+        @Override
+        public void onDataTransferEnded() {
+            mLastByteTimeMs = SystemClock.elapsedRealtime();
+            if (mEstimator != null) {
+                mEstimator.onDataTransferEnded();
+            }
+        }
+
+        @Override
+        public void onDataTransferred(long byteCount) {
+            if (mFirstByteTimeMs < 0) {
+                mFirstByteTimeMs = SystemClock.elapsedRealtime();
+            }
+            mByteCount += byteCount;
+            if (mEstimator != null) {
+                mEstimator.onDataTransferred(byteCount);
+            }
+        }
+
+        /**
+         * Records the segment with the uri it was downloaded from, or the
+         * requested uri if not known. A transfer that has not ended is
+         * recorded with the data received so far.
+         */
+        synchronized void record(String uri) {
+            if (mRecorded) {
+                return;
+            }
+            mRecorded = true;
+
+            long endTimeMs = mLastByteTimeMs >= 0 ? mLastByteTimeMs
+                    : SystemClock.elapsedRealtime();
+            onSegmentDownloaded(new Segment(mType, uri != null ? uri : mUri, mBandwidth,
+                    mByteCount, mFirstByteTimeMs >= 0 ? mFirstByteTimeMs - mRequestTimeMs : -1,
+                    endTimeMs - mRequestTimeMs));
+        }
+    }
+}
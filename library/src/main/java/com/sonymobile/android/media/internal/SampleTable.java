@@ -58,6 +58,8 @@ class SampleTable {
 
     private long[] mSampleDurationUs;
 
+    private int[] mSyncSampleIndex;
+
     public SampleTable() {
 
     }
@@ -360,6 +362,7 @@ class SampleTable {
         mSampleIsSyncSample = null;
         mSampleTimestampUs = null;
         mSampleDurationUs = null;
+        mSyncSampleIndex = null;
     }
 
     public int getSampleCount() {
@@ -388,6 +391,52 @@ class SampleTable {
         return latestSyncSampleIndex;
     }
 
+    /**
+     * Finds the sync sample with the timestamp closest to the given time.
+     *
+     * @param timeUs The time to search for.
+     * @return The index of the sync sample or -1 if there are no sync samples.
+     */
+    public int findNearestSyncSampleIndex(long timeUs) {
+        if (mSyncSampleIndex == null) {
+            int syncSampleCount = 0;
+            for (int i = 0; i < mSampleCount; i++) {
+                if (mSampleIsSyncSample[i]) {
+                    syncSampleCount++;
+                }
+            }
+            mSyncSampleIndex = new int[syncSampleCount];
+            int j = 0;
+            for (int i = 0; i < mSampleCount; i++) {
+                if (mSampleIsSyncSample[i]) {
+                    mSyncSampleIndex[j++] = i;
+                }
+            }
+        }
+
+        if (mSyncSampleIndex.length == 0) {
+            return -1;
+        }
+
+        int low = 0;
+        int high = mSyncSampleIndex.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mSampleTimestampUs[mSyncSampleIndex[mid]] < timeUs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        if (low > 0 && timeUs - mSampleTimestampUs[mSyncSampleIndex[low - 1]]
+                < Math.abs(mSampleTimestampUs[mSyncSampleIndex[low]] - timeUs)) {
+            low--;
+        }
+
+        return mSyncSampleIndex[low];
+    }
+
     public long getTimeOfSample(int sampleIndex) {
         if (sampleIndex < mSampleCount) {
             return mSampleTimestampUs[sampleIndex];
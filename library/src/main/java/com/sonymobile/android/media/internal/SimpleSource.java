@@ -34,6 +34,7 @@ import com.sonymobile.android.media.BandwidthEstimator;
 import com.sonymobile.android.media.MediaError;
 import com.sonymobile.android.media.MediaPlayer.Statistics;
 import com.sonymobile.android.media.MetaData;
+import com.sonymobile.android.media.RepresentationConstraints;
 import com.sonymobile.android.media.RepresentationSelector;
 import com.sonymobile.android.media.TrackInfo;
 import com.sonymobile.android.media.TrackInfo.TrackType;
@@ -243,6 +244,11 @@ public final class SimpleSource extends MediaSource {
         // Not supported
     }
 
+    @Override
+    public void setRepresentationConstraints(RepresentationConstraints constraints) {
+        // Not supported
+    }
+
     @Override
     public void selectRepresentations(int trackIndex, Vector<Integer> representations) {
         // Not supported
@@ -254,6 +260,13 @@ public final class SimpleSource extends MediaSource {
         return null;
     }
 
+    @Override
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        if (mMediaParser != null) {
+            mMediaParser.setKeyFrameOnly(keyFrameOnly);
+        }
+    }
+
     private void onPrepareAsync(HttpURLConnection urlConnection) {
         if (mMediaParser == null) {
             try {
@@ -779,7 +779,7 @@ public class VUParser extends ISOBMFFParser {
             }
             accessUnit.size = dataSize;
             try {
-                if (mDataSource.readAt(dataOffset, accessUnit.data, dataSize) != dataSize) {
+                if (readSampleBytes(dataOffset, accessUnit.data, dataSize) != dataSize) {
                     accessUnit.status = AccessUnit.ERROR;
                     return accessUnit;
                 }
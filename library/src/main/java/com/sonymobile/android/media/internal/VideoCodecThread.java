@@ -26,6 +26,10 @@ public abstract class VideoCodecThread extends CodecThread {
         // Interested subclasses should override.
     }
 
+    public void setQoEMetricsCollector(QoEMetricsCollector collector) {
+        // Interested subclasses should override.
+    }
+
     public abstract void seek();
 
     public abstract void start();
@@ -128,6 +128,8 @@ public final class VideoThread extends VideoCodecThread {
 
     private int mNumDroppedFrames = 0;
 
+    private volatile QoEMetricsCollector mQoEMetrics;
+
     private boolean mVideoRenderingStarted = false;
 
     private boolean mDequeueInputErrorFlag = false;
@@ -187,6 +189,11 @@ public final class VideoThread extends VideoCodecThread {
         mHeight = height;
     }
 
+    @Override
+    public void setQoEMetricsCollector(QoEMetricsCollector collector) {
+        mQoEMetrics = collector;
+    }
+
     @Override
     public void seek() {
         // we were likely paused to perform the seek but as we are seeking,
@@ -660,6 +667,7 @@ public final class VideoThread extends VideoCodecThread {
                     } else {
                         // Already late... throw it away and dequeue
                         // again!
+                        onFrameDropped();
                         if (LOGS_ENABLED) Log.w(TAG, "Frame dropped in Dequeue! ("
                                 + (++mNumDroppedFrames)
                                 + ") #(" + mNumRenderFrames + ") is too late with: "
@@ -732,6 +740,13 @@ public final class VideoThread extends VideoCodecThread {
                 SystemClock.uptimeMillis() + delayMs);
     }
 
+    private void onFrameDropped() {
+        QoEMetricsCollector collector = mQoEMetrics;
+        if (collector != null) {
+            collector.onFrameDropped();
+        }
+    }
+
     private void doRender() {
         synchronized (mRenderingLock) {
             if (mStarted) {
@@ -789,6 +804,7 @@ public final class VideoThread extends VideoCodecThread {
 
                 try {
                     if (delayMs < LATE_FRAME_TIME_MS) {
+                        onFrameDropped();
                         if (LOGS_ENABLED) Log.w(TAG, "Frame dropped! (" +
                                 (++mNumDroppedFrames) + ") #("
                                 + mNumRenderFrames + ") is too late with: " +
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media.internal.streaming.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.sonymobile.android.media.BandwidthEstimator;
+import com.sonymobile.android.media.internal.Configuration;
+import com.sonymobile.android.media.internal.DataSource;
+
+/**
+ * Selects between alternative base URLs serving the same content, e.g. on
+ * different CDNs. Each host is scored from the connection latency and
+ * throughput of the requests sent to it and requests go to the host expected
+ * to deliver a segment the fastest. A request that fails is retried on the
+ * next host right away and the failing host is avoided for a while.
+ */
+public final class BaseURLSelector {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "BaseURLSelector";
+
+    // Segment size used to weigh latency against throughput.
+    private static final long TYPICAL_SEGMENT_SIZE = 512 * 1024;
+
+    private static final long FAILURE_PENALTY_TIME_MS = 30000;
+
+    private static final double SAMPLE_WEIGHT = 0.3;
+
+    // Each list holds base URLs for the same content, the primary first.
+    private final ArrayList<ArrayList<String>> mAlternatives = new ArrayList<>();
+
+    private final HashMap<String, HostScore> mScores = new HashMap<>();
+
+    private static class HostScore {
+        double latencyMs = -1;
+
+        double bytesPerMs = -1;
+
+        long failureTimeMs = -1;
+    }
+
+    /**
+     * Adds an alternative for a base URL.
+     *
+     * @param baseURL The base URL used by the MPD.
+     * @param alternativeBaseURL A base URL serving the same content.
+     */
+    public synchronized void addAlternative(String baseURL, String alternativeBaseURL) {
+        if (baseURL.equals(alternativeBaseURL)) {
+            return;
+        }
+
+        for (ArrayList<String> alternatives : mAlternatives) {
+            if (alternatives.get(0).equals(baseURL)) {
+                if (!alternatives.contains(alternativeBaseURL)) {
+                    alternatives.add(alternativeBaseURL);
+                }
+                return;
+            }
+        }
+
+        ArrayList<String> alternatives = new ArrayList<>();
+        alternatives.add(baseURL);
+        alternatives.add(alternativeBaseURL);
+        mAlternatives.add(alternatives);
+    }
+
+    /**
+     * Opens a DataSource for a uri on the best host serving it, trying the
+     * other hosts if the request fails.
+     *
+     * @param uri The uri as given by the MPD.
+     * @param offset The offset of the range or -1 for the beginning.
+     * @param length The length of the range or -1 for all.
+     * @param bandwidthEstimator The BandwidthEstimator to use for the download.
+     * @return The DataSource.
+     * @throws IOException if the request failed on all hosts.
+     */
+    public DataSource open(String uri, long offset, int length,
+            BandwidthEstimator bandwidthEstimator) throws IOException {
+        IOException lastException = null;
+        for (String candidate : getCandidates(uri)) {
+            String host = getHost(candidate);
+            long startTimeMs = SystemClock.elapsedRealtime();
+            try {
+                DataSource source = DataSource.create(candidate, offset, length,
+                        new HostBandwidthEstimator(host, bandwidthEstimator), true);
+                onConnected(host, SystemClock.elapsedRealtime() - startTimeMs);
+                return source;
+            } catch (IOException e) {
+                if (LOGS_ENABLED) Log.w(TAG, "Request to " + host + " failed", e);
+                onFailure(host);
+                lastException = e;
+            }
+        }
+        throw lastException;
+    }
+
+    /**
+     * Returns the uris serving the same content as uri, best host first.
+     */
+    synchronized ArrayList<String> getCandidates(String uri) {
+        ArrayList<String> candidates = new ArrayList<>();
+
+        ArrayList<String> matchingAlternatives = null;
+        String matchingBaseURL = null;
+        for (ArrayList<String> alternatives : mAlternatives) {
+            for (String baseURL : alternatives) {
+                if (uri.startsWith(baseURL) && (matchingBaseURL == null
+                        || baseURL.length() > matchingBaseURL.length())) {
+                    matchingAlternatives = alternatives;
+                    matchingBaseURL = baseURL;
+                }
+            }
+        }
+
+        if (matchingAlternatives == null) {
+            candidates.add(uri);
+            return candidates;
+        }
+
+        String path = uri.substring(matchingBaseURL.length());
+        for (String baseURL : matchingAlternatives) {
+            candidates.add(baseURL + path);
+        }
+
+        final long nowMs = SystemClock.elapsedRealtime();
+        final HashMap<String, Double> costs = new HashMap<>();
+        for (String candidate : candidates) {
+            costs.put(candidate, getCost(getHost(candidate), nowMs));
+        }
+        // Stable, hosts with equal cost keep the MPD order
+        Collections.sort(candidates, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return Double.compare(costs.get(lhs), costs.get(rhs));
+            }
+        });
+
+        return candidates;
+    }
+
+    /**
+     * Returns the expected time in ms to download a segment from a host.
+     * Hosts that have not been used yet cost nothing so that every host is
+     * tried once.
+     */
+    private double getCost(String host, long nowMs) {
+        HostScore score = mScores.get(host);
+        if (score == null) {
+            return 0;
+        }
+
+        if (score.failureTimeMs >= 0 && nowMs - score.failureTimeMs < FAILURE_PENALTY_TIME_MS) {
+            return Double.MAX_VALUE;
+        }
+
+        double cost = Math.max(score.latencyMs, 0);
+        if (score.bytesPerMs > 0) {
+            cost += TYPICAL_SEGMENT_SIZE / score.bytesPerMs;
+        }
+        return cost;
+    }
+
+    private synchronized void onConnected(String host, long latencyMs) {
+        HostScore score = getScore(host);
+        score.latencyMs = score.latencyMs < 0 ? latencyMs
+                : score.latencyMs + SAMPLE_WEIGHT * (latencyMs - score.latencyMs);
+        score.failureTimeMs = -1;
+    }
+
+    private synchronized void onTransfer(String host, long byteCount, long durationMs) {
+        if (durationMs <= 0 || byteCount <= 0) {
+            return;
+        }
+
+        HostScore score = getScore(host);
+        double bytesPerMs = (double)byteCount / durationMs;
+        score.bytesPerMs = score.bytesPerMs < 0 ? bytesPerMs
+                : score.bytesPerMs + SAMPLE_WEIGHT * (bytesPerMs - score.bytesPerMs);
+    }
+
+    private synchronized void onFailure(String host) {
+        getScore(host).failureTimeMs = SystemClock.elapsedRealtime();
+    }
+
+    private HostScore getScore(String host) {
+        HostScore score = mScores.get(host);
+        if (score == null) {
+            score = new HostScore();
+            mScores.put(host, score);
+        }
+        return score;
+    }
+
+    private static String getHost(String uri) {
+        int start = uri.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = uri.indexOf('/', start);
+        return end < 0 ? uri.substring(start) : uri.substring(start, end);
+    }
+
+    /**
+     * Forwards to the session BandwidthEstimator and measures the throughput
+     * of one transfer from a host.
+     */
+    private class HostBandwidthEstimator implements BandwidthEstimator {
+
+        private final String mHost;
+
+        private final BandwidthEstimator mEstimator;
+
+        private long mStartTimeMs = -1;
+
+        private long mByteCount = 0;
+
+        HostBandwidthEstimator(String host, BandwidthEstimator estimator) {
+            mHost = host;
+            mEstimator = estimator;
+        }
+
+        @Override
+        public long getEstimatedBandwidth() {
+            return mEstimator != null ? mEstimator.getEstimatedBandwidth() : 0;
+        }
+
+        @Override
+        public void onDataTransferStarted() {
+            mStartTimeMs = SystemClock.elapsedRealtime();
+            mByteCount = 0;
+            if (mEstimator != null) {
+                mEstimator.onDataTransferStarted();
+            }
+        }
+
+        @Override
+        public void onDataTransferEnded() {
+            if (mStartTimeMs >= 0) {
+                onTransfer(mHost, mByteCount, SystemClock.elapsedRealtime() - mStartTimeMs);
+                mStartTimeMs = -1;
+            }
+            if (mEstimator != null) {
+                mEstimator.onDataTransferEnded();
+            }
+        }
+
+        @Override
+        public void onDataTransferred(long byteCount) {
+            mByteCount += byteCount;
+            if (mEstimator != null) {
+                mEstimator.onDataTransferred(byteCount);
+            }
+        }
+    }
+}
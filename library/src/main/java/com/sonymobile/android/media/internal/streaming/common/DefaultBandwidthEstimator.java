@@ -16,152 +16,260 @@
 
 package com.sonymobile.android.media.internal.streaming.common;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import android.util.Log;
 
-import com.sonymobile.android.media.BandwidthEstimator;
+import com.sonymobile.android.media.AbandonedTransferBandwidthEstimator;
 import com.sonymobile.android.media.internal.Configuration;
 
-public class DefaultBandwidthEstimator implements BandwidthEstimator {
+/**
+ * BandwidthEstimator measuring the throughput of all transfers together, in
+ * bits per second. Time to first byte is measured separately and not counted
+ * as transfer time. Throughput samples are taken while at least one transfer
+ * is receiving data. Finished samples are stored in a lock-free ring that
+ * getEstimatedBandwidth() reads without locking. The sample being measured
+ * and the number of receiving transfers are guarded by mSampleLock. The
+ * estimate is the lower of a time-decayed EWMA and a sliding median over the
+ * samples. An abandoned segment download is added as one sample, also when
+ * it received too little data to be sampled otherwise.
+ */
+public class DefaultBandwidthEstimator implements AbandonedTransferBandwidthEstimator {
 
     private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
 
     private static final String TAG = "DefaultBandwidthEstimator";
 
-    private final ArrayList<BandWidthMeasureItem> mBandWidthMeasure;
+    private static final int MAX_SAMPLES = 32;
+
+    private static final long SAMPLE_INTERVAL_US = 500000;
+
+    private static final long MIN_SAMPLE_BYTES = 8 * 1024;
+
+    private static final double FAST_HALF_LIFE_US = 2000000;
+
+    private static final double SLOW_HALF_LIFE_US = 8000000;
+
+    private final AtomicReferenceArray<Sample> mSamples = new AtomicReferenceArray<>(MAX_SAMPLES);
+
+    private final AtomicLong mNextSample = new AtomicLong();
 
-    private final Object mBandWidthMeasureLock = new Object();
+    private final Object mSampleLock = new Object();
 
-    private long mOnDataTransferStartedTimeUs = -1;
+    private int mReceivingTransfers = 0;
 
-    private long mAccumulatedTransferredData = -1;
+    private long mSampleStartTimeUs = -1;
 
-    private double mEstimatedBandwidth = 0;
+    private long mSampleBytes = 0;
 
-    private double mLatestBandwidthEntry;
+    private final AtomicLong mTimeToFirstByteUs = new AtomicLong();
+
+    private final ThreadLocal<Transfer> mTransfer = new ThreadLocal<>();
 
     public DefaultBandwidthEstimator() {
-        mBandWidthMeasure = new ArrayList<>();
     }
 
     @Override
     public void onDataTransferStarted() {
-        mOnDataTransferStartedTimeUs = System.nanoTime() / 1000;
-        mAccumulatedTransferredData = 0;
+        // Each transfer is run on its own downloader thread
+        Transfer transfer = mTransfer.get();
+        if (transfer == null) {
+            transfer = new Transfer();
+            mTransfer.set(transfer);
+        } else if (transfer.receiving) {
+            onDataTransferEnded();
+        }
+
+        transfer.startTimeUs = System.nanoTime() / 1000;
+        transfer.receiving = false;
     }
 
     @Override
     public void onDataTransferEnded() {
-        checkBandwidthDrop();
-        if (mOnDataTransferStartedTimeUs > 0 && mAccumulatedTransferredData > 0) {
-            long endTimeUs = System.nanoTime() / 1000;
-            addBandWidthMeasure(endTimeUs - mOnDataTransferStartedTimeUs,
-                    mAccumulatedTransferredData);
+        Transfer transfer = mTransfer.get();
+        if (transfer == null || !transfer.receiving) {
+            return;
+        }
+        transfer.receiving = false;
+
+        synchronized (mSampleLock) {
+            if (--mReceivingTransfers == 0) {
+                if (mSampleStartTimeUs > 0) {
+                    addSample(mSampleBytes, System.nanoTime() / 1000 - mSampleStartTimeUs);
+                }
+                mSampleStartTimeUs = -1;
+                mSampleBytes = 0;
+            }
         }
-        mOnDataTransferStartedTimeUs = -1;
-        mAccumulatedTransferredData = 0;
     }
 
     @Override
     public void onDataTransferred(long byteCount) {
-        mAccumulatedTransferredData += byteCount;
+        Transfer transfer = mTransfer.get();
+        boolean firstData = transfer != null && !transfer.receiving;
+        long nowUs;
+
+        synchronized (mSampleLock) {
+            nowUs = System.nanoTime() / 1000;
+            if (firstData && mReceivingTransfers++ == 0) {
+                // The first read is not timed, its data arrived before nowUs
+                mSampleBytes = 0;
+                mSampleStartTimeUs = nowUs;
+            } else {
+                mSampleBytes += byteCount;
+
+                // Split long transfers into several samples
+                if (mSampleStartTimeUs > 0 && nowUs - mSampleStartTimeUs >= SAMPLE_INTERVAL_US) {
+                    addSample(mSampleBytes, nowUs - mSampleStartTimeUs);
+                    mSampleBytes = 0;
+                    mSampleStartTimeUs = nowUs;
+                }
+            }
+        }
+
+        if (firstData) {
+            transfer.receiving = true;
+            updateTimeToFirstByte(nowUs - transfer.startTimeUs);
+        }
     }
 
-    void addBandWidthMeasure(long durationUs, long bytes) {
-        synchronized (mBandWidthMeasureLock) {
-            mBandWidthMeasure.add(new BandWidthMeasureItem(durationUs, bytes, System
-                    .currentTimeMillis()));
-
-            int itemsToRemove = mBandWidthMeasure.size() - 5;
-            if (itemsToRemove > 0) {
-                Iterator<BandWidthMeasureItem> iter = mBandWidthMeasure.iterator();
-                int j = 0;
-                while (j < itemsToRemove && iter.hasNext()) {
-                    iter.next();
-                    iter.remove();
-                    j++;
-                }
+    @Override
+    public void onDataTransferAbandoned(long byteCount, long durationUs) {
+        if (durationUs <= 0) {
+            return;
+        }
+
+        if (LOGS_ENABLED) Log.v(TAG, "Abandoned transfer of " + byteCount + " bytes in "
+                + durationUs + " us");
+        storeSample(new Sample(byteCount * 8E6 / durationUs, byteCount, durationUs));
+    }
+
+    @Override
+    public long getEstimatedBandwidth() {
+        long next = mNextSample.get();
+        int count = (int)Math.min(next, MAX_SAMPLES);
+        if (count == 0) {
+            // No data yet!
+            return 0;
+        }
+
+        Sample[] samples = new Sample[count];
+        int valid = 0;
+        for (long i = next - count; i < next; i++) {
+            Sample sample = mSamples.get((int)(i % MAX_SAMPLES));
+            if (sample != null) {
+                samples[valid++] = sample;
             }
         }
+
+        double fastEstimate = getDecayedAverage(samples, valid, FAST_HALF_LIFE_US);
+        double slowEstimate = getDecayedAverage(samples, valid, SLOW_HALF_LIFE_US);
+        double median = getWeightedMedian(samples, valid);
+
+        long estimate = (long)Math.min(Math.min(fastEstimate, slowEstimate), median);
+
+        if (LOGS_ENABLED) Log.v(TAG, "Estimated bandwidth " + estimate + " (fast "
+                + (long)fastEstimate + ", slow " + (long)slowEstimate + ", median "
+                + (long)median + "), time to first byte " + mTimeToFirstByteUs.get() + " us");
+
+        return estimate;
     }
 
-    private static class BandWidthMeasureItem {
+    /**
+     * Returns the average time from the start of a transfer until its first
+     * data is received, in microseconds.
+     */
+    public long getTimeToFirstByteUs() {
+        return mTimeToFirstByteUs.get();
+    }
 
-        private BandWidthMeasureItem(long durationUs, long bytes, long wallTimeMs) {
-            mWallTimeMs = wallTimeMs;
-            mDownloadDurationUs = durationUs;
-            mBytes = bytes;
+    void addSample(long bytes, long durationUs) {
+        if (bytes < MIN_SAMPLE_BYTES || durationUs <= 0) {
+            return;
         }
 
-        private long mWallTimeMs = 0;
+        storeSample(new Sample(bytes * 8E6 / durationUs, bytes, durationUs));
+    }
 
-        private long mDownloadDurationUs = 0;
+    private void storeSample(Sample sample) {
+        mSamples.set((int)(mNextSample.getAndIncrement() % MAX_SAMPLES), sample);
+    }
 
-        private long mBytes = 0;
+    private void updateTimeToFirstByte(long timeUs) {
+        long previous;
+        long updated;
+        do {
+            previous = mTimeToFirstByteUs.get();
+            updated = previous == 0 ? timeUs : (previous * 3 + timeUs) / 4;
+        } while (!mTimeToFirstByteUs.compareAndSet(previous, updated));
     }
 
-    @Override
-    public long getEstimatedBandwidth() {
-        // TODO: Check this algorithm. It has just been ported from our native
-        // implementation.
-        long totWeighting = 0;
-        long totbandwidth = 0;
-        synchronized (mBandWidthMeasureLock) {
-            int length = mBandWidthMeasure.size();
-            if (length == 0) {
-                // No data yet!
-                return 0;
-            }
+    /**
+     * EWMA where each sample is weighted by its duration, so that the
+     * estimate decays with transfer time rather than with the number of
+     * samples.
+     */
+    private static double getDecayedAverage(Sample[] samples, int count, double halfLifeUs) {
+        double estimate = 0;
+        double totalWeight = 0;
+        for (int i = 0; i < count; i++) {
+            double alpha = Math.pow(0.5, samples[i].durationUs / halfLifeUs);
+            estimate = alpha * estimate + (1 - alpha) * samples[i].bitsPerSecond;
+            totalWeight = alpha * totalWeight + (1 - alpha);
+        }
+        // Remove the bias towards the zero initial value
+        return totalWeight > 0 ? estimate / totalWeight : 0;
+    }
 
-            for (int i = 0; i < length; i++) {
-                BandWidthMeasureItem item = mBandWidthMeasure.get(i);
-                long weighting = (item.mWallTimeMs - mBandWidthMeasure.get(0).mWallTimeMs) / 20000;
-                if (weighting == 0) {
-                    weighting = 1;
-                } else if (weighting > 20) {
-                    weighting = 20;
-                }
+    /**
+     * Median of the samples weighted by the square root of their sizes, so
+     * that small transfers do not dominate.
+     */
+    private static double getWeightedMedian(Sample[] samples, int count) {
+        Sample[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+
+        double totalWeight = 0;
+        for (int i = 0; i < count; i++) {
+            totalWeight += Math.sqrt(sorted[i].bytes);
+        }
 
-                totbandwidth += weighting * ((double)item.mBytes * 8E6 / item.mDownloadDurationUs);
-                totWeighting += weighting;
+        double weight = 0;
+        for (int i = 0; i < count; i++) {
+            weight += Math.sqrt(sorted[i].bytes);
+            if (weight >= totalWeight / 2) {
+                return sorted[i].bitsPerSecond;
             }
         }
+        return count > 0 ? sorted[count - 1].bitsPerSecond : 0;
+    }
 
-        mEstimatedBandwidth = ((double)totbandwidth / (double)totWeighting);
+    private static class Transfer {
 
-        return (long)mEstimatedBandwidth;
+        private long startTimeUs;
+
+        private boolean receiving;
     }
 
+    private static class Sample implements Comparable<Sample> {
 
-    private void checkBandwidthDrop() {
+        private final double bitsPerSecond;
 
-        double currentBps = mAccumulatedTransferredData * 8E6 /
-                ((System.nanoTime() / 1000) - mOnDataTransferStartedTimeUs);
+        private final long bytes;
 
-        double latestBandwidthEntry = mLatestBandwidthEntry;
-        mLatestBandwidthEntry = currentBps;
+        private final long durationUs;
 
-        if ((mEstimatedBandwidth / 4) > currentBps) {
+        private Sample(double bitsPerSecond, long bytes, long durationUs) {
+            this.bitsPerSecond = bitsPerSecond;
+            this.bytes = bytes;
+            this.durationUs = durationUs;
+        }
 
-            if (LOGS_ENABLED) Log.i(TAG,
-                    "Bandwidth dropped by over 75%, clearing earlier measurements");
-            synchronized (mBandWidthMeasureLock) {
-                while (mBandWidthMeasure.size() > 1) {
-                    mBandWidthMeasure.remove(0);
-                }
-            }
-        } else if ((mEstimatedBandwidth / 3) >
-                ((currentBps + latestBandwidthEntry) / 2)) {
-            if (LOGS_ENABLED) Log.i(TAG,
-                    "Last two bandwidth measurements dropped by over 67%, clearing "
-                            + "earlier measurements");
-            synchronized (mBandWidthMeasureLock) {
-                while (mBandWidthMeasure.size() > 1) {
-                    mBandWidthMeasure.remove(0);
-                }
-            }
+        @Override
+        public int compareTo(Sample another) {
+            return Double.compare(bitsPerSecond, another.bitsPerSecond);
         }
     }
 }
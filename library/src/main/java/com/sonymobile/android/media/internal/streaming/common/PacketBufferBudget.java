@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media.internal.streaming.common;
+
+import java.util.ArrayList;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.sonymobile.android.media.internal.Configuration;
+
+/**
+ * Process wide memory budget for the access units buffered in PacketSources.
+ * Registered PacketSources share the budget in proportion to their bitrates,
+ * whichever player they belong to. Producers check the share of a source
+ * before buffering more data in it. Registered SegmentCaches share a fixed
+ * part of the budget and evict segments to stay within it, so that they never
+ * crowd out the PacketSources. Each source may buffer at least a few segments
+ * of media. The budget is reduced when the system asks the process to trim
+ * memory and restored some time after the last request.
+ */
+public final class PacketBufferBudget implements ComponentCallbacks2 {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "PacketBufferBudget";
+
+    // Bitrate used for sources with unknown bitrate.
+    private static final int DEFAULT_BITRATE = 1000000;
+
+    private static final long TRIM_RECOVERY_TIME_MS = 60000;
+
+    // Part of the budget shared by the SegmentCaches.
+    private static final int CACHE_BUDGET_PERCENT = 25;
+
+    // Media every source may buffer regardless of the budget, a few segments.
+    private static final long MIN_BUFFER_DURATION_US = 10000000;
+
+    private static final PacketBufferBudget sInstance = new PacketBufferBudget(
+            Configuration.PACKET_BUFFER_MEMORY_BUDGET);
+
+    private static boolean sComponentCallbacksRegistered = false;
+
+    private final ArrayList<PacketSource> mSources = new ArrayList<>();
+
+    private final ArrayList<SegmentCache> mCaches = new ArrayList<>();
+
+    private final long mBudget;
+
+    private int mTrimPercent = 100;
+
+    private long mTrimTimeMs;
+
+    private PacketBufferBudget(long budget) {
+        mBudget = budget;
+    }
+
+    public static PacketBufferBudget getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Registers the budget for memory trim callbacks of the application. Only
+     * the first call has any effect.
+     */
+    public static synchronized void registerComponentCallbacks(Context context) {
+        if (!sComponentCallbacksRegistered && context != null) {
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+            sComponentCallbacksRegistered = true;
+        }
+    }
+
+    public synchronized void register(PacketSource source) {
+        if (!mSources.contains(source)) {
+            mSources.add(source);
+        }
+    }
+
+    public synchronized void unregister(PacketSource source) {
+        mSources.remove(source);
+    }
+
+    public synchronized void register(SegmentCache cache) {
+        if (!mCaches.contains(cache)) {
+            mCaches.add(cache);
+        }
+    }
+
+    public synchronized void unregister(SegmentCache cache) {
+        mCaches.remove(cache);
+    }
+
+    /**
+     * Returns the number of bytes a source may buffer, or -1 if the source is
+     * not registered or not in use.
+     */
+    public synchronized long getMaxBufferSize(PacketSource source) {
+        int weight = getWeight(source);
+        if (weight == 0 || !mSources.contains(source)) {
+            return -1;
+        }
+
+        long totalWeight = 0;
+        for (PacketSource registeredSource : mSources) {
+            totalWeight += getWeight(registeredSource);
+        }
+
+        long sourcesBudget = getBudget() * (100 - CACHE_BUDGET_PERCENT) / 100;
+        long minSize = weight * MIN_BUFFER_DURATION_US / 8000000L;
+        return Math.max(sourcesBudget * weight / totalWeight, minSize);
+    }
+
+    /**
+     * Returns the number of bytes a cache may keep in memory, or -1 if the
+     * cache is not registered.
+     */
+    public synchronized long getMaxCacheSize(SegmentCache cache) {
+        if (!mCaches.contains(cache)) {
+            return -1;
+        }
+
+        return getBudget() * CACHE_BUDGET_PERCENT / 100 / mCaches.size();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        int percent;
+        if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            percent = 25;
+        } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW) {
+            percent = 50;
+        } else if (level == TRIM_MEMORY_UI_HIDDEN) {
+            return;
+        } else {
+            percent = 75;
+        }
+
+        trim(percent);
+    }
+
+    @Override
+    public void onLowMemory() {
+        trim(25);
+    }
+
+    @Override
+    public void onConfigurationChanged(android.content.res.Configuration newConfig) {
+    }
+
+    private void trim(int percent) {
+        ArrayList<SegmentCache> caches;
+        synchronized (this) {
+            if (LOGS_ENABLED) Log.i(TAG, "Trimming buffer budget to " + percent + "%");
+            // Let an expired trim recover before applying the new one
+            getBudget();
+            mTrimPercent = Math.min(mTrimPercent, percent);
+            mTrimTimeMs = SystemClock.elapsedRealtime();
+            caches = new ArrayList<>(mCaches);
+        }
+
+        // The caches ask for their share with their own lock held
+        for (SegmentCache cache : caches) {
+            cache.trimMemory();
+        }
+    }
+
+    private long getBudget() {
+        if (mTrimPercent < 100
+                && SystemClock.elapsedRealtime() - mTrimTimeMs > TRIM_RECOVERY_TIME_MS) {
+            if (LOGS_ENABLED) Log.i(TAG, "Restoring buffer budget");
+            mTrimPercent = 100;
+        }
+        return mBudget * mTrimPercent / 100;
+    }
+
+    private static int getWeight(PacketSource source) {
+        int bitrate = source.getBitrate();
+        return bitrate < 0 ? DEFAULT_BITRATE : bitrate;
+    }
+}
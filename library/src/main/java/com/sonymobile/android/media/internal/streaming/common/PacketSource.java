@@ -17,6 +17,8 @@
 package com.sonymobile.android.media.internal.streaming.common;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
 
 import android.media.MediaFormat;
 
@@ -32,16 +34,32 @@ public class PacketSource {
 
     private long mBufferDataSize;
 
+    // Set on the session thread and read by the fetchers through the budget
+    private volatile int mBitrate = -1;
+
+    // Access units replacing the buffered ones, queued until they can be
+    // spliced in at a sync sample. Null when no replacement is in progress.
+    private ArrayList<AccessUnit> mReplacement;
+
+    private long mReplacementTimeUs;
+
+    private long mReplacedEndTimeUs;
+
     public synchronized void queueAccessUnit(AccessUnit accessUnit) {
 
         if (mClosed) {
             return;
         }
 
-        mBuffer.add(accessUnit);
         if (accessUnit.data != null) {
             mBufferDataSize += accessUnit.data.length;
         }
+
+        if (mReplacement != null) {
+            queueReplacementAccessUnit(accessUnit);
+        } else {
+            mBuffer.add(accessUnit);
+        }
     }
 
     public synchronized AccessUnit dequeueAccessUnit() {
@@ -69,6 +87,15 @@ public class PacketSource {
             return 0;
         }
 
+        if (mReplacement != null) {
+            // Only the part that is not being replaced counts
+            long endTimeUs = mReplacementTimeUs;
+            for (AccessUnit accessUnit : mReplacement) {
+                endTimeUs = Math.max(endTimeUs, accessUnit.timeUs);
+            }
+            return Math.max(endTimeUs - mBuffer.getFirst().timeUs, 0);
+        }
+
         if (mBuffer.size() == 1) {
             return mBuffer.getLast().durationUs;
         }
@@ -85,9 +112,344 @@ public class PacketSource {
         return -1;
     }
 
+    /**
+     * Returns the time of the last buffered sync sample at or before timeUs,
+     * or -1 if there is none.
+     */
+    public synchronized long findSyncSampleTimeUs(long timeUs) {
+        long syncSampleTimeUs = -1;
+        for (AccessUnit accessUnit : mBuffer) {
+            if (accessUnit.status == AccessUnit.OK && accessUnit.isSyncSample
+                    && accessUnit.timeUs <= timeUs && accessUnit.timeUs > syncSampleTimeUs) {
+                syncSampleTimeUs = accessUnit.timeUs;
+            }
+        }
+        return syncSampleTimeUs;
+    }
+
+    /**
+     * Checks if the buffer holds all media from startTimeUs to endTimeUs.
+     */
+    public synchronized boolean isBuffered(long startTimeUs, long endTimeUs) {
+        long firstTimeUs = Long.MAX_VALUE;
+        long lastTimeUs = -1;
+        for (AccessUnit accessUnit : mBuffer) {
+            if (accessUnit.status == AccessUnit.OK) {
+                firstTimeUs = Math.min(firstTimeUs, accessUnit.timeUs);
+                lastTimeUs = Math.max(lastTimeUs, accessUnit.timeUs + accessUnit.durationUs);
+            }
+        }
+        return firstTimeUs <= startTimeUs && lastTimeUs >= endTimeUs;
+    }
+
+    /**
+     * Drops the buffered access units before timeUs, so that the next access
+     * unit dequeued is the first one at or after it, or the one containing it
+     * when syncSamplesOnly is false. With syncSamplesOnly set, dropping stops
+     * at the first sync sample at or after timeUs. The last format change
+     * dropped and the codec specific data following it are kept.
+     */
+    public synchronized void discardBefore(long timeUs, boolean syncSamplesOnly) {
+        ArrayList<AccessUnit> formatChange = new ArrayList<>();
+        Iterator<AccessUnit> iterator = mBuffer.iterator();
+        while (iterator.hasNext()) {
+            AccessUnit accessUnit = iterator.next();
+            if (accessUnit.status == AccessUnit.OK && accessUnit.timeUs < 0) {
+                // Codec specific data, belongs to the preceding format change
+                if (!formatChange.isEmpty()) {
+                    formatChange.add(accessUnit);
+                } else if (accessUnit.data != null) {
+                    mBufferDataSize -= accessUnit.data.length;
+                }
+            } else if (accessUnit.status == AccessUnit.OK) {
+                boolean keep;
+                if (syncSamplesOnly) {
+                    keep = accessUnit.isSyncSample && accessUnit.timeUs >= timeUs;
+                } else {
+                    keep = accessUnit.timeUs >= timeUs
+                            || accessUnit.timeUs + accessUnit.durationUs > timeUs;
+                }
+                if (keep) {
+                    break;
+                }
+                if (accessUnit.data != null) {
+                    mBufferDataSize -= accessUnit.data.length;
+                }
+            } else if (accessUnit.status == AccessUnit.FORMAT_CHANGED) {
+                for (AccessUnit csd : formatChange) {
+                    if (csd.data != null) {
+                        mBufferDataSize -= csd.data.length;
+                    }
+                }
+                formatChange.clear();
+                formatChange.add(accessUnit);
+            } else {
+                break;
+            }
+            iterator.remove();
+        }
+
+        for (int i = formatChange.size() - 1; i >= 0; i--) {
+            mBuffer.addFirst(formatChange.get(i));
+        }
+    }
+
+    /**
+     * Seeks within the buffered access units if they cover timeUs for the
+     * selected video and audio tracks. Playback continues from the last video
+     * sync sample before timeUs and the access units before it are dropped
+     * from all sources. The sources are locked, in the order video, audio,
+     * subtitle, from the check until the access units have been dropped.
+     *
+     * @return The time playback continues from, or -1 if the selected tracks
+     *         are not buffered at timeUs.
+     */
+    public static long seekInBuffer(long timeUs, PacketSource video, boolean videoSelected,
+            PacketSource audio, boolean audioSelected, PacketSource subtitle) {
+        synchronized (video) {
+            synchronized (audio) {
+                synchronized (subtitle) {
+                    long seekTimeUs = timeUs;
+                    if (videoSelected) {
+                        seekTimeUs = video.findSyncSampleTimeUs(timeUs);
+                        if (seekTimeUs < 0 || !video.isBuffered(seekTimeUs, timeUs)) {
+                            return -1;
+                        }
+                    }
+
+                    if (audioSelected && !audio.isBuffered(seekTimeUs, timeUs)) {
+                        return -1;
+                    }
+
+                    video.discardBefore(seekTimeUs, true);
+                    audio.discardBefore(seekTimeUs, false);
+                    subtitle.discardBefore(seekTimeUs, false);
+                    return seekTimeUs;
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts replacing the buffered access units from the first sync sample
+     * at or after timeUs, e.g. with a higher quality version. Access units
+     * queued from now on are held back until one of them is a sync sample
+     * at the time of a buffered sync sample, or at the end of the buffered
+     * access units. The buffered access units from there are then dropped and
+     * the held back ones queued in their place, starting with the format
+     * change and codec specific data.
+     *
+     * @return The time from which access units are replaced, or -1 if there
+     *         is no buffered sync sample at or after timeUs.
+     */
+    public synchronized long startReplacement(long timeUs) {
+        long replacementTimeUs = -1;
+        long endTimeUs = -1;
+        for (AccessUnit accessUnit : mBuffer) {
+            if (accessUnit.status != AccessUnit.OK || accessUnit.timeUs < 0) {
+                continue;
+            }
+            if (replacementTimeUs < 0 && accessUnit.isSyncSample && accessUnit.timeUs >= timeUs) {
+                replacementTimeUs = accessUnit.timeUs;
+            }
+            endTimeUs = Math.max(endTimeUs, accessUnit.timeUs + accessUnit.durationUs);
+        }
+
+        if (replacementTimeUs >= 0) {
+            mReplacement = new ArrayList<>();
+            mReplacementTimeUs = replacementTimeUs;
+            mReplacedEndTimeUs = endTimeUs;
+        }
+        return replacementTimeUs;
+    }
+
+    private void queueReplacementAccessUnit(AccessUnit accessUnit) {
+        int keepFrom = -1;
+        if (accessUnit.status == AccessUnit.OK && accessUnit.timeUs >= 0
+                && accessUnit.isSyncSample) {
+            keepFrom = spliceReplacement(accessUnit.timeUs);
+        }
+
+        if (keepFrom >= 0) {
+            for (int i = 0; i < mReplacement.size(); i++) {
+                AccessUnit replacement = mReplacement.get(i);
+                if (i >= keepFrom || replacement.status == AccessUnit.FORMAT_CHANGED
+                        || replacement.timeUs < 0) {
+                    mBuffer.add(replacement);
+                } else if (replacement.data != null) {
+                    // Already buffered in the replaced version
+                    mBufferDataSize -= replacement.data.length;
+                }
+            }
+            mReplacement = null;
+            mBuffer.add(accessUnit);
+        } else if (accessUnit.status != AccessUnit.OK
+                && accessUnit.status != AccessUnit.FORMAT_CHANGED) {
+            // The replacement ended before it could be spliced in
+            for (AccessUnit replacement : mReplacement) {
+                if (replacement.data != null) {
+                    mBufferDataSize -= replacement.data.length;
+                }
+            }
+            mReplacement = null;
+            mBuffer.add(accessUnit);
+        } else {
+            mReplacement.add(accessUnit);
+        }
+    }
+
+    /**
+     * Drops the buffered access units from the sync sample at timeUs, if
+     * buffered, so that the replacement can continue at timeUs.
+     *
+     * @return The index of the first held back access unit to queue in
+     *         addition to format changes and codec specific data, or -1 if
+     *         the replacement can not be spliced in at timeUs.
+     */
+    private int spliceReplacement(long timeUs) {
+        if (timeUs < mReplacementTimeUs) {
+            return -1;
+        }
+
+        if (timeUs >= mReplacedEndTimeUs) {
+            // Everything buffered is played before the replacement
+            return spliceReplacementAtEnd();
+        }
+
+        for (AccessUnit accessUnit : mBuffer) {
+            if (accessUnit.status == AccessUnit.OK && accessUnit.isSyncSample
+                    && accessUnit.timeUs == timeUs) {
+                dropFrom(accessUnit);
+                return mReplacement.size();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Splices in the replacement after the buffered access units. Held back
+     * access units after the end of the buffered ones fill the gap up to the
+     * next sync sample. They are kept together with the held back sync
+     * sample they depend on, and the buffered access units from the time of
+     * that sync sample are dropped instead.
+     */
+    private int spliceReplacementAtEnd() {
+        // Held back access units after the end of the buffered ones are not
+        // sync samples, or the replacement would have been spliced in there
+        int syncSample = -1;
+        boolean missing = false;
+        for (int i = 0; i < mReplacement.size(); i++) {
+            AccessUnit replacement = mReplacement.get(i);
+            if (replacement.status != AccessUnit.OK || replacement.timeUs < 0) {
+                continue;
+            }
+            if (replacement.timeUs >= mReplacedEndTimeUs) {
+                missing = true;
+                break;
+            }
+            if (replacement.isSyncSample) {
+                syncSample = i;
+            }
+        }
+
+        if (!missing || syncSample < 0) {
+            return mReplacement.size();
+        }
+
+        long syncSampleTimeUs = mReplacement.get(syncSample).timeUs;
+        AccessUnit head = null;
+        AccessUnit first = null;
+        for (AccessUnit accessUnit : mBuffer) {
+            if (accessUnit.status != AccessUnit.OK || accessUnit.timeUs < 0) {
+                continue;
+            }
+            if (head == null) {
+                head = accessUnit;
+            }
+            if (accessUnit.timeUs >= syncSampleTimeUs) {
+                first = accessUnit;
+                break;
+            }
+        }
+
+        if (head == null || head.timeUs > syncSampleTimeUs) {
+            // Already played past the sync sample, the missing access units
+            // can not be decoded.
+            return mReplacement.size();
+        }
+
+        if (first != null) {
+            dropFrom(first);
+        }
+        return syncSample;
+    }
+
+    /**
+     * Drops the given buffered access unit and all access units queued after
+     * it.
+     */
+    private void dropFrom(AccessUnit first) {
+        Iterator<AccessUnit> iterator = mBuffer.descendingIterator();
+        while (iterator.hasNext()) {
+            AccessUnit accessUnit = iterator.next();
+            iterator.remove();
+            if (accessUnit.data != null) {
+                mBufferDataSize -= accessUnit.data.length;
+            }
+            if (accessUnit == first) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Drops the access unit at timeUs and all access units queued after it,
+     * e.g. the part received of a segment whose download is abandoned.
+     * Nothing is dropped if the access unit at timeUs has already been
+     * dequeued.
+     *
+     * @return true if the access units were dropped.
+     */
+    public synchronized boolean discardFrom(long timeUs) {
+        boolean found = false;
+        Iterator<AccessUnit> iterator = mBuffer.descendingIterator();
+        while (iterator.hasNext()) {
+            AccessUnit accessUnit = iterator.next();
+            if (accessUnit.status == AccessUnit.OK && accessUnit.timeUs == timeUs) {
+                found = true;
+                break;
+            }
+        }
+        if (!found) {
+            return false;
+        }
+
+        iterator = mBuffer.descendingIterator();
+        while (iterator.hasNext()) {
+            AccessUnit accessUnit = iterator.next();
+            iterator.remove();
+            if (accessUnit.data != null) {
+                mBufferDataSize -= accessUnit.data.length;
+            }
+            if (accessUnit.status == AccessUnit.OK && accessUnit.timeUs == timeUs) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true while queued access units are held back to replace
+     * buffered ones.
+     */
+    public synchronized boolean isReplacing() {
+        return mReplacement != null;
+    }
+
     public synchronized void clear() {
         mBuffer.clear();
         mBufferDataSize = 0;
+        mReplacement = null;
     }
 
     public long getNextTimeUs() {
@@ -105,4 +467,25 @@ public class PacketSource {
     public synchronized long getBufferSize() {
         return mBufferDataSize;
     }
+
+    /**
+     * Sets the bitrate of the buffered media, used to share the
+     * PacketBufferBudget. -1 means unknown and 0 that the source is not in
+     * use.
+     */
+    public void setBitrate(int bitrate) {
+        mBitrate = bitrate;
+    }
+
+    public int getBitrate() {
+        return mBitrate;
+    }
+
+    /**
+     * Returns the number of bytes this source may buffer according to the
+     * PacketBufferBudget, or -1 if there is no limit.
+     */
+    public long getMaxBufferSize() {
+        return PacketBufferBudget.getInstance().getMaxBufferSize(this);
+    }
 }
@@ -17,7 +17,7 @@
 package com.sonymobile.android.media.internal.streaming.common;
 
 /**
- * Exception to be thrown if parsing of DASH links fails.
+ * Exception to be thrown if parsing of a manifest or of bitstream data fails.
  */
 public class ParseException extends RuntimeException {
 
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media.internal.streaming.common;
+
+import android.util.Log;
+
+import com.sonymobile.android.media.RepresentationConstraints;
+import com.sonymobile.android.media.TrackInfo.TrackType;
+import com.sonymobile.android.media.TrackRepresentation;
+import com.sonymobile.android.media.VideoTrackRepresentation;
+import com.sonymobile.android.media.internal.Configuration;
+
+/**
+ * Applies RepresentationConstraints to the representations of a track.
+ */
+public final class RepresentationFilter {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "RepresentationFilter";
+
+    private RepresentationFilter() {
+    }
+
+    /**
+     * Returns which representations of a track may be selected. At least one
+     * representation is always allowed.
+     *
+     * @param constraints The constraints or null for no constraints.
+     * @param type The type of the track.
+     * @param representations The representations of the track.
+     * @param codecs The codec string of each representation, null if unknown.
+     * @return For each representation, true if it may be selected.
+     */
+    public static boolean[] getAllowedRepresentations(RepresentationConstraints constraints,
+            TrackType type, TrackRepresentation[] representations, String[] codecs) {
+        int count = representations.length;
+        boolean[] allowed = new boolean[count];
+        int allowedCount = 0;
+        for (int i = 0; i < count; i++) {
+            allowed[i] = constraints == null
+                    || isAllowed(constraints, type, representations[i], codecs[i]);
+            if (allowed[i]) {
+                allowedCount++;
+            }
+        }
+
+        if (allowedCount > 0 && type == TrackType.VIDEO) {
+            allowedCount = applyViewport(constraints, representations, allowed);
+        }
+
+        if (allowedCount == 0 && count > 0) {
+            int lowest = 0;
+            for (int i = 1; i < count; i++) {
+                if (representations[i].getBitrate() < representations[lowest].getBitrate()) {
+                    lowest = i;
+                }
+            }
+            if (LOGS_ENABLED) Log.w(TAG, "No representation satisfies the constraints");
+            allowed[lowest] = true;
+        }
+
+        return allowed;
+    }
+
+    /**
+     * Returns the allowed representation to use instead of one that is not
+     * allowed, the allowed one with the highest bitrate not above the
+     * bitrate of the original, or the allowed one with the lowest bitrate.
+     */
+    public static int getClosestAllowedRepresentation(TrackRepresentation[] representations,
+            boolean[] allowed, int representation) {
+        if (representation < 0 || representation >= representations.length
+                || allowed[representation]) {
+            return representation;
+        }
+
+        int bitrate = representations[representation].getBitrate();
+        int below = -1;
+        int lowest = -1;
+        for (int i = 0; i < representations.length; i++) {
+            if (!allowed[i]) {
+                continue;
+            }
+            int candidateBitrate = representations[i].getBitrate();
+            if (candidateBitrate <= bitrate && (below == -1
+                    || candidateBitrate > representations[below].getBitrate())) {
+                below = i;
+            }
+            if (lowest == -1 || candidateBitrate < representations[lowest].getBitrate()) {
+                lowest = i;
+            }
+        }
+
+        return below != -1 ? below : lowest;
+    }
+
+    private static boolean isAllowed(RepresentationConstraints constraints, TrackType type,
+            TrackRepresentation representation, String codec) {
+        if ((type == TrackType.AUDIO || type == TrackType.VIDEO)
+                && !constraints.isCodecAllowed(codec)) {
+            return false;
+        }
+
+        if (type != TrackType.VIDEO) {
+            return true;
+        }
+
+        if (constraints.getMaxBitrate() > 0
+                && representation.getBitrate() > constraints.getMaxBitrate()) {
+            return false;
+        }
+
+        if (!(representation instanceof VideoTrackRepresentation)) {
+            return true;
+        }
+
+        VideoTrackRepresentation video = (VideoTrackRepresentation)representation;
+        if (constraints.getMaxFrameRate() > 0 && video.getFrameRate() > 0
+                && video.getFrameRate() > constraints.getMaxFrameRate()) {
+            return false;
+        }
+
+        if (constraints.getMaxVideoWidth() > 0
+                && video.getWidth() > constraints.getMaxVideoWidth()) {
+            return false;
+        }
+
+        return constraints.getMaxVideoHeight() <= 0
+                || video.getHeight() <= constraints.getMaxVideoHeight();
+    }
+
+    /**
+     * Disallows video representations that would be scaled down to fit the
+     * viewport, except the one closest to the viewport size.
+     */
+    private static int applyViewport(RepresentationConstraints constraints,
+            TrackRepresentation[] representations, boolean[] allowed) {
+        int allowedCount = 0;
+        for (boolean isAllowed : allowed) {
+            if (isAllowed) {
+                allowedCount++;
+            }
+        }
+
+        if (constraints == null || constraints.getViewportWidth() <= 0
+                || constraints.getViewportHeight() <= 0) {
+            return allowedCount;
+        }
+
+        // The scale needed to fit each representation in the viewport
+        float[] scales = new float[representations.length];
+        float largestDownscale = 0;
+        for (int i = 0; i < representations.length; i++) {
+            if (!allowed[i] || !(representations[i] instanceof VideoTrackRepresentation)) {
+                continue;
+            }
+            VideoTrackRepresentation video = (VideoTrackRepresentation)representations[i];
+            if (video.getWidth() <= 0 || video.getHeight() <= 0) {
+                continue;
+            }
+            scales[i] = Math.min((float)constraints.getViewportWidth() / video.getWidth(),
+                    (float)constraints.getViewportHeight() / video.getHeight());
+            if (scales[i] < 1 && scales[i] > largestDownscale) {
+                largestDownscale = scales[i];
+            }
+        }
+
+        for (int i = 0; i < representations.length; i++) {
+            if (allowed[i] && scales[i] > 0 && scales[i] < largestDownscale) {
+                allowed[i] = false;
+                allowedCount--;
+            }
+        }
+
+        return allowedCount;
+    }
+}
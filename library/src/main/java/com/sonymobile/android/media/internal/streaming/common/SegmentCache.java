@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media.internal.streaming.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+import com.sonymobile.android.media.BandwidthEstimator;
+import com.sonymobile.android.media.internal.Configuration;
+import com.sonymobile.android.media.internal.DataSource;
+
+/**
+ * Cache for downloaded media segments, keyed by URI and byte range. Segments
+ * are kept in memory and, if a disk cache size is configured, also in files
+ * so that seeking back or switching back to a representation does not
+ * download the same segment again. Both tiers evict the least recently used
+ * segments when full. Files are read and written outside of the lock of the
+ * cache.
+ */
+public final class SegmentCache {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "SegmentCache";
+
+    private final LinkedHashMap<String, byte[]> mMemoryEntries =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LinkedHashMap<String, File> mDiskEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final long mMaxMemorySize;
+
+    private final long mMaxDiskSize;
+
+    private long mMemorySize = 0;
+
+    private long mDiskSize = 0;
+
+    // Memory held by segments that are being downloaded into the cache
+    private final AtomicLong mPendingMemorySize = new AtomicLong();
+
+    private File mDiskDirectory;
+
+    private int mNextFileId = 0;
+
+    private volatile BaseURLSelector mBaseURLSelector;
+
+    /**
+     * Creates a new SegmentCache.
+     *
+     * @param maxMemorySize The maximum number of bytes to keep in memory.
+     * @param maxDiskSize The maximum number of bytes to keep on disk, or 0 to
+     *            only cache in memory.
+     */
+    public SegmentCache(long maxMemorySize, long maxDiskSize) {
+        mMaxMemorySize = maxMemorySize;
+        mMaxDiskSize = maxDiskSize;
+
+        if (mMaxDiskSize > 0) {
+            File directory = new File(System.getProperty("java.io.tmpdir"),
+                    "segments-" + System.identityHashCode(this));
+            if (directory.isDirectory() || directory.mkdirs()) {
+                mDiskDirectory = directory;
+            } else if (LOGS_ENABLED) {
+                Log.w(TAG, "Could not create " + directory + ", disk cache disabled");
+            }
+        }
+    }
+
+    /**
+     * Sets the BaseURLSelector used to choose between hosts serving the same
+     * segments. Segments are cached by the uri they were requested with,
+     * whichever host they were downloaded from.
+     */
+    public void setBaseURLSelector(BaseURLSelector selector) {
+        mBaseURLSelector = selector;
+    }
+
+    /**
+     * Opens a DataSource for a segment. The segment is read from the cache if
+     * available, otherwise it is downloaded and added to the cache once it
+     * has been read to the end.
+     *
+     * @param uri The uri of the segment.
+     * @param offset The offset of the segment or -1 for the beginning.
+     * @param length The length of the segment or -1 for all.
+     * @param bandwidthEstimator The BandwidthEstimator to use for downloads.
+     * @return The DataSource.
+     * @throws IOException if the segment could not be opened.
+     */
+    public DataSource open(String uri, long offset, int length,
+            BandwidthEstimator bandwidthEstimator) throws IOException {
+        String key = uri + "#" + Math.max(offset, 0) + "-" + length;
+
+        byte[] data = get(key);
+        if (data != null) {
+            if (LOGS_ENABLED) Log.v(TAG, "Cache hit for " + key);
+            return new SegmentDataSource(data, Math.max(offset, 0));
+        }
+
+        DataSource source;
+        BaseURLSelector selector = mBaseURLSelector;
+        if (selector != null) {
+            source = selector.open(uri, offset, length, bandwidthEstimator);
+        } else {
+            source = DataSource.create(uri, offset, length, bandwidthEstimator, true);
+        }
+        long memoryLimit = getMemoryLimit();
+        long maxSize = mMaxDiskSize > 0 ? Math.max(memoryLimit, mMaxDiskSize) / 4
+                : memoryLimit / 4;
+        return new SegmentDataSource(source, Math.max(offset, 0), this, key, (int)maxSize,
+                bandwidthEstimator);
+    }
+
+    byte[] get(String key) {
+        File file;
+        synchronized (this) {
+            byte[] data = mMemoryEntries.get(key);
+            if (data != null) {
+                return data;
+            }
+
+            file = mDiskEntries.get(key);
+            if (file == null) {
+                return null;
+            }
+        }
+
+        byte[] data = readFile(file);
+
+        synchronized (this) {
+            if (data == null) {
+                if (mDiskEntries.get(key) == file) {
+                    mDiskEntries.remove(key);
+                    mDiskSize -= file.length();
+                    file.delete();
+                }
+                return null;
+            }
+
+            putInMemory(key, data);
+        }
+        return data;
+    }
+
+    void put(String key, byte[] data) {
+        File file;
+        synchronized (this) {
+            putInMemory(key, data);
+
+            if (mDiskDirectory == null || mDiskEntries.containsKey(key)
+                    || data.length > mMaxDiskSize) {
+                return;
+            }
+
+            file = new File(mDiskDirectory, String.valueOf(mNextFileId++));
+        }
+
+        if (!writeFile(file, data)) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mDiskDirectory == null || mDiskEntries.containsKey(key)) {
+                // Cleared or added by another download while writing
+                file.delete();
+                if (mDiskDirectory == null) {
+                    file.getParentFile().delete();
+                }
+                return;
+            }
+
+            mDiskEntries.put(key, file);
+            mDiskSize += data.length;
+            trimDisk();
+        }
+    }
+
+    /**
+     * Returns the number of bytes kept in memory by cached segments and by
+     * segments being downloaded into the cache.
+     */
+    public synchronized long getMemorySize() {
+        return mMemorySize + mPendingMemorySize.get();
+    }
+
+    /**
+     * Evicts segments from memory until the cache is within its share of the
+     * PacketBufferBudget, e.g. after the budget has been trimmed.
+     */
+    public synchronized void trimMemory() {
+        trimMemoryTo(getMemoryLimit());
+    }
+
+    void addPendingMemory(long bytes) {
+        mPendingMemorySize.addAndGet(bytes);
+    }
+
+    /**
+     * Removes all cached segments, including the files on disk.
+     */
+    public synchronized void clear() {
+        mMemoryEntries.clear();
+        mMemorySize = 0;
+
+        for (File file : mDiskEntries.values()) {
+            file.delete();
+        }
+        mDiskEntries.clear();
+        mDiskSize = 0;
+
+        if (mDiskDirectory != null) {
+            mDiskDirectory.delete();
+            mDiskDirectory = null;
+        }
+    }
+
+    private void putInMemory(String key, byte[] data) {
+        long limit = getMemoryLimit();
+        if (data.length > limit) {
+            return;
+        }
+
+        byte[] previous = mMemoryEntries.put(key, data);
+        if (previous != null) {
+            mMemorySize -= previous.length;
+        }
+        mMemorySize += data.length;
+
+        trimMemoryTo(limit);
+    }
+
+    /**
+     * Returns the number of bytes that may be kept in memory, the smaller of
+     * the memory size of the cache and its share of the PacketBufferBudget.
+     */
+    private long getMemoryLimit() {
+        long budgetSize = PacketBufferBudget.getInstance().getMaxCacheSize(this);
+        return budgetSize >= 0 ? Math.min(budgetSize, mMaxMemorySize) : mMaxMemorySize;
+    }
+
+    private void trimMemoryTo(long maxSize) {
+        Iterator<Map.Entry<String, byte[]>> iterator = mMemoryEntries.entrySet().iterator();
+        // Segments being downloaded into the cache count against its share
+        while (mMemorySize + mPendingMemorySize.get() > maxSize && iterator.hasNext()) {
+            Map.Entry<String, byte[]> entry = iterator.next();
+            mMemorySize -= entry.getValue().length;
+            iterator.remove();
+        }
+    }
+
+    private void trimDisk() {
+        Iterator<Map.Entry<String, File>> iterator = mDiskEntries.entrySet().iterator();
+        while (mDiskSize > mMaxDiskSize && iterator.hasNext()) {
+            File file = iterator.next().getValue();
+            mDiskSize -= file.length();
+            file.delete();
+            iterator.remove();
+        }
+    }
+
+    private static byte[] readFile(File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] data = new byte[(int)file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    return null;
+                }
+                read += count;
+            }
+            return data;
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.e(TAG, "Failed to read " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static boolean writeFile(File file, byte[] data) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(data);
+            return true;
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.e(TAG, "Failed to write " + file, e);
+            file.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
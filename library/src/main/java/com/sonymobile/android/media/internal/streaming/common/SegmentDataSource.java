@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media.internal.streaming.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.util.Log;
+
+import com.sonymobile.android.media.BandwidthEstimator;
+import com.sonymobile.android.media.internal.Configuration;
+import com.sonymobile.android.media.internal.DataSource;
+
+/**
+ * DataSource for a segment that is either read from the SegmentCache or
+ * downloaded. Downloaded data is kept while it is read, the underlying source
+ * is always read sequentially and earlier data is served from memory. When
+ * the whole segment has been read it is added to the cache on close. The
+ * memory kept for a download is accounted to the cache, and through it to
+ * the PacketBufferBudget, until it is added or dropped.
+ */
+final class SegmentDataSource extends DataSource {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "SegmentDataSource";
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private final DataSource mSource;
+
+    private final SegmentCache mCache;
+
+    private final String mKey;
+
+    private final int mMaxSize;
+
+    private final long mBaseOffset;
+
+    private byte[] mData;
+
+    private int mSize;
+
+    private long mPosition;
+
+    private boolean mRecording;
+
+    /**
+     * Creates a SegmentDataSource for a cached segment.
+     */
+    SegmentDataSource(byte[] data, long offset) {
+        mSource = null;
+        mCache = null;
+        mKey = null;
+        mMaxSize = data.length;
+        mBaseOffset = offset;
+        mData = data;
+        mSize = data.length;
+        mPosition = offset;
+        mRecording = true;
+    }
+
+    /**
+     * Creates a SegmentDataSource downloading from source and adding the data
+     * to cache when complete. Segments larger than maxSize are not cached.
+     * bandwidthEstimator is the one the segment was requested with.
+     */
+    SegmentDataSource(DataSource source, long offset, SegmentCache cache, String key,
+            int maxSize, BandwidthEstimator bandwidthEstimator) {
+        mSource = source;
+        mCache = cache;
+        mKey = key;
+        mMaxSize = maxSize;
+        mBaseOffset = offset;
+        mSize = 0;
+        mPosition = offset;
+        mBandwidthEstimator = bandwidthEstimator;
+
+        long length = -1;
+        try {
+            length = source.length();
+        } catch (IOException e) {
+        }
+
+        // Segments known to be too large are never kept, and segments of
+        // known size are kept in a buffer that can be cached as is.
+        mRecording = maxSize > 0 && length <= maxSize;
+        if (mRecording) {
+            setCapacity(length > 0 ? (int)length : Math.min(INITIAL_CAPACITY, maxSize));
+        }
+    }
+
+    @Override
+    public int readAt(long offset, byte[] buffer, int size) throws IOException {
+        if (!mRecording) {
+            int read = mSource.readAt(offset, buffer, size);
+            mPosition = mSource.getCurrentOffset();
+            return read;
+        }
+
+        if (offset < mBaseOffset) {
+            throw new EOFException("Offset " + offset + " is before segment start");
+        }
+
+        if (offset + size > mBaseOffset + mSize) {
+            fill(offset + size);
+            if (!mRecording) {
+                return readAt(offset, buffer, size);
+            }
+        }
+
+        int available = (int)Math.min(size, mBaseOffset + mSize - offset);
+        if (available <= 0) {
+            return -1;
+        }
+
+        System.arraycopy(mData, (int)(offset - mBaseOffset), buffer, 0, available);
+        mPosition = offset + available;
+        return available;
+    }
+
+    @Override
+    public int readAvailable(byte[] buffer) throws IOException {
+        synchronized (this) {
+            if (mRecording && mPosition < mBaseOffset + mSize) {
+                // Data that has already been read, e.g. after seeking back
+                return readAt(mPosition, buffer, buffer.length);
+            }
+        }
+
+        if (mSource == null) {
+            return -1;
+        }
+
+        // Not synchronized so that close() can abort a blocked read
+        int read = mSource.readAvailable(buffer);
+        synchronized (this) {
+            if (read > 0) {
+                if (mRecording) {
+                    append(buffer, read);
+                }
+                mPosition += read;
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public int read(byte[] buffer) throws IOException {
+        return readAt(mPosition, buffer, buffer.length);
+    }
+
+    @Override
+    public int readByte() throws IOException {
+        byte[] data = new byte[1];
+        if (readAt(mPosition, data, 1) != 1) {
+            return -1;
+        }
+        return data[0] & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        byte[] data = new byte[2];
+        if (readAt(mPosition, data, 2) != 2) {
+            throw new EOFException();
+        }
+        return peekShort(data, 0);
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        byte[] data = new byte[4];
+        if (readAt(mPosition, data, 4) != 4) {
+            throw new EOFException();
+        }
+        return peekInt(data, 0);
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        byte[] data = new byte[8];
+        if (readAt(mPosition, data, 8) != 8) {
+            throw new EOFException();
+        }
+        return peekLong(data, 0);
+    }
+
+    @Override
+    public long skipBytes(long count) throws IOException {
+        mPosition += count;
+        return count;
+    }
+
+    @Override
+    public long length() throws IOException {
+        if (mSource != null) {
+            return mSource.length();
+        }
+        return mSize;
+    }
+
+    @Override
+    public long getCurrentOffset() {
+        return mPosition;
+    }
+
+    @Override
+    public String getRemoteIP() {
+        if (mSource != null) {
+            return mSource.getRemoteIP();
+        }
+        return null;
+    }
+
+    @Override
+    public String getUri() {
+        if (mSource != null) {
+            return mSource.getUri();
+        }
+        return null;
+    }
+
+    @Override
+    public void reset() {
+        mPosition = mBaseOffset;
+    }
+
+    @Override
+    public void seek(long offset) throws IOException {
+        mPosition = offset;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mSource == null) {
+            return;
+        }
+
+        if (mRecording) {
+            long length = -1;
+            try {
+                length = mSource.length();
+            } catch (IOException e) {
+            }
+
+            if (length > 0 && mSize == length) {
+                mCache.put(mKey, mSize == mData.length ? mData : Arrays.copyOf(mData, mSize));
+            } else if (LOGS_ENABLED) {
+                Log.v(TAG, "Not caching incomplete segment " + mKey);
+            }
+
+            mRecording = false;
+            setCapacity(0);
+        }
+
+        mSource.close();
+    }
+
+    /**
+     * Reads from the underlying source until the data up to endOffset is
+     * available or the end of the source is reached.
+     */
+    private void fill(long endOffset) throws IOException {
+        if (mSource == null) {
+            return;
+        }
+
+        while (mRecording && mBaseOffset + mSize < endOffset) {
+            long fillOffset = mBaseOffset + mSize;
+            int size = (int)Math.min(endOffset - fillOffset, INITIAL_CAPACITY);
+            byte[] buffer = new byte[size];
+            int read = mSource.readAt(fillOffset, buffer, size);
+            if (read <= 0) {
+                return;
+            }
+            append(buffer, read);
+        }
+    }
+
+    private void append(byte[] data, int length) {
+        if (mSize + length > mMaxSize) {
+            // Too large to cache, read directly from the source from now on.
+            // The source is positioned right after the data kept so far.
+            mRecording = false;
+            setCapacity(0);
+            mSize = 0;
+            return;
+        }
+
+        if (mSize + length > mData.length) {
+            setCapacity(Math.min(Math.max(mData.length * 2, mSize + length), mMaxSize));
+        }
+        System.arraycopy(data, 0, mData, mSize, length);
+        mSize += length;
+    }
+
+    private void setCapacity(int capacity) {
+        int oldCapacity = mData != null ? mData.length : 0;
+        if (capacity == 0) {
+            mData = null;
+        } else if (mData == null) {
+            mData = new byte[capacity];
+        } else {
+            mData = Arrays.copyOf(mData, capacity);
+        }
+        mCache.addPendingMemory(capacity - oldCapacity);
+    }
+}
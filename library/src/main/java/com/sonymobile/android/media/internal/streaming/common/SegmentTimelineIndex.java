@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media.internal.streaming.common;
+
+/**
+ * Index over a segment timeline made of runs of segments with equal duration.
+ * Segments are numbered from 0 in timeline order and looked up by number or
+ * time with binary searches instead of expanding the runs.
+ */
+public final class SegmentTimelineIndex {
+
+    private final long mTimescale;
+
+    private final long[] mStartTicks;
+
+    private final long[] mDurationTicks;
+
+    // Number of the first segment of each run, with the total segment count
+    // as the last element.
+    private final int[] mFirstSegment;
+
+    private int mRunCount = 0;
+
+    /**
+     * Creates an empty index.
+     *
+     * @param runCount The number of runs that will be added.
+     * @param timescale The number of ticks per second.
+     */
+    public SegmentTimelineIndex(int runCount, long timescale) {
+        mTimescale = timescale;
+        mStartTicks = new long[runCount];
+        mDurationTicks = new long[runCount];
+        mFirstSegment = new int[runCount + 1];
+    }
+
+    /**
+     * Adds a run of segments after the runs already added.
+     *
+     * @param startTicks The start time of the first segment in the run.
+     * @param durationTicks The duration of each segment in the run.
+     * @param count The number of segments in the run.
+     */
+    public void addRun(long startTicks, long durationTicks, int count) {
+        mStartTicks[mRunCount] = startTicks;
+        mDurationTicks[mRunCount] = durationTicks;
+        mFirstSegment[mRunCount + 1] = mFirstSegment[mRunCount] + Math.max(count, 0);
+        mRunCount++;
+    }
+
+    public int getSegmentCount() {
+        return mFirstSegment[mRunCount];
+    }
+
+    public long getStartTicks(int segment) {
+        int run = getRun(segment);
+        return mStartTicks[run] + (segment - mFirstSegment[run]) * mDurationTicks[run];
+    }
+
+    public long getDurationTicks(int segment) {
+        return mDurationTicks[getRun(segment)];
+    }
+
+    public long getStartTimeUs(int segment) {
+        return getStartTicks(segment) * 1000000L / mTimescale;
+    }
+
+    public long getDurationUs(int segment) {
+        return getDurationTicks(segment) * 1000000L / mTimescale;
+    }
+
+    /**
+     * Returns the number of the segment that contains the given time, or -1
+     * if no segment does.
+     */
+    public int findSegment(long timeUs) {
+        int segment = findLastSegmentStartingAtOrBefore(timeUs);
+        if (segment >= 0 && timeUs < getStartTimeUs(segment) + getDurationUs(segment)) {
+            return segment;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of the first segment starting at or after the given
+     * time, or -1 if there is none.
+     */
+    public int findSegmentStartingAtOrAfter(long timeUs) {
+        int segment = findLastSegmentStartingAtOrBefore(timeUs);
+        if (segment >= 0 && getStartTimeUs(segment) == timeUs) {
+            return segment;
+        }
+        segment++;
+        return segment < getSegmentCount() ? segment : -1;
+    }
+
+    private int findLastSegmentStartingAtOrBefore(long timeUs) {
+        int low = 0;
+        int high = getSegmentCount() - 1;
+        int result = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getStartTimeUs(mid) <= timeUs) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    private int getRun(int segment) {
+        int low = 0;
+        int high = mRunCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mFirstSegment[mid] <= segment) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
@@ -61,7 +61,7 @@ public class DASHISOParser extends ISOBMFFParser {
     }
 
     @Override
-    public synchronized AccessUnit dequeueAccessUnit(TrackType type) {
+    public AccessUnit dequeueAccessUnit(TrackType type) {
         if (type == TrackType.SUBTITLE) {
             AccessUnit accessUnit = super.dequeueAccessUnit(type);
 
@@ -193,6 +193,70 @@ public class DASHISOParser extends ISOBMFFParser {
         return true;
     }
 
+    /**
+     * Parses a 'moof' box that is completely available in the source.
+     *
+     * @param source The source holding the box.
+     * @param moofOffset The offset of the 'moof' box header.
+     * @param timeUs The start time of the fragment, or -1 to continue from
+     *            the end of the previous fragment.
+     */
+    public boolean parseMoofAt(DataSource source, long moofOffset, long timeUs) {
+        mDataSource = source;
+        mCurrentOffset = moofOffset;
+        mFirstMoofOffset = 0;
+        mSubs = null;
+        BoxHeader header = getNextBoxHeader();
+        if (header == null || header.boxType != BOX_ID_MOOF) {
+            return false;
+        }
+        super.parseBox(header);
+        if (mCurrentTrack == null) {
+            return false;
+        }
+        if (timeUs >= 0) {
+            mCurrentTrack.mTimeTicks =
+                    timeUs * (long)mCurrentTrack.getTimeScale() / (long)1000000;
+        }
+        return true;
+    }
+
+    /**
+     * Drops the samples and their crypto info left from a fragment that was
+     * not completely received, so that the parser can be used for another
+     * fragment.
+     */
+    public void clearFragmentSamples() {
+        for (IsoTrack track : mTracks) {
+            synchronized (track) {
+                track.clearFragmentSamples();
+            }
+        }
+    }
+
+    public FragmentSample peekFragmentSample(TrackType type) {
+        IsoTrack track = null;
+        if (type == TrackType.AUDIO) {
+            track = mCurrentAudioTrack;
+        } else if (type == TrackType.VIDEO) {
+            track = mCurrentVideoTrack;
+        } else if (type == TrackType.SUBTITLE) {
+            track = mCurrentSubtitleTrack;
+        }
+
+        if (track == null) {
+            return null;
+        }
+
+        synchronized (track) {
+            if (isSkippingNonSyncSamples(type)) {
+                track.skipToSyncSample(true);
+            }
+
+            return track.peekFragmentSample();
+        }
+    }
+
     private int parseBox12(BoxHeader nextHeader) {
         if (nextHeader.boxType == BOX_ID_MOOV) {
             try {
@@ -16,14 +16,24 @@
 
 package com.sonymobile.android.media.internal.streaming.mpegdash;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Vector;
+import java.util.zip.GZIPInputStream;
 
 import android.media.MediaFormat;
 import android.os.Bundle;
@@ -34,10 +44,12 @@ import android.os.Message;
 import android.util.Log;
 
 import com.sonymobile.android.media.BandwidthEstimator;
+import com.sonymobile.android.media.BufferLevelRepresentationSelector;
 import com.sonymobile.android.media.DASHTrackInfo;
 import com.sonymobile.android.media.MediaError;
 import com.sonymobile.android.media.MediaPlayer.Statistics;
 import com.sonymobile.android.media.MetaData;
+import com.sonymobile.android.media.RepresentationConstraints;
 import com.sonymobile.android.media.RepresentationSelector;
 import com.sonymobile.android.media.TrackInfo;
 import com.sonymobile.android.media.TrackInfo.TrackType;
@@ -45,11 +57,14 @@ import com.sonymobile.android.media.internal.AccessUnit;
 import com.sonymobile.android.media.internal.Configuration;
 import com.sonymobile.android.media.internal.MetaDataImpl;
 import com.sonymobile.android.media.internal.MimeType;
+import com.sonymobile.android.media.internal.QoEMetricsCollector;
 import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser.ContentProtection;
 import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser.Period;
 import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser.Representation;
 import com.sonymobile.android.media.internal.streaming.common.DefaultBandwidthEstimator;
+import com.sonymobile.android.media.internal.streaming.common.PacketBufferBudget;
 import com.sonymobile.android.media.internal.streaming.common.PacketSource;
+import com.sonymobile.android.media.internal.streaming.common.SegmentCache;
 
 public final class DASHSession {
 
@@ -71,6 +86,14 @@ public final class DASHSession {
 
     private static final int MSG_SELECT_TRACK = 6;
 
+    private static final int MSG_SET_KEY_FRAME_ONLY = 7;
+
+    private static final int MSG_MPD_DOWNLOADED = 8;
+
+    private static final int MSG_SET_REPRESENTATION_CONSTRAINTS = 9;
+
+    private static final int MSG_SEEK_IN_BUFFER = 10;
+
     public static final int FETCHER_EOS = 0;
 
     public static final int FETCHER_ERROR = 1;
@@ -81,13 +104,24 @@ public final class DASHSession {
 
     public static final int FETCHER_UPDATE_STATISTICS = 4;
 
+    public static final int FETCHER_SEGMENT_ABANDONED = 5;
+
     public static final String KEY_TIMEUS = "timeus";
 
     public static final String KEY_REMOTE_IP = "remoteIP";
 
     public static final String KEY_VIDEO_URI = "videoURI";
 
-    private static final int MAX_BUFFER_DURATION_US = 10000000;
+    static final int MAX_BUFFER_DURATION_US = 10000000;
+
+    // Buffered video needed before segments are replaced on an up-switch
+    private static final long SEGMENT_REPLACEMENT_MIN_BUFFER_DURATION_US = 6000000;
+
+    // Buffered video ahead of the play head that is never replaced
+    private static final long SEGMENT_REPLACEMENT_MARGIN_US = 3000000;
+
+    // Bandwidth needed for segment replacement, relative to the new bitrate
+    private static final int SEGMENT_REPLACEMENT_BANDWIDTH_FACTOR = 2;
 
     private final HandlerThread mEventThread;
 
@@ -105,8 +139,25 @@ public final class DASHSession {
 
     private BandwidthEstimator mBandwidthEstimator;
 
+    private final SegmentCache mSegmentCache = new SegmentCache(
+            Configuration.SEGMENT_CACHE_MEMORY_SIZE, Configuration.SEGMENT_CACHE_DISK_SIZE);
+
+    private static final int MAX_INITIALIZED_PARSERS = 8;
+
+    // Parsers of released fetchers that have parsed the init segment, kept
+    // in access order so that switching back to a representation does not
+    // have to download and parse the init segment again.
+    private final LinkedHashMap<Representation, DASHISOParser> mInitializedParsers =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    private boolean mInitializedParsersReleased = false;
+
+    private InitSegmentPrefetcher mInitSegmentPrefetcher;
+
     private RepresentationSelector mRepresentationSelector;
 
+    private RepresentationConstraints mRepresentationConstraints;
+
     private long mLastDequeuedTimeUs;
 
     private final MetaDataImpl mMetaData = new MetaDataImpl();
@@ -121,10 +172,22 @@ public final class DASHSession {
 
     private final int[] mMaxBufferSizes;
 
-    private long mLastMPDFetchTimeMs;
-
     private String mMPDUrl;
 
+    private HandlerThread mMPDThread;
+
+    private Handler mMPDHandler;
+
+    // Validators of the last MPD response, only used on the MPD thread
+    // after the first refresh has been scheduled.
+    private String mMPDETag;
+
+    private String mMPDLastModified;
+
+    private boolean mKeyFrameOnly = false;
+
+    private QoEMetricsCollector mQoEMetrics;
+
     public DASHSession(Handler callbackHandler, BandwidthEstimator estimator,
             RepresentationSelector selector, int maxBufferSize) {
 
@@ -140,6 +203,11 @@ public final class DASHSession {
         mPacketSources.put(TrackType.VIDEO, new PacketSource());
         mPacketSources.put(TrackType.SUBTITLE, new PacketSource());
 
+        for (PacketSource packetSource : mPacketSources.values()) {
+            PacketBufferBudget.getInstance().register(packetSource);
+        }
+        PacketBufferBudget.getInstance().register(mSegmentCache);
+
         mBandwidthEstimator = estimator;
         mRepresentationSelector = selector;
 
@@ -154,10 +222,69 @@ public final class DASHSession {
         mBandwidthEstimator = estimator;
     }
 
+    public SegmentCache getSegmentCache() {
+        return mSegmentCache;
+    }
+
     public BandwidthEstimator getBandwidthEstimator() {
         return mBandwidthEstimator;
     }
 
+    public void setQoEMetricsCollector(QoEMetricsCollector collector) {
+        mQoEMetrics = collector;
+    }
+
+    public QoEMetricsCollector getQoEMetricsCollector() {
+        return mQoEMetrics;
+    }
+
+    /**
+     * Removes and returns the cached parser that has already parsed the init
+     * segment of a representation.
+     *
+     * @param representation The representation.
+     * @return The parser or null if no parser is cached.
+     */
+    synchronized DASHISOParser takeInitializedParser(Representation representation) {
+        return mInitializedParsers.remove(representation);
+    }
+
+    /**
+     * Caches a parser that has parsed the init segment of a representation.
+     * The parser must no longer be used by the caller. The least recently
+     * used parsers are released when the cache is full.
+     *
+     * @param representation The representation.
+     * @param parser The parser.
+     */
+    synchronized void putInitializedParser(Representation representation,
+            DASHISOParser parser) {
+        if (mInitializedParsersReleased) {
+            parser.release();
+            return;
+        }
+
+        DASHISOParser previous = mInitializedParsers.put(representation, parser);
+        if (previous != null && previous != parser) {
+            previous.release();
+        }
+
+        Iterator<Map.Entry<Representation, DASHISOParser>> iterator =
+                mInitializedParsers.entrySet().iterator();
+        while (mInitializedParsers.size() > MAX_INITIALIZED_PARSERS && iterator.hasNext()) {
+            iterator.next().getValue().release();
+            iterator.remove();
+        }
+    }
+
+    private synchronized void releaseInitializedParsers() {
+        for (DASHISOParser parser : mInitializedParsers.values()) {
+            parser.release();
+        }
+        mInitializedParsers.clear();
+        mInitializedParsersReleased = true;
+    }
+
     public void setRepresentationSelector(RepresentationSelector selector) {
         mRepresentationSelector = selector;
     }
@@ -266,7 +393,7 @@ public final class DASHSession {
                                 break;
                             }
 
-                            thiz.mFetchers.remove(type);
+                            thiz.removeFetcher(type);
 
                             if (!thiz.mMPDParser.hasNextPeriod()) {
                                 packetSource.queueAccessUnit(AccessUnit.ACCESS_UNIT_END_OF_STREAM);
@@ -295,11 +422,8 @@ public final class DASHSession {
                                 int[] selectedRepresentations = thiz.mMPDParser
                                         .getSelectedRepresentations();
                                 int[] selectedTracks = thiz.mMPDParser.getSelectedTracks();
-                                thiz.mRepresentationSelector
-                                        .selectRepresentations(
-                                                thiz.mBandwidthEstimator.getEstimatedBandwidth(),
-                                                selectedTracks,
-                                                selectedRepresentations);
+                                thiz.selectRepresentations(selectedTracks,
+                                        selectedRepresentations);
                                 thiz.mMPDParser.updateRepresentations(selectedRepresentations);
                                 thiz.changeConfiguration(-1);
                             }
@@ -345,7 +469,7 @@ public final class DASHSession {
                                 thiz.mCallbackHandler.obtainMessage(DASHSource.MSG_ERROR)
                                         .sendToTarget();
                                 packetSource.queueAccessUnit(AccessUnit.ACCESS_UNIT_ERROR);
-                                thiz.mFetchers.remove(type);
+                                thiz.removeFetcher(type);
                             }
 
                             break;
@@ -362,6 +486,10 @@ public final class DASHSession {
                             thiz.mVideoURI = msg.getData().getString(KEY_VIDEO_URI);
                             break;
                         }
+                        case FETCHER_SEGMENT_ABANDONED: {
+                            thiz.onSegmentAbandoned(msg.getData().getLong(KEY_TIMEUS));
+                            break;
+                        }
                         default:
                             if (LOGS_ENABLED) Log.w(TAG, "Unhandled fetcher message: " + msg.arg1);
                             break;
@@ -370,6 +498,9 @@ public final class DASHSession {
                 case MSG_SEEK:
                     thiz.onSeek((Long)msg.obj);
                     break;
+                case MSG_SEEK_IN_BUFFER:
+                    thiz.mLastDequeuedTimeUs = (Long)msg.obj;
+                    break;
                 case MSG_DISCONNECT:
                     if (thiz.mEventThread != null) {
                         for (Map.Entry<TrackType, RepresentationFetcher> item : thiz.mFetchers
@@ -377,12 +508,38 @@ public final class DASHSession {
                             RepresentationFetcher fetcher = item.getValue();
                             fetcher.release();
                         }
+                        if (thiz.mInitSegmentPrefetcher != null) {
+                            thiz.mInitSegmentPrefetcher.cancel();
+                        }
+                        PacketBufferBudget.getInstance().unregister(thiz.mSegmentCache);
+                        thiz.mSegmentCache.clear();
+                        for (PacketSource packetSource : thiz.mPacketSources.values()) {
+                            PacketBufferBudget.getInstance().unregister(packetSource);
+                        }
+                        thiz.releaseInitializedParsers();
+                        if (thiz.mMPDThread != null) {
+                            thiz.mMPDThread.quit();
+                        }
                         thiz.mEventThread.quitSafely();
                     }
                     break;
                 case MSG_SELECT_TRACK:
                     thiz.onSelectTrack(msg.arg1, (TrackType)msg.obj);
                     break;
+                case MSG_MPD_DOWNLOADED:
+                    thiz.onMPDDownloaded((byte[])msg.obj, msg.arg1 == 1);
+                    break;
+                case MSG_SET_KEY_FRAME_ONLY: {
+                    thiz.mKeyFrameOnly = msg.arg1 == 1;
+                    RepresentationFetcher fetcher = thiz.mFetchers.get(TrackType.VIDEO);
+                    if (fetcher != null) {
+                        fetcher.setKeyFrameOnly(thiz.mKeyFrameOnly);
+                    }
+                    break;
+                }
+                case MSG_SET_REPRESENTATION_CONSTRAINTS:
+                    thiz.onSetRepresentationConstraints((RepresentationConstraints)msg.obj);
+                    break;
                 default:
                     if (LOGS_ENABLED) Log.w(TAG, "Unhandled message: " + msg.what);
                     break;
@@ -409,7 +566,10 @@ public final class DASHSession {
             if (urlConnection.getResponseCode() / 100 == 2) {
 
                 mMPDUrl = uri;
+                mMPDETag = urlConnection.getHeaderField("ETag");
+                mMPDLastModified = urlConnection.getHeaderField("Last-Modified");
                 mMPDParser = new MPDParser(uri);
+                mMPDParser.setRepresentationConstraints(mRepresentationConstraints);
 
                 if (mBandwidthEstimator == null) {
                     mBandwidthEstimator = new DefaultBandwidthEstimator();
@@ -423,6 +583,7 @@ public final class DASHSession {
 
                 success = mMPDParser.parse(urlConnection.getInputStream());
                 if (success) {
+                    mSegmentCache.setBaseURLSelector(mMPDParser.getBaseURLSelector());
                     mMetaData.addValue(MetaData.KEY_MIME_TYPE, MimeType.MPEG_DASH);
                     mMetaData.addValue(MetaData.KEY_MPD, mMPDParser.getMPDFile());
 
@@ -442,14 +603,25 @@ public final class DASHSession {
 
                     mCallbackHandler.obtainMessage(DASHSource.MSG_PREPARED).sendToTarget();
 
+                    long startTimeUs = 0;
+                    if (mMPDParser.isDynamic()) {
+                        // Start live presentations close to the live edge
+                        startTimeUs = mMPDParser.getLiveStartTimeUs();
+                        mMPDParser.seekTo(startTimeUs);
+                        if (LOGS_ENABLED) Log.i(TAG, "Live start at " + startTimeUs);
+                    }
+
                     int[] selectedRepresentations = mMPDParser.getSelectedRepresentations();
                     int[] selectedTracks = mMPDParser.getSelectedTracks();
                     TrackInfo[] trackInfo = mMPDParser.getTrackInfo();
                     mRepresentationSelector.selectDefaultRepresentations(selectedTracks, trackInfo,
                             selectedRepresentations);
+                    mMPDParser.constrainRepresentations(selectedRepresentations);
                     mMPDParser.updateRepresentations(selectedRepresentations);
-                    changeConfiguration(0);
-                    mLastMPDFetchTimeMs = System.currentTimeMillis();
+                    changeConfiguration(startTimeUs);
+                    prefetchAdjacentRepresentations(
+                            selectedRepresentations[TrackType.VIDEO.ordinal()]);
+                    scheduleMPDRefresh();
                 } else {
                     error = MediaError.MALFORMED;
                 }
@@ -471,14 +643,66 @@ public final class DASHSession {
         }
     }
 
+    /**
+     * Starts fetching the init segments and segment indexes of the video
+     * representations closest in bandwidth to the selected one, so that the
+     * first switches do not have to wait for them.
+     */
+    private void prefetchAdjacentRepresentations(int selectedRepresentation) {
+        Period period = mMPDParser.getActivePeriod();
+        int adaptationSet = period.currentAdaptationSet[TrackType.VIDEO.ordinal()];
+        if (Configuration.DASH_PREFETCH_REPRESENTATIONS <= 0 || adaptationSet < 0
+                || selectedRepresentation < 0) {
+            return;
+        }
+
+        ArrayList<Representation> representations = new ArrayList<>();
+        for (Representation representation : period.adaptationSets.get(adaptationSet)
+                .representations) {
+            if (representation.selected && representation.allowed) {
+                representations.add(representation);
+            }
+        }
+        Collections.sort(representations, new Comparator<Representation>() {
+            @Override
+            public int compare(Representation lhs, Representation rhs) {
+                return lhs.bandwidth - rhs.bandwidth;
+            }
+        });
+
+        int position = representations.indexOf(period.adaptationSets.get(adaptationSet)
+                .representations.get(selectedRepresentation));
+        if (position < 0) {
+            return;
+        }
+
+        if (mInitSegmentPrefetcher != null) {
+            mInitSegmentPrefetcher.cancel();
+        }
+        mInitSegmentPrefetcher = new InitSegmentPrefetcher(this);
+        int count = 0;
+        // Up-switches are the most likely after start-up, prefer the rung above
+        for (int distance = 1; count < Configuration.DASH_PREFETCH_REPRESENTATIONS
+                && (position + distance < representations.size() || position - distance >= 0);
+                distance++) {
+            if (position + distance < representations.size()) {
+                mInitSegmentPrefetcher.prefetch(representations.get(position + distance));
+                count++;
+            }
+            if (position - distance >= 0 && count < Configuration.DASH_PREFETCH_REPRESENTATIONS) {
+                mInitSegmentPrefetcher.prefetch(representations.get(position - distance));
+                count++;
+            }
+        }
+    }
+
     public void onSelectTrack(int index, TrackType type) {
         mPacketSources.get(type).clear();
-        mFetchers.remove(type);
+        removeFetcher(type);
 
         int[] selectedRepresentations = mMPDParser.getSelectedRepresentations();
         int[] selectedTracks = mMPDParser.getSelectedTracks();
-        mRepresentationSelector.selectRepresentations(mBandwidthEstimator.getEstimatedBandwidth(),
-                selectedTracks, selectedRepresentations);
+        selectRepresentations(selectedTracks, selectedRepresentations);
         mMPDParser.updateRepresentation(type, selectedRepresentations[type.ordinal()]);
 
         Representation representation = mMPDParser.getRepresentation(type);
@@ -497,60 +721,250 @@ public final class DASHSession {
             return;
         }
 
-        long minUpdatePeriodUs = mMPDParser.getMinUpdatePeriodUs();
-        if (minUpdatePeriodUs > -1 &&
-                mLastMPDFetchTimeMs + (minUpdatePeriodUs / 1000) < System.currentTimeMillis()) {
-            updateMPD();
-            mLastMPDFetchTimeMs = System.currentTimeMillis();
-        }
+        // Each fetcher downloads on its own thread. Start every idle fetcher
+        // whose buffer is not full, the track furthest behind first. A
+        // fetcher asks for a new round when its download is done.
+        RepresentationFetcher[] fetchers = mFetchers.values().toArray(
+                new RepresentationFetcher[mFetchers.size()]);
+        Arrays.sort(fetchers, new Comparator<RepresentationFetcher>() {
+            @Override
+            public int compare(RepresentationFetcher lhs, RepresentationFetcher rhs) {
+                if (lhs.getNextTimeUs() != rhs.getNextTimeUs()) {
+                    return lhs.getNextTimeUs() < rhs.getNextTimeUs() ? -1 : 1;
+                }
+                return lhs.getState() - rhs.getState();
+            }
+        });
 
-        RepresentationFetcher selectedFetcher = null;
-        for (Map.Entry<TrackType, RepresentationFetcher> item : mFetchers.entrySet()) {
-            RepresentationFetcher fetcher = item.getValue();
-            TrackType type = item.getKey();
-            int maxBufferSize = mMaxBufferSizes[type.ordinal()];
+        for (RepresentationFetcher fetcher : fetchers) {
+            int maxBufferSize = getBufferSizeLimit(fetcher.getType());
 
-            if (selectedFetcher == null) {
-                if (!fetcher.isBufferFull(MAX_BUFFER_DURATION_US, maxBufferSize)) {
-                    selectedFetcher = fetcher;
-                }
-            } else if (!fetcher.isBufferFull(MAX_BUFFER_DURATION_US, maxBufferSize) &&
-                    (fetcher.getNextTimeUs() < selectedFetcher.getNextTimeUs() ||
-                    (fetcher.getNextTimeUs() == selectedFetcher.getNextTimeUs() &&
-                    fetcher.getState() < selectedFetcher.getState()))) {
-                selectedFetcher = fetcher;
+            if (fetcher.isDownloading()
+                    || fetcher.isBufferFull(MAX_BUFFER_DURATION_US, maxBufferSize)) {
+                continue;
+            }
+
+            if (fetcher.needsBandwidthCheck() && checkBandwidth()) {
+                // The configuration change replaces the fetchers
+                return;
             }
+
+            fetcher.startDownloadNext();
         }
 
-        if (selectedFetcher != null) {
-            selectedFetcher.downloadNext();
+        mEventHandler.removeMessages(MSG_DOWNLOAD_NEXT);
+        Message msg = mEventHandler.obtainMessage(MSG_DOWNLOAD_NEXT);
+        mEventHandler.sendMessageDelayed(msg, 1000);
+    }
+
+    /**
+     * Schedules a refresh of a dynamic MPD. The MPD is downloaded on a
+     * thread of its own and applied to the MPDParser on the DASH thread, so
+     * segment downloads and scheduling never wait for the network.
+     */
+    private void scheduleMPDRefresh() {
+        long minUpdatePeriodUs = mMPDParser.getMinUpdatePeriodUs();
+        if (minUpdatePeriodUs < 0) {
+            return;
+        }
 
-            Message msg = mEventHandler.obtainMessage(MSG_DOWNLOAD_NEXT);
-            mEventHandler.sendMessageDelayed(msg, 10);
-        } else {
-            Message msg = mEventHandler.obtainMessage(MSG_DOWNLOAD_NEXT);
-            mEventHandler.sendMessageDelayed(msg, 1000);
+        if (mMPDThread == null) {
+            mMPDThread = new HandlerThread("DASH MPD");
+            mMPDThread.start();
+            mMPDHandler = new Handler(mMPDThread.getLooper());
         }
+
+        mMPDHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                downloadMPD();
+            }
+        }, minUpdatePeriodUs / 1000);
     }
 
-    private boolean updateMPD() {
+    /**
+     * Downloads the MPD with a conditional request and posts the result to
+     * the DASH thread. Called on the MPD thread.
+     */
+    private void downloadMPD() {
+        byte[] data = null;
+        boolean notModified = false;
+        HttpURLConnection urlConnection = null;
+        InputStream in = null;
         try {
             URL url = new URL(mMPDUrl);
-            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection = (HttpURLConnection)url.openConnection();
+            urlConnection.setRequestProperty("Accept-Encoding", "gzip");
+            if (mMPDETag != null) {
+                urlConnection.setRequestProperty("If-None-Match", mMPDETag);
+            }
+            if (mMPDLastModified != null) {
+                urlConnection.setRequestProperty("If-Modified-Since", mMPDLastModified);
+            }
 
-            if (urlConnection.getResponseCode() / 100 == 2) {
-                return mMPDParser.update(urlConnection.getInputStream());
+            int responseCode = urlConnection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                notModified = true;
+            } else if (responseCode / 100 == 2) {
+                in = urlConnection.getInputStream();
+                if ("gzip".equalsIgnoreCase(urlConnection.getContentEncoding())) {
+                    in = new GZIPInputStream(in);
+                }
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+                data = out.toByteArray();
+
+                mMPDETag = urlConnection.getHeaderField("ETag");
+                mMPDLastModified = urlConnection.getHeaderField("Last-Modified");
             } else {
-                if (LOGS_ENABLED)Log.e(TAG, "HTTP error " + urlConnection.getResponseCode() +
-                        " while updating MPD");
+                if (LOGS_ENABLED) Log.e(TAG, "HTTP error " + responseCode + " while updating MPD");
             }
         } catch (MalformedURLException e) {
-            if (LOGS_ENABLED) Log.e(TAG, "MalformedURLException in updateMPD", e);
+            if (LOGS_ENABLED) Log.e(TAG, "MalformedURLException in downloadMPD", e);
         } catch (IOException e) {
-            if (LOGS_ENABLED) Log.e(TAG, "IOException in updateMPD", e);
+            if (LOGS_ENABLED) Log.e(TAG, "IOException in downloadMPD", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
         }
 
-        return false;
+        mEventHandler.obtainMessage(MSG_MPD_DOWNLOADED, notModified ? 1 : 0, 0, data)
+                .sendToTarget();
+    }
+
+    private void onMPDDownloaded(byte[] data, boolean notModified) {
+        if (data != null) {
+            mMPDParser.update(new ByteArrayInputStream(data));
+        } else if (notModified) {
+            mMPDParser.setUnchanged();
+        }
+
+        scheduleMPDRefresh();
+    }
+
+    /**
+     * Returns the number of bytes a track may buffer, the smaller of its share
+     * of the max buffer size and of the PacketBufferBudget, or 0 for no
+     * limit.
+     */
+    private int getBufferSizeLimit(TrackType type) {
+        int maxBufferSize = mMaxBufferSizes[type.ordinal()];
+        long budgetSize = mPacketSources.get(type).getMaxBufferSize();
+        if (budgetSize > 0 && (maxBufferSize <= 0 || budgetSize < maxBufferSize)) {
+            maxBufferSize = (int)Math.min(budgetSize, Integer.MAX_VALUE);
+        }
+        return maxBufferSize;
+    }
+
+    /**
+     * Lets the fetcher of a higher quality video representation download
+     * again the buffered segments that will not be played for a while, if
+     * there is enough buffer and bandwidth to do so without stalling. The
+     * downloaded access units replace the buffered ones at a sync sample.
+     */
+    private void startSegmentReplacement(Representation representation) {
+        if (!Configuration.DASH_SEGMENT_REPLACEMENT) {
+            return;
+        }
+
+        PacketSource packetSource = mPacketSources.get(TrackType.VIDEO);
+        if (packetSource.getBufferDuration() < SEGMENT_REPLACEMENT_MIN_BUFFER_DURATION_US
+                || mBandwidthEstimator.getEstimatedBandwidth()
+                < (long)representation.bandwidth * SEGMENT_REPLACEMENT_BANDWIDTH_FACTOR) {
+            return;
+        }
+
+        long replacementTimeUs = packetSource.startReplacement(
+                mLastDequeuedTimeUs + SEGMENT_REPLACEMENT_MARGIN_US);
+        if (replacementTimeUs >= 0) {
+            if (LOGS_ENABLED) Log.i(TAG, "Replacing buffered video from " + replacementTimeUs);
+            // The new fetcher continues from here
+            packetSource.setNextTimeUs(replacementTimeUs);
+        }
+    }
+
+    /**
+     * Returns the selected and allowed video representation with the highest
+     * bandwidth below that of representation, or null if there is none.
+     */
+    Representation getLowerVideoRepresentation(Representation representation) {
+        int lower = findLowerVideoRepresentation(representation);
+        if (lower < 0) {
+            return null;
+        }
+
+        Period period = mMPDParser.getActivePeriod();
+        return period.adaptationSets.get(period.currentAdaptationSet[TrackType.VIDEO.ordinal()])
+                .representations.get(lower);
+    }
+
+    private int findLowerVideoRepresentation(Representation representation) {
+        Period period = mMPDParser.getActivePeriod();
+        int adaptationSet = period.currentAdaptationSet[TrackType.VIDEO.ordinal()];
+        if (adaptationSet < 0) {
+            return -1;
+        }
+
+        ArrayList<Representation> representations = period.adaptationSets.get(adaptationSet)
+                .representations;
+        int lower = -1;
+        for (int i = 0; i < representations.size(); i++) {
+            Representation candidate = representations.get(i);
+            if (candidate.selected && candidate.allowed
+                    && candidate.bandwidth < representation.bandwidth
+                    && (lower < 0 || candidate.bandwidth > representations.get(lower).bandwidth)) {
+                lower = i;
+            }
+        }
+        return lower;
+    }
+
+    /**
+     * Downloads a video segment, whose download was abandoned for being too
+     * slow, again from a lower representation. The selector picks the
+     * representation from the updated estimate, but at least one step down.
+     */
+    private void onSegmentAbandoned(long timeUs) {
+        RepresentationFetcher videoFetcher = mFetchers.get(TrackType.VIDEO);
+        if (videoFetcher == null) {
+            return;
+        }
+
+        Representation abandonedRepresentation = videoFetcher.getRepresentation();
+        int[] selectedTracks = mMPDParser.getSelectedTracks();
+        int[] selectedRepresentations = mMPDParser.getSelectedRepresentations();
+        selectRepresentations(selectedTracks, selectedRepresentations);
+
+        Period period = mMPDParser.getActivePeriod();
+        int adaptationSet = period.currentAdaptationSet[TrackType.VIDEO.ordinal()];
+        int video = selectedRepresentations[TrackType.VIDEO.ordinal()];
+        int lower = findLowerVideoRepresentation(abandonedRepresentation);
+        if (lower >= 0 && (adaptationSet < 0 || video < 0
+                || period.adaptationSets.get(adaptationSet).representations.get(video)
+                .bandwidth >= abandonedRepresentation.bandwidth)) {
+            selectedRepresentations[TrackType.VIDEO.ordinal()] = lower;
+        }
+        mMPDParser.updateRepresentations(selectedRepresentations);
+
+        if (LOGS_ENABLED) Log.i(TAG, "Downloading video again from " + timeUs);
+        mPacketSources.get(TrackType.VIDEO).setNextTimeUs(timeUs);
+        if (mMPDParser.getRepresentation(TrackType.VIDEO) == abandonedRepresentation) {
+            // No lower representation, start the segment over
+            removeFetcher(TrackType.VIDEO);
+        }
+        changeConfiguration(-1);
     }
 
     private void changeConfiguration(long timeUs) {
@@ -566,7 +980,7 @@ public final class DASHSession {
 
         if (audioFetcher != null
                 && (timeUs > -1 || audioFetcher.getRepresentation() != audioRepresentation)) {
-            mFetchers.remove(TrackType.AUDIO);
+            removeFetcher(TrackType.AUDIO);
             audioFetcher = null;
         }
 
@@ -583,15 +997,21 @@ public final class DASHSession {
                         getStatistics()).sendToTarget();
             }
 
-            mFetchers.remove(TrackType.VIDEO);
+            Representation previousRepresentation = videoFetcher.getRepresentation();
+            removeFetcher(TrackType.VIDEO);
             videoFetcher = null;
+
+            if (timeUs == -1 && videoRepresentation != null
+                    && videoRepresentation.bandwidth > previousRepresentation.bandwidth) {
+                startSegmentReplacement(videoRepresentation);
+            }
         }
 
         RepresentationFetcher subtitleFetcher = mFetchers.get(TrackType.SUBTITLE);
 
         if (subtitleFetcher != null
                 && (timeUs > -1 || subtitleFetcher.getRepresentation() != subtitleRepresentation)) {
-            mFetchers.remove(TrackType.SUBTITLE);
+            removeFetcher(TrackType.SUBTITLE);
             subtitleFetcher = null;
         }
 
@@ -613,6 +1033,13 @@ public final class DASHSession {
             addFetcher(TrackType.SUBTITLE, subtitleRepresentation, timeUs);
         }
 
+        mPacketSources.get(TrackType.VIDEO).setBitrate(
+                videoRepresentation != null ? videoRepresentation.bandwidth : 0);
+        mPacketSources.get(TrackType.AUDIO).setBitrate(
+                audioRepresentation != null ? audioRepresentation.bandwidth : 0);
+        mPacketSources.get(TrackType.SUBTITLE).setBitrate(
+                subtitleRepresentation != null ? subtitleRepresentation.bandwidth : 0);
+
         if (mMaxBufferSize > 0) {
             // Recalculate buffer allocation between streams
             mMaxBufferSizes[TrackType.VIDEO.ordinal()] = 0;
@@ -672,10 +1099,7 @@ public final class DASHSession {
 
         int[] selectedRepresentations = mMPDParser.getSelectedRepresentations();
         int[] selectedTracks = mMPDParser.getSelectedTracks();
-        mRepresentationSelector.selectRepresentations(
-                mBandwidthEstimator.getEstimatedBandwidth(),
-                selectedTracks,
-                selectedRepresentations);
+        selectRepresentations(selectedTracks, selectedRepresentations);
         mMPDParser.updateRepresentations(selectedRepresentations);
 
         changeConfiguration(timeUs);
@@ -691,9 +1115,28 @@ public final class DASHSession {
             trackIndex = mMPDParser.getSelectedTrackIndex(type);
         }
 
-        mFetchers.put(type,
-                new RepresentationFetcher(this, representation, mPacketSources.get(type), type,
-                        nextTimeUs, mMPDParser.getPeriodTimeOffsetUs(), trackIndex));
+        if (type == TrackType.VIDEO && mQoEMetrics != null) {
+            mQoEMetrics.onRepresentationSwitch(representation.id, representation.bandwidth,
+                    representation.width, representation.height);
+        }
+
+        RepresentationFetcher fetcher = new RepresentationFetcher(this, representation,
+                mPacketSources.get(type), type, nextTimeUs, mMPDParser.getPeriodTimeOffsetUs(),
+                trackIndex);
+        fetcher.setKeyFrameOnly(mKeyFrameOnly);
+
+        mFetchers.put(type, fetcher);
+    }
+
+    private void removeFetcher(TrackType type) {
+        RepresentationFetcher fetcher = mFetchers.remove(type);
+        if (fetcher != null) {
+            fetcher.release();
+        }
+    }
+
+    public Message getDownloadNextMessage() {
+        return mEventHandler.obtainMessage(MSG_DOWNLOAD_NEXT);
     }
 
     public Message getFetcherCallbackMessage(TrackType type) {
@@ -704,9 +1147,7 @@ public final class DASHSession {
         int[] selectedTracks = mMPDParser.getSelectedTracks();
         int[] selectedRepresentations = mMPDParser.getSelectedRepresentations();
 
-        if (mRepresentationSelector.selectRepresentations(
-                mBandwidthEstimator.getEstimatedBandwidth(), selectedTracks,
-                selectedRepresentations)) {
+        if (selectRepresentations(selectedTracks, selectedRepresentations)) {
             mMPDParser.updateRepresentations(selectedRepresentations);
             mEventHandler.obtainMessage(MSG_CHANGE_CONFIGURATION, -1, 0).sendToTarget();
             return true;
@@ -714,20 +1155,95 @@ public final class DASHSession {
         return false;
     }
 
+    private boolean selectRepresentations(int[] selectedTracks, int[] selectedRepresentations) {
+        if (mRepresentationSelector instanceof BufferLevelRepresentationSelector) {
+            long[] bufferDurationsUs = new long[TrackType.values().length];
+            for (TrackType type : mPacketSources.keySet()) {
+                bufferDurationsUs[type.ordinal()] = mPacketSources.get(type).getBufferDuration();
+            }
+            ((BufferLevelRepresentationSelector)mRepresentationSelector)
+                    .onBufferLevelsChanged(bufferDurationsUs);
+        }
+
+        int[] previousRepresentations = selectedRepresentations.clone();
+        mRepresentationSelector.selectRepresentations(
+                mBandwidthEstimator.getEstimatedBandwidth(), selectedTracks,
+                selectedRepresentations);
+        mMPDParser.constrainRepresentations(selectedRepresentations);
+
+        return !Arrays.equals(previousRepresentations, selectedRepresentations);
+    }
+
+    private void onSetRepresentationConstraints(RepresentationConstraints constraints) {
+        mRepresentationConstraints = constraints;
+
+        if (mMPDParser != null) {
+            mMPDParser.setRepresentationConstraints(constraints);
+
+            if (!mFetchers.isEmpty()) {
+                // Switch away from representations that are no longer allowed
+                checkBandwidth();
+            }
+        }
+    }
+
     public long getDurationUs() {
         return mMPDParser.getDurationUs();
     }
 
     public long getActivePeriodEndTime() {
         Period period = mMPDParser.getActivePeriod();
+        if (period.durationUs < 0) {
+            // Live period without a known end
+            return Long.MAX_VALUE;
+        }
         return period.durationUs + period.startTimeUs;
     }
 
+    /**
+     * Returns the presentation time up to which segments are available, or -1
+     * if all segments are available.
+     */
+    public long getLiveEdgeTimeUs() {
+        return mMPDParser.getLiveEdgeTimeUs();
+    }
+
+    /**
+     * Returns the earliest presentation time still available in the time
+     * shift buffer of a live presentation, or -1 if all segments are
+     * available.
+     */
+    public long getTimeShiftBufferStartTimeUs() {
+        return mMPDParser.getTimeShiftBufferStartTimeUs();
+    }
+
+    /**
+     * Returns true if segments after the last one currently known will be
+     * added by MPD updates.
+     */
+    public boolean isWaitingForLiveSegments() {
+        return mMPDParser.isDynamicWaitingForUpdate() && !mMPDParser.hasNextPeriod();
+    }
+
     public DASHTrackInfo[] getTrackInfo() {
         return mMPDParser.getTrackInfo();
     }
 
     public void seekTo(long timeUs) {
+        // A pending seek clears the buffers
+        if (!mEventHandler.hasMessages(MSG_SEEK)) {
+            long seekTimeUs = PacketSource.seekInBuffer(timeUs,
+                    mPacketSources.get(TrackType.VIDEO),
+                    mMPDParser.getSelectedTrackIndex(TrackType.VIDEO) > -1,
+                    mPacketSources.get(TrackType.AUDIO),
+                    mMPDParser.getSelectedTrackIndex(TrackType.AUDIO) > -1,
+                    mPacketSources.get(TrackType.SUBTITLE));
+            if (seekTimeUs >= 0) {
+                if (LOGS_ENABLED) Log.i(TAG, "Seek to " + timeUs + " in buffer at " + seekTimeUs);
+                mEventHandler.obtainMessage(MSG_SEEK_IN_BUFFER, seekTimeUs).sendToTarget();
+                return;
+            }
+        }
 
         mPacketSources.get(TrackType.AUDIO).setClosed(true);
         mPacketSources.get(TrackType.VIDEO).setClosed(true);
@@ -755,6 +1271,16 @@ public final class DASHSession {
         return mMPDParser.getSelectedTrackIndex(type);
     }
 
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        mEventHandler.obtainMessage(MSG_SET_KEY_FRAME_ONLY, keyFrameOnly ? 1 : 0, 0)
+                .sendToTarget();
+    }
+
+    public void setRepresentationConstraints(RepresentationConstraints constraints) {
+        mEventHandler.obtainMessage(MSG_SET_REPRESENTATION_CONSTRAINTS, constraints)
+                .sendToTarget();
+    }
+
     public void disconnect() {
         mEventHandler.obtainMessage(MSG_DISCONNECT).sendToTarget();
     }
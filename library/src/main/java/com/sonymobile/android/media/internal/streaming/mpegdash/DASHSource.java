@@ -24,6 +24,7 @@ import android.util.Log;
 import com.sonymobile.android.media.BandwidthEstimator;
 import com.sonymobile.android.media.MediaPlayer.Statistics;
 import com.sonymobile.android.media.MetaData;
+import com.sonymobile.android.media.RepresentationConstraints;
 import com.sonymobile.android.media.RepresentationSelector;
 import com.sonymobile.android.media.TrackInfo;
 import com.sonymobile.android.media.TrackInfo.TrackType;
@@ -68,6 +69,8 @@ public class DASHSource extends MediaSource {
 
     private RepresentationSelector mRepresentationSelector = null;
 
+    private RepresentationConstraints mRepresentationConstraints = null;
+
     private final int mMaxBufferSize;
 
     public DASHSource(String url, Handler notify, int maxBufferSize) {
@@ -95,6 +98,8 @@ public class DASHSource extends MediaSource {
 
         mSession = new DASHSession(mEventHandler, mBandwidthEstimator, mRepresentationSelector,
                 mMaxBufferSize);
+        mSession.setRepresentationConstraints(mRepresentationConstraints);
+        mSession.setQoEMetricsCollector(getQoEMetricsCollector());
         mSession.connect(mUrl, mUrlConnection);
     }
 
@@ -214,6 +219,15 @@ public class DASHSource extends MediaSource {
         }
     }
 
+    @Override
+    public void setRepresentationConstraints(RepresentationConstraints constraints) {
+        if (mSession != null) {
+            mSession.setRepresentationConstraints(constraints);
+        } else {
+            mRepresentationConstraints = constraints;
+        }
+    }
+
     @Override
     public void selectRepresentations(int trackIndex, Vector<Integer> representations) {
         mSession.selectRepresentations(trackIndex, representations);
@@ -224,6 +238,11 @@ public class DASHSource extends MediaSource {
         return mSession.getStatistics();
     }
 
+    @Override
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        mSession.setKeyFrameOnly(keyFrameOnly);
+    }
+
     public static boolean canHandle(String uri) {
         return uri.startsWith("vuabs://") || uri.startsWith("vuabss://");
     }
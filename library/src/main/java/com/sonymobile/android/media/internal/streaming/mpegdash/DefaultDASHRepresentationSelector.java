@@ -166,7 +166,8 @@ public class DefaultDASHRepresentationSelector implements RepresentationSelector
             int videoRepresentations = videoAdaptationSet.representations.size();
             ArrayList<Integer> sortedRepresentations = new ArrayList<>(videoRepresentations);
             for (int i = 0; i < videoRepresentations; i++) {
-                if (!videoAdaptationSet.representations.get(i).selected) {
+                Representation candidate = videoAdaptationSet.representations.get(i);
+                if (!candidate.selected || !candidate.allowed) {
                     continue;
                 }
                 if (sortedRepresentations.size() == 0) {
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media.internal.streaming.mpegdash;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import android.util.Log;
+
+import com.sonymobile.android.media.TrackInfo.TrackType;
+import com.sonymobile.android.media.internal.AccessUnit;
+import com.sonymobile.android.media.internal.Configuration;
+import com.sonymobile.android.media.internal.DataSource;
+import com.sonymobile.android.media.internal.ISOBMFFParser.FragmentSample;
+
+/**
+ * Incremental parser for media segments. Data is pushed into the parser as it
+ * arrives from the network and box, sample table and access unit events are
+ * emitted as soon as enough data is available, instead of waiting for the
+ * whole segment to be downloaded.
+ */
+public class FragmentPushParser {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "FragmentPushParser";
+
+    private static final int BOX_ID_MOOF = fourCC('m', 'o', 'o', 'f');
+
+    private static final int BOX_ID_MDAT = fourCC('m', 'd', 'a', 't');
+
+    private static final int STATE_BOX_HEADER = 0;
+
+    private static final int STATE_MOOF = 1;
+
+    private static final int STATE_MDAT = 2;
+
+    private static final int STATE_SKIP = 3;
+
+    public static final int OK = 0;
+
+    public static final int ERROR = -1;
+
+    public interface Listener {
+        /**
+         * Called when the sample table of a fragment has been parsed.
+         */
+        void onSampleTable(long moofOffset);
+
+        /**
+         * Called when an access unit has been completely received.
+         */
+        void onAccessUnit(AccessUnit accessUnit);
+    }
+
+    private final DASHISOParser mParser;
+
+    private final TrackType mType;
+
+    private final Listener mListener;
+
+    private final PushDataSource mSource = new PushDataSource();
+
+    private int mState = STATE_BOX_HEADER;
+
+    private long mParseOffset;
+
+    private long mBoxStartOffset;
+
+    private long mBoxEndOffset;
+
+    private long mFragmentTimeUs = -1;
+
+    private boolean mError = false;
+
+    private boolean mKeyFrameOnly = false;
+
+    public FragmentPushParser(DASHISOParser parser, TrackType type, Listener listener) {
+        mParser = parser;
+        mType = type;
+        mListener = listener;
+    }
+
+    /**
+     * Prepares the parser for a new segment.
+     *
+     * @param offset The offset of the first byte that will be pushed.
+     * @param timeUs The start time of the segment.
+     */
+    public void start(long offset, long timeUs) {
+        // Samples left from an unfinished segment refer to its offsets
+        mParser.clearFragmentSamples();
+        mSource.reset(offset);
+        mState = STATE_BOX_HEADER;
+        mParseOffset = offset;
+        mFragmentTimeUs = timeUs;
+        mError = false;
+    }
+
+    /**
+     * Sets if only sync samples should be delivered. Non sync samples are
+     * dropped without waiting for their data.
+     */
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        mKeyFrameOnly = keyFrameOnly;
+        mParser.setKeyFrameOnly(keyFrameOnly);
+    }
+
+    /**
+     * Returns true if no more access units will be delivered from the rest of
+     * the current media data box, so the remainder of the segment does not
+     * need to be downloaded.
+     */
+    public boolean canSkipRemainder() {
+        return mKeyFrameOnly && !mError && mState == STATE_MDAT
+                && mParser.peekFragmentSample(mType) == null;
+    }
+
+    /**
+     * Pushes data into the parser and emits all events that the data made
+     * possible.
+     */
+    public int feed(byte[] data, int offset, int length) {
+        if (mError) {
+            return ERROR;
+        }
+
+        mSource.append(data, offset, length);
+
+        if (!process()) {
+            mError = true;
+            return ERROR;
+        }
+
+        return OK;
+    }
+
+    /**
+     * Returns true if the segment ended on a box boundary with all access
+     * units delivered.
+     */
+    public boolean endOfStream() {
+        if (mError) {
+            return false;
+        }
+
+        if (mState == STATE_MDAT) {
+            return mParser.peekFragmentSample(mType) == null;
+        }
+
+        return mState == STATE_BOX_HEADER && mSource.endOffset() == mParseOffset;
+    }
+
+    private boolean process() {
+        while (true) {
+            switch (mState) {
+                case STATE_BOX_HEADER: {
+                    if (mSource.endOffset() - mParseOffset < 8) {
+                        return true;
+                    }
+
+                    long boxSize = mSource.peekInt(mParseOffset) & 0xFFFFFFFFL;
+                    int boxType = mSource.peekInt(mParseOffset + 4);
+                    int boxHeaderSize = 8;
+
+                    if (boxSize == 1) {
+                        if (mSource.endOffset() - mParseOffset < 16) {
+                            return true;
+                        }
+                        boxSize = mSource.peekLong(mParseOffset + 8);
+                        boxHeaderSize = 16;
+                    }
+
+                    if (boxSize != 0 && boxSize < boxHeaderSize) {
+                        if (LOGS_ENABLED) Log.e(TAG, "Invalid box size " + boxSize);
+                        return false;
+                    }
+
+                    mBoxStartOffset = mParseOffset;
+                    mBoxEndOffset = boxSize == 0 ? Long.MAX_VALUE : mParseOffset + boxSize;
+
+                    if (boxType == BOX_ID_MOOF) {
+                        mState = STATE_MOOF;
+                    } else if (boxType == BOX_ID_MDAT) {
+                        mParseOffset += boxHeaderSize;
+                        mState = STATE_MDAT;
+                    } else {
+                        mState = STATE_SKIP;
+                    }
+                    break;
+                }
+                case STATE_MOOF: {
+                    if (mSource.endOffset() < mBoxEndOffset) {
+                        return true;
+                    }
+
+                    if (!mParser.parseMoofAt(mSource, mBoxStartOffset, mFragmentTimeUs)) {
+                        if (LOGS_ENABLED) Log.e(TAG, "Failed to parse moof at " + mBoxStartOffset);
+                        return false;
+                    }
+
+                    // Following fragments in the same segment continue the
+                    // timeline of the previous one.
+                    mFragmentTimeUs = -1;
+
+                    mListener.onSampleTable(mBoxStartOffset);
+
+                    mParseOffset = mBoxEndOffset;
+                    mSource.discardBefore(mParseOffset);
+                    mState = STATE_BOX_HEADER;
+                    break;
+                }
+                case STATE_MDAT: {
+                    FragmentSample sample = mParser.peekFragmentSample(mType);
+                    while (sample != null) {
+                        long sampleEndOffset = sample.dataOffset + sample.size;
+                        if (mSource.endOffset() < sampleEndOffset) {
+                            return true;
+                        }
+
+                        AccessUnit accessUnit = mParser.dequeueAccessUnit(mType);
+                        if (accessUnit == null || accessUnit.status != AccessUnit.OK) {
+                            if (LOGS_ENABLED) Log.e(TAG, "Failed to dequeue access unit");
+                            return false;
+                        }
+
+                        mListener.onAccessUnit(accessUnit);
+                        mSource.discardBefore(sampleEndOffset);
+
+                        sample = mParser.peekFragmentSample(mType);
+                    }
+
+                    if (mSource.endOffset() < mBoxEndOffset) {
+                        mSource.discardBefore(mSource.endOffset());
+                        return true;
+                    }
+
+                    mParseOffset = mBoxEndOffset;
+                    mSource.discardBefore(mParseOffset);
+                    mState = STATE_BOX_HEADER;
+                    break;
+                }
+                case STATE_SKIP: {
+                    if (mSource.endOffset() < mBoxEndOffset) {
+                        mSource.discardBefore(mSource.endOffset());
+                        return true;
+                    }
+
+                    mParseOffset = mBoxEndOffset;
+                    mSource.discardBefore(mParseOffset);
+                    mState = STATE_BOX_HEADER;
+                    break;
+                }
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private static int fourCC(char c1, char c2, char c3, char c4) {
+        return c1 << 24 | c2 << 16 | c3 << 8 | c4;
+    }
+
+    /**
+     * In-memory DataSource holding the part of the segment that has been
+     * received but not yet consumed. Offsets are absolute segment offsets.
+     */
+    private static final class PushDataSource extends DataSource {
+
+        private static final int INITIAL_CAPACITY = 64 * 1024;
+
+        private byte[] mData = new byte[INITIAL_CAPACITY];
+
+        // Index in mData of the byte at mBaseOffset. Discarded data is only
+        // moved out of the way when more room is needed.
+        private int mStart = 0;
+
+        private long mBaseOffset = 0;
+
+        private int mSize = 0;
+
+        private long mPosition = 0;
+
+        void reset(long offset) {
+            mBaseOffset = offset;
+            mPosition = offset;
+            mStart = 0;
+            mSize = 0;
+        }
+
+        long endOffset() {
+            return mBaseOffset + mSize;
+        }
+
+        void append(byte[] data, int offset, int length) {
+            if (mStart + mSize + length > mData.length) {
+                byte[] data2 = mData;
+                if (mSize + length > mData.length) {
+                    data2 = new byte[Math.max(mData.length * 2, mSize + length)];
+                }
+                System.arraycopy(mData, mStart, data2, 0, mSize);
+                mData = data2;
+                mStart = 0;
+            }
+            System.arraycopy(data, offset, mData, mStart + mSize, length);
+            mSize += length;
+        }
+
+        void discardBefore(long offset) {
+            int discard = (int)Math.min(offset - mBaseOffset, mSize);
+            if (discard <= 0) {
+                return;
+            }
+
+            mSize -= discard;
+            mStart = mSize == 0 ? 0 : mStart + discard;
+            mBaseOffset += discard;
+        }
+
+        int peekInt(long offset) {
+            return peekInt(mData, index(offset));
+        }
+
+        long peekLong(long offset) {
+            return peekLong(mData, index(offset));
+        }
+
+        private int index(long offset) {
+            return mStart + (int)(offset - mBaseOffset);
+        }
+
+        @Override
+        public int readAt(long offset, byte[] buffer, int size) throws IOException {
+            if (offset < mBaseOffset || offset + size > endOffset()) {
+                throw new EOFException("Data not available at " + offset);
+            }
+            System.arraycopy(mData, index(offset), buffer, 0, size);
+            mPosition = offset + size;
+            return size;
+        }
+
+        @Override
+        public int read(byte[] buffer) throws IOException {
+            return readAt(mPosition, buffer, buffer.length);
+        }
+
+        @Override
+        public int readByte() throws IOException {
+            byte[] data = new byte[1];
+            readAt(mPosition, data, 1);
+            return data[0];
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            byte[] data = new byte[2];
+            readAt(mPosition, data, 2);
+            return peekShort(data, 0);
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            byte[] data = new byte[4];
+            readAt(mPosition, data, 4);
+            return peekInt(data, 0);
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            byte[] data = new byte[8];
+            readAt(mPosition, data, 8);
+            return peekLong(data, 0);
+        }
+
+        @Override
+        public long skipBytes(long count) throws IOException {
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public long length() throws IOException {
+            return endOffset();
+        }
+
+        @Override
+        public long getCurrentOffset() {
+            return mPosition;
+        }
+
+        @Override
+        public String getRemoteIP() {
+            return null;
+        }
+
+        @Override
+        public void reset() {
+            mPosition = mBaseOffset;
+        }
+
+        @Override
+        public void seek(long offset) throws IOException {
+            mPosition = offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mStart = 0;
+            mSize = 0;
+        }
+    }
+}
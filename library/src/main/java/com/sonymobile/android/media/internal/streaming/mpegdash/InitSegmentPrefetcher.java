@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 Sony Mobile Communications Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.sonymobile.android.media.internal.streaming.mpegdash;
+
+import java.io.IOException;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.sonymobile.android.media.internal.Configuration;
+import com.sonymobile.android.media.internal.DataSource;
+import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser.Representation;
+import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser.SegmentBase;
+
+/**
+ * Downloads and parses the init segment and segment index of representations
+ * that are not playing yet, so that a later switch to one of them can start
+ * with the media segments. The representations are fetched one at a time on
+ * a background priority thread and the parsers are handed to the session.
+ */
+final class InitSegmentPrefetcher {
+
+    private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
+
+    private static final String TAG = "InitSegmentPrefetcher";
+
+    private final DASHSession mSession;
+
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    private volatile boolean mCancelled = false;
+
+    InitSegmentPrefetcher(DASHSession session) {
+        mSession = session;
+
+        mThread = new HandlerThread("DASH prefetch", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Queues fetching of the init segment and segment index of a
+     * representation.
+     */
+    void prefetch(final Representation representation) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                DASHISOParser parser = fetch(representation);
+                if (parser != null) {
+                    if (LOGS_ENABLED) Log.v(TAG, "Prefetched " + representation.id);
+                    mSession.putInitializedParser(representation, parser);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops fetching and quits the thread once the current fetch is done. A
+     * download in progress is completed but not parsed.
+     */
+    void cancel() {
+        mCancelled = true;
+        mThread.quit();
+    }
+
+    private DASHISOParser fetch(Representation representation) {
+        DASHISOParser parser = new DASHISOParser();
+        boolean success = false;
+        try {
+            DataSource source = createInitDataSource(representation);
+            if (source == null) {
+                return null;
+            }
+
+            SegmentBase segmentBase = representation.segmentBase;
+            int err = parse(parser, source, true);
+            if (err == DASHISOParser.ERROR_BUFFER_TO_SMALL && segmentBase != null
+                    && parser.getInitSize() > segmentBase.initSize) {
+                // The init size was only a guess, retry once with the size
+                // of the moov box, like the fetcher does.
+                source = mSession.getSegmentCache().open(segmentBase.url,
+                        segmentBase.initOffset, (int)parser.getInitSize(), null);
+                err = parse(parser, source, true);
+            }
+            if (err != DASHISOParser.OK) {
+                if (LOGS_ENABLED) Log.w(TAG, "Error " + err + " while prefetching init");
+                return null;
+            }
+
+            if (parser.getSegmentIndex() == null && segmentBase != null) {
+                // Without an index range the sidx follows the init segment
+                long sidxOffset = segmentBase.sidxOffset < 0 ? parser.getInitSize()
+                        : segmentBase.sidxOffset;
+                if (sidxOffset < 0) {
+                    return null;
+                }
+                source = mSession.getSegmentCache().open(segmentBase.url, sidxOffset,
+                        (int)segmentBase.sidxSize, null);
+                err = parse(parser, source, false);
+                if (err != DASHISOParser.OK) {
+                    if (LOGS_ENABLED) Log.w(TAG, "Error " + err + " while prefetching sidx");
+                    return null;
+                }
+            }
+
+            success = true;
+            return parser;
+        } catch (IOException | IllegalArgumentException e) {
+            if (LOGS_ENABLED) Log.w(TAG, "Could not prefetch " + representation.id, e);
+            return null;
+        } finally {
+            if (!success) {
+                parser.release();
+            }
+        }
+    }
+
+    private int parse(DASHISOParser parser, DataSource source, boolean init) {
+        try {
+            if (mCancelled) {
+                return DASHISOParser.ERROR;
+            }
+
+            return init ? parser.parseInit(source) : parser.parseSidx(source);
+        } finally {
+            try {
+                source.close();
+            } catch (IOException e) {
+                if (LOGS_ENABLED) Log.e(TAG, "Failed to close source");
+            }
+        }
+    }
+
+    private DataSource createInitDataSource(Representation representation)
+            throws IOException {
+        // Not counted in the bandwidth estimate, the transfers run in
+        // parallel with the segment downloads.
+        if (representation.segmentTemplate != null) {
+            String uri = representation.segmentTemplate.initialization;
+            if (uri == null) {
+                return null;
+            }
+            uri = RepresentationFetcher.getTemplatedUri(uri, representation,
+                    representation.segmentTemplate.startNumber, -1);
+            return mSession.getSegmentCache().open(uri, -1, -1, null);
+        } else if (representation.segmentBase != null) {
+            return mSession.getSegmentCache().open(representation.segmentBase.url,
+                    representation.segmentBase.initOffset,
+                    (int)representation.segmentBase.initSize, null);
+        }
+        return null;
+    }
+}
@@ -26,7 +26,12 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
 import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import android.util.Base64;
 import android.util.Log;
@@ -37,12 +42,15 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import com.sonymobile.android.media.AudioTrackRepresentation;
 import com.sonymobile.android.media.DASHTrackInfo;
+import com.sonymobile.android.media.RepresentationConstraints;
 import com.sonymobile.android.media.TrackInfo.TrackType;
 import com.sonymobile.android.media.TrackRepresentation;
 import com.sonymobile.android.media.VideoTrackRepresentation;
 import com.sonymobile.android.media.internal.Configuration;
 import com.sonymobile.android.media.internal.Util;
+import com.sonymobile.android.media.internal.streaming.common.BaseURLSelector;
 import com.sonymobile.android.media.internal.streaming.common.ParseException;
+import com.sonymobile.android.media.internal.streaming.common.RepresentationFilter;
 
 public class MPDParser {
 
@@ -52,6 +60,12 @@ public class MPDParser {
 
     private static final int MAX_RETRIES = 5;
 
+    private static final long DEFAULT_PRESENTATION_DELAY_US = 10000000;
+
+    private static final Pattern DATE_TIME_PATTERN = Pattern.compile(
+            "(\\d{4})-(\\d{2})-(\\d{2})[Tt](\\d{2}):(\\d{2}):(\\d{2})(\\.\\d+)?"
+                    + "([Zz]|([+-])(\\d{2}):?(\\d{2})?)?");
+
     private long mDurationUs = -1;
 
     private long mMinBufferTimeUs;
@@ -82,6 +96,19 @@ public class MPDParser {
 
     private int mUnchangedCounter = 0;
 
+    private long mAvailabilityStartTimeMs = -1;
+
+    private long mTimeShiftBufferDepthUs = -1;
+
+    private long mSuggestedPresentationDelayUs = -1;
+
+    private final BaseURLSelector mBaseURLSelector = new BaseURLSelector();
+
+    // The MPD, Period or Representation the last BaseURL belonged to.
+    private Object mBaseURLLevel;
+
+    private RepresentationConstraints mRepresentationConstraints;
+
     public MPDParser(String baseUri) {
         mBaseUri = baseUri.substring(0, baseUri.lastIndexOf('/') + 1);
     }
@@ -90,6 +117,14 @@ public class MPDParser {
         return mMPDFile;
     }
 
+    /**
+     * Returns the BaseURLSelector holding the alternative BaseURLs of the
+     * MPD.
+     */
+    public BaseURLSelector getBaseURLSelector() {
+        return mBaseURLSelector;
+    }
+
     public long getMinBufferTimeUs() {
         return mMinBufferTimeUs;
     }
@@ -154,6 +189,7 @@ public class MPDParser {
 
     private boolean parseXML(InputStream in, boolean update) {
         XmlPullParser parser = Xml.newPullParser();
+        mBaseURLLevel = null;
         try {
             parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
             parser.setInput(in, null);
@@ -241,6 +277,7 @@ public class MPDParser {
                 return false;
             }
 
+            mLastDigest = digest;
             buffer = out.toByteArray();
         } catch (IOException e) {
             if (LOGS_ENABLED) Log.e(TAG, "Could not download updated MPD", e);
@@ -251,7 +288,19 @@ public class MPDParser {
         }
 
         mUnchangedCounter = 0;
-        return parseXML(new ByteArrayInputStream(buffer), true);
+        boolean success = parseXML(new ByteArrayInputStream(buffer), true);
+        if (success && mIsDynamic) {
+            pruneTimeShiftBuffer();
+        }
+        return success;
+    }
+
+    /**
+     * Called instead of update() when the server reported that the MPD has
+     * not been modified.
+     */
+    public void setUnchanged() {
+        mUnchangedCounter++;
     }
 
     private void updatePeriod(Period oldPeriod, Period newPeriod) {
@@ -313,7 +362,7 @@ public class MPDParser {
             }
 
             for (int j = 0; j < newAdaptationSet.representations.size(); j++) {
-                Representation newRepresentation = newAdaptationSet.representations.get(i);
+                Representation newRepresentation = newAdaptationSet.representations.get(j);
 
                 if (oldRepresentation.id.equals(newRepresentation.id)) {
                     if (newRepresentation.segmentTemplate != null) {
@@ -341,15 +390,22 @@ public class MPDParser {
         mDurationUs = parseISO8601Duration(parser.getAttributeValue(null,
                 "mediaPresentationDuration"));
 
-        String type = parser.getAttributeValue(null, "type");
-        if (type.equalsIgnoreCase("dynamic")) {
-            mIsDynamic = true;
-        }
+        // A dynamic MPD becomes static when the live presentation has ended
+        mIsDynamic = "dynamic".equalsIgnoreCase(parser.getAttributeValue(null, "type"));
 
         mMinBufferTimeUs = parseISO8601Duration(parser.getAttributeValue(null, "minBufferTime"));
 
         mMinUpdatePeriodUs =
                 parseISO8601Duration(parser.getAttributeValue(null, "minimumUpdatePeriod"));
+
+        mAvailabilityStartTimeMs =
+                parseISO8601DateTime(parser.getAttributeValue(null, "availabilityStartTime"));
+
+        mTimeShiftBufferDepthUs =
+                parseISO8601Duration(parser.getAttributeValue(null, "timeShiftBufferDepth"));
+
+        mSuggestedPresentationDelayUs = parseISO8601Duration(
+                parser.getAttributeValue(null, "suggestedPresentationDelay"));
     }
 
     private void handlePeriod(XmlPullParser parser, boolean update) {
@@ -446,6 +502,8 @@ public class MPDParser {
         if (value != null) {
             mCurrentAdaptationSet.audioSamplingRate = Integer.parseInt(value);
         }
+
+        mCurrentAdaptationSet.codecs = parser.getAttributeValue(null, "codecs");
     }
 
     private void endAdaptationSet() {
@@ -477,6 +535,8 @@ public class MPDParser {
             }
         }
 
+        applyConstraints(mCurrentAdaptationSet);
+
         mCurrentPeriod.adaptationSets.add(mCurrentAdaptationSet);
 
         mCurrentAdaptationSet = null;
@@ -545,44 +605,34 @@ public class MPDParser {
 
     private String makeURL(String url) {
 
-        String fullURL = mBaseUri;
+        String fullURL = getPeriodBaseURL();
 
-        if (mCurrentPeriod != null && mCurrentPeriod.baseURL != null) {
-            if (mCurrentPeriod.baseURL.startsWith("http://")
-                    || mCurrentPeriod.baseURL.startsWith("https://")) {
-                fullURL = mCurrentPeriod.baseURL;
-            } else {
-                fullURL += mCurrentPeriod.baseURL;
-            }
+        if (mCurrentRepresentation != null && mCurrentRepresentation.baseURL != null) {
+            fullURL = resolveURL(fullURL, mCurrentRepresentation.baseURL);
         }
 
-        if (mCurrentRepresentation != null && mCurrentRepresentation.baseURL != null) {
-            if (mCurrentPeriod.baseURL.startsWith("http://")
-                    || mCurrentPeriod.baseURL.startsWith("https://")) {
-                fullURL = mCurrentRepresentation.baseURL;
-            } else {
-                fullURL += mCurrentRepresentation.baseURL;
-            }
+        return resolveURL(fullURL, url);
+    }
+
+    private String getPeriodBaseURL() {
+        if (mCurrentPeriod != null && mCurrentPeriod.baseURL != null) {
+            return resolveURL(mBaseUri, mCurrentPeriod.baseURL);
         }
+        return mBaseUri;
+    }
 
+    private static String resolveURL(String baseURL, String url) {
         if (url.startsWith("http://") || url.startsWith("https://")) {
-            fullURL = url;
-        } else {
-            fullURL += url;
+            return url;
         }
-
-        return fullURL;
+        return baseURL + url;
     }
 
     private void handleSegmentBase(XmlPullParser parser) {
         mCurrentSegmentBase = new SegmentBase();
 
-        String baseURL = mCurrentRepresentation.baseURL;
-        if (baseURL.startsWith("http://") || baseURL.startsWith("https://")) {
-            mCurrentSegmentBase.url = mCurrentRepresentation.baseURL;
-        } else {
-            mCurrentSegmentBase.url = mBaseUri + mCurrentRepresentation.baseURL;
-        }
+        mCurrentSegmentBase.url = resolveURL(getPeriodBaseURL(),
+                mCurrentRepresentation.baseURL);
 
         String[] indexRange = parser.getAttributeValue(null, "indexRange").split("-");
         mCurrentSegmentBase.sidxOffset = Long.parseLong(indexRange[0]);
@@ -616,8 +666,10 @@ public class MPDParser {
         }
 
         if (template.segmentTimeline == null) {
-            template.segmentTimeline = new ArrayList<>();
+            template.segmentTimeline = new SegmentTimeline(new ArrayList<SegmentTimelineEntry>(),
+                    template.startNumber);
         }
+        ArrayList<SegmentTimelineEntry> timeline = template.segmentTimeline.entries;
 
         String time = parser.getAttributeValue(null, "t");
         String duration = parser.getAttributeValue(null, "d");
@@ -626,11 +678,10 @@ public class MPDParser {
         if (time != null) {
             entry.timeTicks = Long.parseLong(time);
         } else {
-            if (template.segmentTimeline.size() == 0) {
+            if (timeline.size() == 0) {
                 entry.timeTicks = 0;
             } else {
-                SegmentTimelineEntry lastEntry = template.segmentTimeline
-                        .get(template.segmentTimeline.size() - 1);
+                SegmentTimelineEntry lastEntry = timeline.get(timeline.size() - 1);
 
                 entry.timeTicks = lastEntry.timeTicks
                         + lastEntry.durationTicks * (lastEntry.repeat + 1);
@@ -645,13 +696,22 @@ public class MPDParser {
             entry.repeat = Integer.parseInt(repeat);
 
             if (entry.repeat < 0) {
-                long tmpRepeat = mCurrentPeriod.durationUs
-                        / (entry.durationTicks * 1000000L / template.timescale);
-                entry.repeat = (int)tmpRepeat - 1;
+                long durationUs = entry.durationTicks * 1000000L / template.timescale;
+                if (mCurrentPeriod.durationUs < 0 && mIsDynamic
+                        && mAvailabilityStartTimeMs >= 0) {
+                    // Repeat until the latest available segment
+                    long availableUs = getLiveEdgeTimeUs() - mCurrentPeriod.startTimeUs
+                            - entry.timeTicks * 1000000L / template.timescale;
+                    entry.repeat = (int)Math.max(availableUs / durationUs - 1, 0);
+                } else {
+                    long tmpRepeat = mCurrentPeriod.durationUs / durationUs;
+                    entry.repeat = (int)tmpRepeat - 1;
+                }
             }
         }
 
-        template.segmentTimeline.add(entry);
+        // Not published to the fetchers until the MPD has been parsed
+        timeline.add(entry);
     }
 
     private void handleRepresentation(XmlPullParser parser) {
@@ -678,6 +738,8 @@ public class MPDParser {
             mCurrentRepresentation.audioSamplingRate = Integer.parseInt(value);
         }
 
+        mCurrentRepresentation.codecs = parser.getAttributeValue(null, "codecs");
+
         if (mCurrentAdaptationSet.mime == null) {
             mCurrentAdaptationSet.mime = parser.getAttributeValue(null, "mimeType");
         }
@@ -697,12 +759,7 @@ public class MPDParser {
                 && mCurrentRepresentation.baseURL.length() > 0) {
             SegmentBase segmentBase = new SegmentBase();
 
-            String baseURL = mCurrentRepresentation.baseURL;
-            if (baseURL.startsWith("http://") || baseURL.startsWith("https://")) {
-                segmentBase.url = mCurrentRepresentation.baseURL;
-            } else {
-                segmentBase.url = mBaseUri + mCurrentRepresentation.baseURL;
-            }
+            segmentBase.url = resolveURL(getPeriodBaseURL(), mCurrentRepresentation.baseURL);
 
             segmentBase.initOffset = 0;
             segmentBase.initSize = 200;
@@ -737,12 +794,41 @@ public class MPDParser {
     }
 
     private void handleBaseURL(XmlPullParser parser) {
+        String url = parser.getText();
+        if (url == null) {
+            return;
+        }
+        url = url.trim();
+
+        Object level = mCurrentRepresentation != null ? mCurrentRepresentation
+                : (mCurrentPeriod != null ? mCurrentPeriod : this);
+        if (level == mBaseURLLevel) {
+            // Further BaseURLs on the same level are alternatives for the
+            // first, e.g. on other CDNs.
+            addBaseURLAlternative(url);
+            return;
+        }
+        mBaseURLLevel = level;
+
         if (mCurrentRepresentation != null) {
-            mCurrentRepresentation.baseURL = parser.getText();
+            mCurrentRepresentation.baseURL = url;
         } else if (mCurrentPeriod != null) {
-            mCurrentPeriod.baseURL = parser.getText();
+            mCurrentPeriod.baseURL = url;
         } else {
-            mBaseUri = parser.getText();
+            mBaseUri = url;
+        }
+    }
+
+    private void addBaseURLAlternative(String url) {
+        if (mCurrentRepresentation != null) {
+            String periodBaseURL = getPeriodBaseURL();
+            mBaseURLSelector.addAlternative(
+                    resolveURL(periodBaseURL, mCurrentRepresentation.baseURL),
+                    resolveURL(periodBaseURL, url));
+        } else if (mCurrentPeriod != null) {
+            mBaseURLSelector.addAlternative(getPeriodBaseURL(), resolveURL(mBaseUri, url));
+        } else if (url.startsWith("http://") || url.startsWith("https://")) {
+            mBaseURLSelector.addAlternative(mBaseUri, url);
         }
     }
 
@@ -823,6 +909,47 @@ public class MPDParser {
         return durationUs;
     }
 
+    /**
+     * Parses an xs:dateTime value.
+     *
+     * @return The time in milliseconds since the epoch, or -1 if the value
+     *         could not be parsed.
+     */
+    static long parseISO8601DateTime(String value) {
+        if (value == null) {
+            return -1;
+        }
+
+        Matcher matcher = DATE_TIME_PATTERN.matcher(value.trim());
+        if (!matcher.matches()) {
+            if (LOGS_ENABLED) Log.e(TAG, "Illegal ISO 8601 date and time " + value);
+            return -1;
+        }
+
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)) - 1,
+                Integer.parseInt(matcher.group(3)), Integer.parseInt(matcher.group(4)),
+                Integer.parseInt(matcher.group(5)), Integer.parseInt(matcher.group(6)));
+
+        long timeMs = calendar.getTimeInMillis();
+
+        if (matcher.group(7) != null) {
+            timeMs += new BigDecimal("0" + matcher.group(7)).multiply(new BigDecimal(1000))
+                    .longValue();
+        }
+
+        if (matcher.group(9) != null) {
+            long offsetMs = Integer.parseInt(matcher.group(10)) * 60 * 60 * 1000L;
+            if (matcher.group(11) != null) {
+                offsetMs += Integer.parseInt(matcher.group(11)) * 60 * 1000L;
+            }
+            timeMs += matcher.group(9).equals("+") ? -offsetMs : offsetMs;
+        }
+
+        return timeMs;
+    }
+
     private static float parseFrameRate(String value) {
         try {
             int index = value.indexOf('/');
@@ -888,37 +1015,8 @@ public class MPDParser {
                         new TrackRepresentation[numRepresentations];
 
                 for (int k = 0; k < numRepresentations; k++) {
-                    Representation representation = adaptationSet.representations.get(k);
-                    TrackRepresentation trackRepresentation = null;
-
-                    if (trackType == TrackType.AUDIO) {
-                        String channelConfiguration = representation.audioChannelConfiguration;
-                        if (channelConfiguration == null || channelConfiguration.isEmpty()) {
-                            channelConfiguration = adaptationSet.audioChannelConfiguration;
-                        }
-
-                        int channelCount = parseChannelConfiguration(channelConfiguration);
-
-                        int samplingRate = representation.audioSamplingRate != 0
-                                ? representation.audioSamplingRate
-                                : adaptationSet.audioSamplingRate;
-                        trackRepresentation = new AudioTrackRepresentation(
-                                representation.bandwidth, channelCount, channelConfiguration,
-                                samplingRate);
-                    } else if (trackType == TrackType.VIDEO) {
-                        int width = representation.width != 0 ? representation.width
-                                : adaptationSet.width;
-                        int height = representation.height != 0 ? representation.height
-                                : adaptationSet.height;
-                        float frameRate = representation.frameRate != 0 ? representation.frameRate
-                                : adaptationSet.frameRate;
-                        trackRepresentation = new VideoTrackRepresentation(
-                                representation.bandwidth, width, height, frameRate);
-                    } else if (trackType == TrackType.SUBTITLE) {
-                        trackRepresentation = new TrackRepresentation(representation.bandwidth);
-                    }
-
-                    trackRepresentations[k] = trackRepresentation;
+                    trackRepresentations[k] = createTrackRepresentation(adaptationSet,
+                            adaptationSet.representations.get(k));
                 }
 
                 trackInfos[trackIndex] = new DASHTrackInfo(trackType, adaptationSet.mime,
@@ -932,6 +1030,111 @@ public class MPDParser {
         return trackInfos;
     }
 
+    private static TrackRepresentation createTrackRepresentation(AdaptationSet adaptationSet,
+            Representation representation) {
+        TrackType trackType = adaptationSet.type;
+
+        if (trackType == TrackType.AUDIO) {
+            String channelConfiguration = representation.audioChannelConfiguration;
+            if (channelConfiguration == null || channelConfiguration.isEmpty()) {
+                channelConfiguration = adaptationSet.audioChannelConfiguration;
+            }
+
+            int channelCount = parseChannelConfiguration(channelConfiguration);
+
+            int samplingRate = representation.audioSamplingRate != 0
+                    ? representation.audioSamplingRate
+                    : adaptationSet.audioSamplingRate;
+            return new AudioTrackRepresentation(representation.bandwidth, channelCount,
+                    channelConfiguration, samplingRate);
+        } else if (trackType == TrackType.VIDEO) {
+            int width = representation.width != 0 ? representation.width
+                    : adaptationSet.width;
+            int height = representation.height != 0 ? representation.height
+                    : adaptationSet.height;
+            float frameRate = representation.frameRate != 0 ? representation.frameRate
+                    : adaptationSet.frameRate;
+            return new VideoTrackRepresentation(representation.bandwidth, width, height,
+                    frameRate);
+        } else if (trackType == TrackType.SUBTITLE) {
+            return new TrackRepresentation(representation.bandwidth);
+        }
+
+        return null;
+    }
+
+    /**
+     * Sets the constraints limiting which representations may be selected.
+     * Representations not satisfying them are marked as not allowed in all
+     * periods, including periods added by later updates.
+     *
+     * @param constraints The constraints or null for no constraints.
+     */
+    public void setRepresentationConstraints(RepresentationConstraints constraints) {
+        mRepresentationConstraints = constraints;
+
+        for (Period period : mPeriods) {
+            for (AdaptationSet adaptationSet : period.adaptationSets) {
+                applyConstraints(adaptationSet);
+            }
+        }
+    }
+
+    private void applyConstraints(AdaptationSet adaptationSet) {
+        int numRepresentations = adaptationSet.representations.size();
+        TrackRepresentation[] trackRepresentations = new TrackRepresentation[numRepresentations];
+        String[] codecs = new String[numRepresentations];
+        for (int i = 0; i < numRepresentations; i++) {
+            Representation representation = adaptationSet.representations.get(i);
+            TrackRepresentation trackRepresentation =
+                    createTrackRepresentation(adaptationSet, representation);
+            trackRepresentations[i] = trackRepresentation != null ? trackRepresentation
+                    : new TrackRepresentation(representation.bandwidth);
+            codecs[i] = representation.codecs != null ? representation.codecs
+                    : adaptationSet.codecs;
+        }
+
+        boolean[] allowed = RepresentationFilter.getAllowedRepresentations(
+                mRepresentationConstraints, adaptationSet.type, trackRepresentations, codecs);
+        for (int i = 0; i < numRepresentations; i++) {
+            adaptationSet.representations.get(i).allowed = allowed[i];
+            if (LOGS_ENABLED && !allowed[i]) {
+                Log.v(TAG, "Representation " + adaptationSet.representations.get(i).id
+                        + " not allowed by constraints");
+            }
+        }
+    }
+
+    /**
+     * Replaces selected representations of the active period that are not
+     * allowed by the constraints with the closest allowed ones.
+     *
+     * @param selectedRepresentations in: The selected representations, out:
+     *            The allowed representations. Indexed by TrackType.
+     */
+    public void constrainRepresentations(int[] selectedRepresentations) {
+        Period period = mPeriods.get(mActivePeriod);
+        for (int i = 0; i < TrackType.UNKNOWN.ordinal(); i++) {
+            if (period.currentAdaptationSet[i] < 0 || selectedRepresentations[i] < 0) {
+                continue;
+            }
+
+            AdaptationSet adaptationSet = period.adaptationSets.get(period.currentAdaptationSet[i]);
+            int numRepresentations = adaptationSet.representations.size();
+            TrackRepresentation[] trackRepresentations =
+                    new TrackRepresentation[numRepresentations];
+            boolean[] allowed = new boolean[numRepresentations];
+            for (int j = 0; j < numRepresentations; j++) {
+                Representation representation = adaptationSet.representations.get(j);
+                trackRepresentations[j] = new TrackRepresentation(representation.bandwidth);
+                allowed[j] = representation.allowed;
+            }
+
+            selectedRepresentations[i] = RepresentationFilter.getClosestAllowedRepresentation(
+                    trackRepresentations, allowed, selectedRepresentations[i]);
+        }
+    }
+
     public void seekTo(long timeUs) {
 
         for (int i = 0; i < mPeriods.size(); i++) {
@@ -1164,7 +1367,188 @@ public class MPDParser {
     }
 
     public boolean isDynamicWaitingForUpdate() {
-        return mIsDynamic && (mUnchangedCounter < MAX_RETRIES);
+        // Without an availability start time a dynamic MPD that stops
+        // changing is considered to have ended.
+        return mIsDynamic
+                && (mAvailabilityStartTimeMs >= 0 || mUnchangedCounter < MAX_RETRIES);
+    }
+
+    public boolean isDynamic() {
+        return mIsDynamic;
+    }
+
+    /**
+     * Returns the presentation time up to which segments are available, or -1
+     * if this is not a dynamic MPD. Segments ending after this time must not
+     * be requested.
+     */
+    public long getLiveEdgeTimeUs() {
+        if (!mIsDynamic) {
+            return -1;
+        }
+
+        if (mAvailabilityStartTimeMs >= 0) {
+            return (System.currentTimeMillis() - mAvailabilityStartTimeMs) * 1000;
+        }
+
+        return getTimelineEndTimeUs();
+    }
+
+    /**
+     * Returns the earliest presentation time that is still available in the
+     * time shift buffer, or -1 if this is not a dynamic MPD.
+     */
+    public long getTimeShiftBufferStartTimeUs() {
+        long liveEdgeTimeUs = getLiveEdgeTimeUs();
+        if (liveEdgeTimeUs < 0) {
+            return -1;
+        }
+
+        long startTimeUs = mPeriods.isEmpty() ? 0 : mPeriods.get(0).startTimeUs;
+        if (mTimeShiftBufferDepthUs >= 0) {
+            startTimeUs = Math.max(startTimeUs, liveEdgeTimeUs - mTimeShiftBufferDepthUs);
+        }
+        return startTimeUs;
+    }
+
+    /**
+     * Returns the presentation time to start playback of a dynamic MPD at,
+     * which is the suggested presentation delay behind the live edge.
+     */
+    public long getLiveStartTimeUs() {
+        long liveEdgeTimeUs = getLiveEdgeTimeUs();
+        if (liveEdgeTimeUs < 0) {
+            return 0;
+        }
+
+        long timelineEndTimeUs = getTimelineEndTimeUs();
+        if (timelineEndTimeUs >= 0) {
+            liveEdgeTimeUs = Math.min(liveEdgeTimeUs, timelineEndTimeUs);
+        }
+
+        long delayUs = mSuggestedPresentationDelayUs;
+        if (delayUs < 0) {
+            delayUs = Math.max(mMinBufferTimeUs, DEFAULT_PRESENTATION_DELAY_US);
+        }
+
+        return Math.max(liveEdgeTimeUs - delayUs, getTimeShiftBufferStartTimeUs());
+    }
+
+    /**
+     * Returns the end time of the last segment in the segment timelines of
+     * the last period, or -1 if it has no segment timeline.
+     */
+    private long getTimelineEndTimeUs() {
+        if (mPeriods.isEmpty()) {
+            return -1;
+        }
+
+        Period period = mPeriods.get(mPeriods.size() - 1);
+        long endTimeUs = -1;
+        for (AdaptationSet adaptationSet : period.adaptationSets) {
+            for (Representation representation : adaptationSet.representations) {
+                SegmentTemplate template = representation.segmentTemplate;
+                SegmentTimeline timeline = template != null ? template.segmentTimeline : null;
+                if (timeline == null || timeline.entries.isEmpty()) {
+                    continue;
+                }
+
+                SegmentTimelineEntry entry = timeline.entries.get(timeline.entries.size() - 1);
+                long entryEndTimeUs = period.startTimeUs + (entry.timeTicks
+                        + entry.durationTicks * (entry.repeat + 1)) * 1000000L
+                        / template.timescale;
+                if (endTimeUs < 0 || entryEndTimeUs < endTimeUs) {
+                    // Use the track that is furthest behind
+                    endTimeUs = entryEndTimeUs;
+                }
+            }
+        }
+        return endTimeUs;
+    }
+
+    /**
+     * Removes segment timeline entries and periods that have left the time
+     * shift buffer so that memory use stays flat over long live sessions.
+     */
+    private void pruneTimeShiftBuffer() {
+        if (mTimeShiftBufferDepthUs < 0) {
+            return;
+        }
+
+        long startTimeUs = getTimeShiftBufferStartTimeUs();
+
+        while (mActivePeriod > 0) {
+            Period period = mPeriods.get(0);
+            if (period.durationUs < 0 || period.startTimeUs + period.durationUs > startTimeUs) {
+                break;
+            }
+            mPeriods.remove(0);
+            mActivePeriod--;
+        }
+
+        for (Period period : mPeriods) {
+            for (AdaptationSet adaptationSet : period.adaptationSets) {
+                if (adaptationSet.segmentTemplate != null) {
+                    pruneSegmentTimeline(adaptationSet.segmentTemplate,
+                            startTimeUs - period.startTimeUs);
+                }
+                for (Representation representation : adaptationSet.representations) {
+                    if (representation.segmentTemplate != null) {
+                        pruneSegmentTimeline(representation.segmentTemplate,
+                                startTimeUs - period.startTimeUs);
+                    }
+                }
+            }
+        }
+    }
+
+    static void pruneSegmentTimeline(SegmentTemplate template, long startTimeUs) {
+        SegmentTimeline segmentTimeline = template.segmentTimeline;
+        if (segmentTimeline == null || startTimeUs <= 0) {
+            return;
+        }
+
+        ArrayList<SegmentTimelineEntry> timeline = segmentTimeline.entries;
+
+        long startTicks = startTimeUs * template.timescale / 1000000L;
+        long removedSegments = 0;
+        int firstEntry = 0;
+        SegmentTimelineEntry trimmedEntry = null;
+        for (; firstEntry < timeline.size(); firstEntry++) {
+            SegmentTimelineEntry entry = timeline.get(firstEntry);
+            long expiredSegments = entry.durationTicks > 0
+                    ? (startTicks - entry.timeTicks) / entry.durationTicks : 0;
+            if (expiredSegments <= 0) {
+                break;
+            } else if (expiredSegments <= entry.repeat) {
+                trimmedEntry = new SegmentTimelineEntry();
+                trimmedEntry.timeTicks = entry.timeTicks + expiredSegments * entry.durationTicks;
+                trimmedEntry.durationTicks = entry.durationTicks;
+                trimmedEntry.repeat = entry.repeat - (int)expiredSegments;
+                removedSegments += expiredSegments;
+                break;
+            }
+            removedSegments += entry.repeat + 1;
+        }
+
+        if (removedSegments == 0) {
+            return;
+        }
+
+        // The fetchers may be reading the old timeline, replace it instead of
+        // modifying it. The entries and the number of the first segment are
+        // published together.
+        ArrayList<SegmentTimelineEntry> pruned = new ArrayList<>(timeline.size() - firstEntry);
+        if (trimmedEntry != null) {
+            pruned.add(trimmedEntry);
+            firstEntry++;
+        }
+        pruned.addAll(timeline.subList(firstEntry, timeline.size()));
+
+        // Segment numbers are ints in the templates
+        int startNumber = (int)Math.min(segmentTimeline.startNumber + removedSegments,
+                Integer.MAX_VALUE);
+        template.segmentTimeline = new SegmentTimeline(pruned, startNumber);
     }
 
     public static class SegmentBase {
@@ -1208,7 +1592,11 @@ public class MPDParser {
 
         String baseURL;
 
+        String codecs;
+
         boolean selected = true;
+
+        boolean allowed = true;
     }
 
     public static class Period {
@@ -1253,9 +1641,27 @@ public class MPDParser {
 
         String audioChannelConfiguration;
 
+        String codecs;
+
         final ArrayList<Representation> representations = new ArrayList<>();
     }
 
+    /**
+     * The segments of a SegmentTimeline and the number of its first segment.
+     * Replaced as a whole when the timeline is updated or pruned and not
+     * modified once it has been published.
+     */
+    public static class SegmentTimeline {
+        public final ArrayList<SegmentTimelineEntry> entries;
+
+        public final int startNumber;
+
+        SegmentTimeline(ArrayList<SegmentTimelineEntry> entries, int startNumber) {
+            this.entries = entries;
+            this.startNumber = startNumber;
+        }
+    }
+
     public static class SegmentTemplate {
         String initialization;
 
@@ -1267,7 +1673,7 @@ public class MPDParser {
 
         int durationTicks;
 
-        public ArrayList<SegmentTimelineEntry> segmentTimeline;
+        public volatile SegmentTimeline segmentTimeline;
 
         boolean handled;
     }
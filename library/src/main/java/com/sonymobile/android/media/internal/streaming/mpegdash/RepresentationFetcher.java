@@ -17,25 +17,33 @@
 package com.sonymobile.android.media.internal.streaming.mpegdash;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 
 import android.media.MediaCodec;
 import android.media.MediaCodec.CryptoInfo;
 import android.media.MediaFormat;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.sonymobile.android.media.AbandonedTransferBandwidthEstimator;
 import com.sonymobile.android.media.BandwidthEstimator;
 import com.sonymobile.android.media.MetaData;
 import com.sonymobile.android.media.TrackInfo.TrackType;
 import com.sonymobile.android.media.internal.AccessUnit;
 import com.sonymobile.android.media.internal.Configuration;
 import com.sonymobile.android.media.internal.DataSource;
+import com.sonymobile.android.media.internal.QoEMetricsCollector;
 import com.sonymobile.android.media.internal.streaming.mpegdash.DASHISOParser.SubSegment;
 import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser.Representation;
+import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser.SegmentTimeline;
 import com.sonymobile.android.media.internal.streaming.mpegdash.MPDParser.SegmentTimelineEntry;
 import com.sonymobile.android.media.internal.streaming.common.PacketSource;
+import com.sonymobile.android.media.internal.streaming.common.SegmentTimelineIndex;
 
 public class RepresentationFetcher {
 
@@ -45,11 +53,16 @@ public class RepresentationFetcher {
 
     private static final int SIDX_HEADER_SNIFF_SIZE = 200;
 
+    private static final int READ_CHUNK_SIZE = 16 * 1024;
+
+    // Time to measure a segment download before it may be abandoned.
+    private static final long ABANDON_MIN_DOWNLOAD_TIME_MS = 1000;
+
     private static final boolean LOGS_ENABLED = Configuration.DEBUG || false;
 
     private static final String TAG = "RepresentationFetcher";
 
-    private State mState = State.INIT;
+    private volatile State mState = State.INIT;
 
     private final Representation mRepresentation;
 
@@ -57,19 +70,27 @@ public class RepresentationFetcher {
 
     private final DASHSession mSession;
 
-    private final DASHISOParser mParser = new DASHISOParser();
+    private final DASHISOParser mParser;
+
+    private final FragmentPushParser mPushParser;
+
+    private final byte[] mReadBuffer = new byte[READ_CHUNK_SIZE];
+
+    private MediaFormat mCurrentFormat;
+
+    private boolean mSampleTableParsed = false;
 
     private final TrackType mType;
 
     private ArrayList<SubSegment> mSegmentIndex;
 
-    private long mNextTimeUs = 0;
+    private volatile long mNextTimeUs = 0;
 
     private long mCurrentTimeUs = -1;
 
     private int mSegmentNumber = -1;
 
-    private boolean mStartUp = true;
+    private volatile boolean mStartUp = true;
 
     private boolean mSeek = false;
 
@@ -83,6 +104,41 @@ public class RepresentationFetcher {
 
     private boolean mEOS = false;
 
+    // Segments that have been requested but not yet parsed, in order.
+    private final ArrayDeque<PendingSegment> mPendingSegments = new ArrayDeque<>();
+
+    // Set when the last segment of the representation has been requested.
+    private boolean mEndOfSegments = false;
+
+    // Set when the next segment of a live presentation is not available yet.
+    private volatile boolean mWaitingForSegment = false;
+
+    private boolean mKeyFrameOnly = false;
+
+    private SegmentTimelineIndex mTimelineIndex;
+
+    private SegmentTimeline mIndexedTimeline;
+
+    private final HandlerThread mWorkerThread;
+
+    private final Handler mWorkerHandler;
+
+    private volatile boolean mDownloading = false;
+
+    private volatile boolean mReleased = false;
+
+    // The source of the segment being read, closed by release() to abort a
+    // blocked read.
+    private volatile DataSource mCurrentSource;
+
+    // The representation to download an abandoned segment from, or null.
+    private final Representation mLowerRepresentation;
+
+    // Time of the first access unit queued from the current segment, or -1.
+    private long mSegmentFirstTimeUs = -1;
+
+    private boolean mAbandoned = false;
+
     public RepresentationFetcher(DASHSession session, Representation representation,
             PacketSource packetSource, TrackType type, long timeUs, long timeOffsetUs,
             int trackIndex) {
@@ -92,6 +148,38 @@ public class RepresentationFetcher {
         mType = type;
         mTimeOffset = timeOffsetUs;
         mTrackIndex = trackIndex;
+        mLowerRepresentation = type == TrackType.VIDEO
+                ? session.getLowerVideoRepresentation(representation) : null;
+
+        DASHISOParser parser = session.takeInitializedParser(representation);
+        if (parser != null) {
+            // The init segment and segment index have been parsed before,
+            // continue straight to the media segments.
+            if (LOGS_ENABLED) Log.v(TAG, "Reusing parsed init segment of " + representation.id);
+            parser.clearFragmentSamples();
+            mParser = parser;
+            // The session keeps the DRM info of the last parsed init segment
+            sendDrmInfo();
+
+            ArrayList<SubSegment> segmentIndex = parser.getSegmentIndex();
+            if (representation.segmentBase != null) {
+                if (segmentIndex != null) {
+                    mSegmentIndex = segmentIndex;
+                    mState = State.FRAGMENT;
+                } else {
+                    mState = State.SIDX;
+                }
+            } else {
+                mState = segmentIndex != null ? State.SIDX : State.FRAGMENT;
+            }
+        } else {
+            mParser = new DASHISOParser();
+        }
+        mPushParser = new FragmentPushParser(mParser, type, new SegmentListener());
+
+        mWorkerThread = new HandlerThread("DASH " + type);
+        mWorkerThread.start();
+        mWorkerHandler = new Handler(mWorkerThread.getLooper());
 
         if (timeUs >= 0) {
             mNextTimeUs = timeUs - timeOffsetUs;
@@ -111,8 +199,51 @@ public class RepresentationFetcher {
         }
     }
 
-    public void downloadNext() {
-        switch (mState) {
+    /**
+     * Downloads the next part of the representation on the worker thread of
+     * this fetcher. The session is asked to schedule again when done.
+     */
+    public void startDownloadNext() {
+        mDownloading = true;
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mReleased) {
+                    downloadNext();
+                }
+                mDownloading = false;
+                if (!mReleased && !mWaitingForSegment) {
+                    // When waiting for a live segment the periodic scheduling
+                    // of the session retries.
+                    mSession.getDownloadNextMessage().sendToTarget();
+                }
+            }
+        });
+    }
+
+    public boolean isDownloading() {
+        return mDownloading;
+    }
+
+    /**
+     * Returns true if the bandwidth should be checked before the next
+     * download, since a representation change would replace this fetcher.
+     */
+    public boolean needsBandwidthCheck() {
+        return !mStartUp && mType == TrackType.VIDEO && mState == State.FRAGMENT;
+    }
+
+    private void downloadNext() {
+        if (mAbandoned) {
+            // The session replaces this fetcher
+            return;
+        }
+
+        mWaitingForSegment = false;
+
+        // Segments already requested are parsed before anything else is
+        // downloaded, even if the segment index has run out.
+        switch (mPendingSegments.isEmpty() ? mState : State.FRAGMENT) {
             case INIT: {
                 DataSource source = null;
                 try {
@@ -121,7 +252,7 @@ public class RepresentationFetcher {
                     if (LOGS_ENABLED) Log.e(TAG, "IllegalArgumentException caught.");
                     Message callback = mSession.getFetcherCallbackMessage(mType);
                     callback.arg1 = DASHSession.FETCHER_ERROR;
-                    callback.sendToTarget();
+                    sendCallback(callback);
                 }
 
                 if (source == null) {
@@ -129,7 +260,7 @@ public class RepresentationFetcher {
                     // Signal error
                     Message callback = mSession.getFetcherCallbackMessage(mType);
                     callback.arg1 = DASHSession.FETCHER_ERROR;
-                    callback.sendToTarget();
+                    sendCallback(callback);
                     return;
                 }
 
@@ -175,16 +306,7 @@ public class RepresentationFetcher {
                     }
                 }
 
-                MetaData metadata = mParser.getMetaData();
-                if (metadata.containsKey(MetaData.KEY_DRM_UUID)) {
-                    Message callback = mSession.getFetcherCallbackMessage(mType);
-                    callback.arg1 = DASHSession.FETCHER_DRM_INFO;
-                    callback.getData().putByteArray(MetaData.KEY_DRM_UUID,
-                            metadata.getByteBuffer(MetaData.KEY_DRM_UUID));
-                    callback.getData().putByteArray(MetaData.KEY_DRM_PSSH_DATA,
-                            metadata.getByteBuffer(MetaData.KEY_DRM_PSSH_DATA));
-                    callback.sendToTarget();
-                }
+                sendDrmInfo();
 
                 mState = State.SIDX;
 
@@ -199,15 +321,15 @@ public class RepresentationFetcher {
                     if (LOGS_ENABLED) Log.e(TAG, "IllegalArgumentException caught");
                     Message callback = mSession.getFetcherCallbackMessage(mType);
                     callback.arg1 = DASHSession.FETCHER_ERROR;
-                    callback.sendToTarget();
+                    sendCallback(callback);
                 }
 
                 if (source == null) {
-                    if (!mEOS) {
+                    if (!mEOS && !mWaitingForSegment) {
                         // Signal error
                         Message callback = mSession.getFetcherCallbackMessage(mType);
                         callback.arg1 = DASHSession.FETCHER_ERROR;
-                        callback.sendToTarget();
+                        sendCallback(callback);
                     }
                     return;
                 }
@@ -222,7 +344,7 @@ public class RepresentationFetcher {
                     if (LOGS_ENABLED) Log.e(TAG, "Error " + err + " while parsing sidx");
                     Message callback = mSession.getFetcherCallbackMessage(mType);
                     callback.arg1 = DASHSession.FETCHER_ERROR;
-                    callback.sendToTarget();
+                    sendCallback(callback);
                     return;
                 }
 
@@ -238,21 +360,21 @@ public class RepresentationFetcher {
                 break;
             }
             case FRAGMENT: {
-                if (!mStartUp && mType == TrackType.VIDEO && mSession.checkBandwidth()) {
-                    return;
-                }
-
-                DataSource source = null;
                 try {
-                    source = createFragmentDataSource();
+                    requestSegments();
                 } catch (IllegalArgumentException e) {
                     if (LOGS_ENABLED) Log.e(TAG, "IllegalArgumentException caught.");
                     Message callback = mSession.getFetcherCallbackMessage(mType);
                     callback.arg1 = DASHSession.FETCHER_ERROR;
-                    callback.sendToTarget();
+                    sendCallback(callback);
                 }
 
-                if (source != null) {
+                PendingSegment segment = mPendingSegments.poll();
+                if (segment != null) {
+                    DataSource source = segment.source;
+                    mCurrentTimeUs = segment.timeUs;
+                    mLastFragmentUri = segment.uri;
+
                     MediaFormat format = mParser.getFormat(mType);
 
                     if (mStartUp && mType == TrackType.VIDEO) {
@@ -270,60 +392,84 @@ public class RepresentationFetcher {
                         AccessUnit accessUnit = new AccessUnit(AccessUnit.FORMAT_CHANGED);
                         accessUnit.timeUs = -1;
                         accessUnit.format = format;
-                        mPacketSource.queueAccessUnit(accessUnit);
+                        queueAccessUnit(accessUnit);
                     }
 
                     queueCSD(format);
 
-                    if (!mParser.parseMoof(source, mCurrentTimeUs + mTimeOffset)) {
-                        Message callback = mSession.getFetcherCallbackMessage(mType);
-                        callback.arg1 = DASHSession.FETCHER_ERROR;
-                        callback.sendToTarget();
-                        return;
-                    }
-
-                    if (mSeek && mType == TrackType.VIDEO) {
-                        Message callback = mSession.getFetcherCallbackMessage(mType);
-                        callback.arg1 = DASHSession.FETCHER_TIME_ESTABLISHED;
-                        Bundle data = new Bundle(1);
-                        data.putLong(DASHSession.KEY_TIMEUS, mCurrentTimeUs + mTimeOffset);
-                        callback.setData(data);
-                        callback.sendToTarget();
-
-                        mSeek = false;
-                    }
+                    mCurrentFormat = format;
+                    mSampleTableParsed = false;
+                    mSegmentFirstTimeUs = -1;
+                    mPushParser.start(source.getCurrentOffset(), mCurrentTimeUs + mTimeOffset);
 
-                    while (true) {
-                        AccessUnit accessUnit = mParser.dequeueAccessUnit(mType);
+                    boolean mayAbandon = Configuration.DASH_SEGMENT_ABANDONMENT
+                            && mLowerRepresentation != null && !mStartUp && !mSeek
+                            && !mKeyFrameOnly;
+                    long startTimeMs = SystemClock.elapsedRealtime();
+                    long bufferDurationUs = mPacketSource.getBufferDuration();
+                    long bytesRead = 0;
+                    boolean skippedRemainder = false;
 
-                        if (accessUnit.status == AccessUnit.OK) {
-                            accessUnit.format = format;
+                    mCurrentSource = source;
+                    try {
+                        int read;
+                        while (!mReleased && (read = source.readAvailable(mReadBuffer)) > 0) {
+                            if (mPushParser.feed(mReadBuffer, 0, read) != FragmentPushParser.OK) {
+                                break;
+                            }
 
-                            if (mType == TrackType.SUBTITLE) {
-                                accessUnit.trackIndex = mTrackIndex;
+                            if (mPushParser.canSkipRemainder()) {
+                                // All sync samples in the segment have been
+                                // received, don't download the rest.
+                                skippedRemainder = true;
+                                break;
                             }
 
-                            if (mSeek && mType == TrackType.AUDIO) {
-                                if (accessUnit.timeUs < mSeekTimeUs) {
-                                    continue;
+                            bytesRead += read;
+                            if (mayAbandon && shouldAbandon(segment, bytesRead,
+                                    SystemClock.elapsedRealtime() - startTimeMs,
+                                    bufferDurationUs)) {
+                                if (abandonSegment(segment, bytesRead,
+                                        SystemClock.elapsedRealtime() - startTimeMs)) {
+                                    return;
                                 }
+                                // Already being played, complete the download
+                                mayAbandon = false;
                             }
-
-                            mPacketSource.queueAccessUnit(accessUnit);
-                        } else {
-                            break;
                         }
+                    } catch (IOException e) {
+                        if (LOGS_ENABLED) Log.e(TAG, "IOException while reading fragment", e);
+                    } finally {
+                        mCurrentSource = null;
                     }
+
+                    if (mReleased) {
+                        closeSegment(source);
+                        return;
+                    }
+
+                    if (!mSampleTableParsed
+                            || (!skippedRemainder && !mPushParser.endOfStream())) {
+                        // The segment ended before all samples were received,
+                        // don't leave a gap in the media without telling the
+                        // session
+                        closeSegment(source);
+
+                        Message callback = mSession.getFetcherCallbackMessage(mType);
+                        callback.arg1 = DASHSession.FETCHER_ERROR;
+                        sendCallback(callback);
+                        return;
+                    }
+
                     if (mRepresentation.segmentTemplate != null &&
                             mRepresentation.segmentTemplate.segmentTimeline == null &&
                             (mPacketSource.getLastEnqueuedTimeUs() >
                                     mSession.getActivePeriodEndTime() ||
-                            (mNextTimeUs + mTimeOffset) >= mSession.getActivePeriodEndTime()) &&
-                            !mEOS) {
-                        Message callback = mSession.getFetcherCallbackMessage(mType);
-                        callback.arg1 = DASHSession.FETCHER_EOS;
-                        callback.sendToTarget();
-                        mEOS = true;
+                            (segment.endTimeUs + mTimeOffset) >=
+                                    mSession.getActivePeriodEndTime())) {
+                        signalEndOfStream();
+                    } else if (mEndOfSegments && mPendingSegments.isEmpty()) {
+                        signalEndOfStream();
                     }
 
                     if (mType == TrackType.VIDEO) {
@@ -332,25 +478,29 @@ public class RepresentationFetcher {
                         callback.getData().putString(DASHSession.KEY_REMOTE_IP,
                                 source.getRemoteIP());
                         callback.getData().putString(DASHSession.KEY_VIDEO_URI, mLastFragmentUri);
-                        callback.sendToTarget();
+                        sendCallback(callback);
                     }
 
-                    try {
-                        source.close();
-                    } catch (IOException e) {
-                        if (LOGS_ENABLED) Log.e(TAG, "Failed to close source");
-                    }
+                    closeSegment(source);
 
                     mStartUp = false;
                     mSeek = false;
 
-                    mPacketSource.setNextTimeUs(mNextTimeUs + mTimeOffset);
+                    synchronized (mPacketSource) {
+                        if (!mReleased) {
+                            mPacketSource.setNextTimeUs(segment.endTimeUs + mTimeOffset);
+                        }
+                    }
+                } else if (mEndOfSegments) {
+                    signalEndOfStream();
+                } else if (mWaitingForSegment) {
+                    if (LOGS_ENABLED) Log.v(TAG, "Waiting for live segment at " + mNextTimeUs);
                 } else {
                     if (!mEOS) {
                         // Signal error
                         Message callback = mSession.getFetcherCallbackMessage(mType);
                         callback.arg1 = DASHSession.FETCHER_ERROR;
-                        callback.sendToTarget();
+                        sendCallback(callback);
                         return;
                     }
                 }
@@ -360,6 +510,127 @@ public class RepresentationFetcher {
         }
     }
 
+    /**
+     * Requests segments ahead of the one that is parsed next so that the
+     * connection is not idle for a round trip between segments. While
+     * seeking only the segment at the seek position is requested.
+     */
+    private void requestSegments() {
+        if (mPendingSegments.isEmpty()) {
+            mEndOfSegments = false;
+        }
+
+        int depth = mSeek ? 1 : Configuration.DASH_SEGMENT_REQUEST_DEPTH;
+
+        while (mPendingSegments.size() < depth && mState == State.FRAGMENT && !mEndOfSegments
+                && !mReleased) {
+            if (!mPendingSegments.isEmpty() && mRepresentation.segmentTemplate != null
+                    && mRepresentation.segmentTemplate.segmentTimeline == null
+                    && (mNextTimeUs + mTimeOffset) >= mSession.getActivePeriodEndTime()) {
+                // Don't request segments after the end of the period
+                break;
+            }
+
+            DataSource source = createFragmentDataSource();
+            if (source == null) {
+                break;
+            }
+
+            mPendingSegments.add(new PendingSegment(source, mCurrentTimeUs, mNextTimeUs,
+                    mLastFragmentUri));
+        }
+    }
+
+    /**
+     * Checks if the download of a segment is too slow to complete before the
+     * buffer runs dry, while the same segment of the lower representation
+     * would complete sooner at the measured throughput.
+     */
+    private boolean shouldAbandon(PendingSegment segment, long bytesRead, long elapsedTimeMs,
+            long bufferDurationUs) {
+        if (elapsedTimeMs < ABANDON_MIN_DOWNLOAD_TIME_MS || mPacketSource.isReplacing()) {
+            // A replacement is only downloaded while the buffered
+            // version can be played
+            return false;
+        }
+
+        long segmentDurationUs = segment.endTimeUs - segment.timeUs;
+        long segmentSize = -1;
+        try {
+            segmentSize = segment.source.length();
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.e(TAG, "Failed to get source length");
+        }
+        if (segmentSize <= 0) {
+            segmentSize = (long)mRepresentation.bandwidth * segmentDurationUs / 8000000L;
+        }
+
+        double bytesPerMs = (double)bytesRead / elapsedTimeMs;
+        double remainingTimeMs = (segmentSize - bytesRead) / bytesPerMs;
+        // The buffer has been playing while downloading
+        long bufferTimeMs = bufferDurationUs / 1000 - elapsedTimeMs;
+        if (remainingTimeMs <= bufferTimeMs) {
+            return false;
+        }
+
+        double lowerTimeMs = (double)mLowerRepresentation.bandwidth * segmentDurationUs
+                / 8000000L / bytesPerMs;
+        return lowerTimeMs < remainingTimeMs;
+    }
+
+    /**
+     * Stops the download of a segment and drops what has been queued from it,
+     * if still possible. The session downloads the segment again from a lower
+     * representation.
+     *
+     * @return true if the segment was abandoned, false if part of it has
+     *         already been dequeued and the download must complete.
+     */
+    private boolean abandonSegment(PendingSegment segment, long bytesRead, long elapsedTimeMs) {
+        synchronized (mPacketSource) {
+            if (mReleased) {
+                return true;
+            }
+            if (mSegmentFirstTimeUs >= 0 && !mPacketSource.discardFrom(mSegmentFirstTimeUs)) {
+                return false;
+            }
+        }
+
+        if (LOGS_ENABLED) Log.i(TAG, "Abandoning segment at " + segment.timeUs + " of "
+                + mRepresentation.id + " after " + bytesRead + " bytes");
+
+        closeSegment(segment.source);
+        for (PendingSegment pendingSegment : mPendingSegments) {
+            closeSegment(pendingSegment.source);
+        }
+        mPendingSegments.clear();
+
+        BandwidthEstimator bandwidthEstimator = mSession.getBandwidthEstimator();
+        if (bandwidthEstimator instanceof AbandonedTransferBandwidthEstimator) {
+            ((AbandonedTransferBandwidthEstimator)bandwidthEstimator)
+                    .onDataTransferAbandoned(bytesRead, elapsedTimeMs * 1000);
+        }
+
+        mAbandoned = true;
+
+        Message callback = mSession.getFetcherCallbackMessage(mType);
+        callback.arg1 = DASHSession.FETCHER_SEGMENT_ABANDONED;
+        Bundle data = new Bundle(1);
+        data.putLong(DASHSession.KEY_TIMEUS, segment.timeUs + mTimeOffset);
+        callback.setData(data);
+        sendCallback(callback);
+        return true;
+    }
+
+    private void signalEndOfStream() {
+        if (!mEOS) {
+            Message callback = mSession.getFetcherCallbackMessage(mType);
+            callback.arg1 = DASHSession.FETCHER_EOS;
+            sendCallback(callback);
+            mEOS = true;
+        }
+    }
+
     private void queueCSD(MediaFormat format) {
         if (mStartUp && mType == TrackType.VIDEO) {
             int i = 0;
@@ -381,9 +652,7 @@ public class RepresentationFetcher {
                 };
                 csd.isSyncSample = true;
 
-                synchronized (mPacketSource) {
-                    mPacketSource.queueAccessUnit(csd);
-                }
+                queueAccessUnit(csd);
 
                 i++;
             }
@@ -410,70 +679,47 @@ public class RepresentationFetcher {
 
     private DataSource createFragmentDataSource() {
         DataSource source = null;
-        BandwidthEstimator bandwidthEstimator = null;
-
-        if (mType == TrackType.VIDEO) {
-            bandwidthEstimator = mSession.getBandwidthEstimator();
-        }
 
         if (mSegmentIndex != null) {
-            source = createFragmentedDataSourceFromSegmentTable(bandwidthEstimator);
+            source = createFragmentedDataSourceFromSegmentTable();
         } else if (mRepresentation.segmentTemplate != null) {
             if (mRepresentation.segmentTemplate.segmentTimeline != null) {
-                boolean found = false;
-                long segmentTimelineTemplateTicks = 0;
-                for (SegmentTimelineEntry entry : mRepresentation.segmentTemplate.segmentTimeline) {
-                    long segmentDurationUs = entry.durationTicks * 1000000L
-                            / mRepresentation.segmentTemplate.timescale;
-                    segmentTimelineTemplateTicks = entry.timeTicks;
-
-                    int r = 0;
-                    do {
-                        long timelineTimeUs = segmentTimelineTemplateTicks * 1000000L
-                                / mRepresentation.segmentTemplate.timescale;
-
-                        if ((mSeek && mSeekTimeUs >= timelineTimeUs
-                                && mSeekTimeUs < timelineTimeUs + segmentDurationUs) ||
-                                timelineTimeUs >= mNextTimeUs) {
-                            try {
-                                source = DataSource.create(getTemplatedUri(
-                                        mRepresentation.segmentTemplate.media,
-                                        segmentTimelineTemplateTicks), bandwidthEstimator, true);
-                            } catch (IOException e) {
-                                return null;
-                            }
-
-                            mNextTimeUs = timelineTimeUs + segmentDurationUs;
-                            found = true;
-                            break;
-                        }
-
-                        segmentTimelineTemplateTicks += entry.durationTicks;
-                    } while (r++ < entry.repeat);
-
-                    if (found) {
-                        break;
+                SegmentTimelineIndex index = getTimelineIndex();
+                int segment = findTimelineSegment(index);
+                if (segment < 0) {
+                    if (mSession.isWaitingForLiveSegments()) {
+                        // Added by a later MPD update
+                        mWaitingForSegment = true;
+                    } else {
+                        mEndOfSegments = true;
                     }
+                    return null;
                 }
 
-                if (!found) {
-                    Message callback = mSession.getFetcherCallbackMessage(mType);
-                    callback.arg1 = DASHSession.FETCHER_EOS;
-                    callback.sendToTarget();
-                    mEOS = true;
+                long segmentTimelineTemplateTicks = index.getStartTicks(segment);
+                String uri = getTimelineSegmentUri(index, segment);
+                try {
+                    source = openSegment(uri, -1, -1);
+                } catch (IOException e) {
                     return null;
                 }
 
-                mLastFragmentUri = getTemplatedUri(mRepresentation.segmentTemplate.media,
-                        segmentTimelineTemplateTicks);
+                mNextTimeUs = index.getStartTimeUs(segment) + index.getDurationUs(segment);
+
+                mLastFragmentUri = uri;
 
                 mCurrentTimeUs = segmentTimelineTemplateTicks * 1000000L
                         / mRepresentation.segmentTemplate.timescale;
             } else {
+                if (!isNextSegmentAvailable()) {
+                    mWaitingForSegment = true;
+                    return null;
+                }
+
                 mLastFragmentUri = getTemplatedUri(mRepresentation.segmentTemplate.media);
                 try {
-                    source = DataSource.create(getTemplatedUri(
-                            mRepresentation.segmentTemplate.media), bandwidthEstimator, true);
+                    source = openSegment(getTemplatedUri(mRepresentation.segmentTemplate.media),
+                            -1, -1);
                 } catch (IOException e) {
                     return null;
                 }
@@ -489,8 +735,7 @@ public class RepresentationFetcher {
         return source;
     }
 
-    private DataSource createFragmentedDataSourceFromSegmentTable(
-            BandwidthEstimator bandwidthEstimator) {
+    private DataSource createFragmentedDataSourceFromSegmentTable() {
         DataSource source = null;
 
         for (int i = 0; i < mSegmentIndex.size(); i++) {
@@ -503,70 +748,30 @@ public class RepresentationFetcher {
 
                 if (mRepresentation.segmentTemplate != null) {
                     if (mRepresentation.segmentTemplate.segmentTimeline != null) {
-                        boolean found = false;
-                        long segmentTimelineTemplateTicks;
-                        for (SegmentTimelineEntry entry :
-                                mRepresentation.segmentTemplate.segmentTimeline) {
-                            long segmentDurationUs = entry.durationTicks * 1000000L
-                                    / mRepresentation.segmentTemplate.timescale;
-                            segmentTimelineTemplateTicks = entry.timeTicks;
-
-                            int r = 0;
-                            do {
-                                long timelineTime = segmentTimelineTemplateTicks * 1000000L
-                                        / mRepresentation.segmentTemplate.timescale;
-
-                                if (mSeek) {
-                                    if (mSeekTimeUs >= timelineTime
-                                            && mSeekTimeUs < timelineTime + segmentDurationUs) {
-                                        found = true;
-                                        try {
-                                            source = DataSource.create(
-                                                    getTemplatedUri(
-                                                            mRepresentation.segmentTemplate.media,
-                                                            segmentTimelineTemplateTicks),
-                                                    subsegment.offset, subsegment.size,
-                                                    bandwidthEstimator, true);
-                                        } catch (IOException e) {
-                                            return null;
-                                        }
-                                        mNextTimeUs = timelineTime + segmentDurationUs;
-                                    }
-                                } else if (timelineTime >= mNextTimeUs) {
-                                    found = true;
-
-                                    mLastFragmentUri = getTemplatedUri(
-                                            mRepresentation.segmentTemplate.media,
-                                            segmentTimelineTemplateTicks);
-                                    try {
-                                        source = DataSource.create(
-                                                getTemplatedUri(
-                                                        mRepresentation.segmentTemplate.media,
-                                                        segmentTimelineTemplateTicks),
-                                                subsegment.offset, subsegment.size,
-                                                bandwidthEstimator, true);
-                                    } catch (IOException e) {
-                                        return null;
-                                    }
-                                    mNextTimeUs = timelineTime + segmentDurationUs;
-                                    break;
-                                }
-
-                                segmentTimelineTemplateTicks += entry.durationTicks;
-                            } while (r++ < entry.repeat);
-
-                            if (found) {
-                                break;
+                        SegmentTimelineIndex index = getTimelineIndex();
+                        int segment = mSeek ? index.findSegment(mSeekTimeUs)
+                                : index.findSegmentStartingAtOrAfter(mNextTimeUs);
+                        if (segment >= 0) {
+                            String uri = getTimelineSegmentUri(index, segment);
+                            if (!mSeek) {
+                                mLastFragmentUri = uri;
+                            }
+                            try {
+                                source = openSegment(uri, subsegment.offset, subsegment.size);
+                            } catch (IOException e) {
+                                return null;
                             }
+                            mNextTimeUs = index.getStartTimeUs(segment)
+                                    + index.getDurationUs(segment);
                         }
                     } else {
 
                         mLastFragmentUri =
                                 getTemplatedUri(mRepresentation.segmentTemplate.media);
                         try {
-                            source = DataSource.create(
+                            source = openSegment(
                                     getTemplatedUri(mRepresentation.segmentTemplate.media),
-                                    subsegment.offset, subsegment.size, bandwidthEstimator, true);
+                                    subsegment.offset, subsegment.size);
                         } catch (IOException e) {
                             return null;
                         }
@@ -579,20 +784,22 @@ public class RepresentationFetcher {
                         mSegmentIndex = null;
                     }
                 } else if (mRepresentation.segmentBase != null) {
+                    int last = getLastCoalescedSubsegment(i);
+                    SubSegment lastSubsegment = mSegmentIndex.get(last);
+                    int size = (int)(lastSubsegment.offset + lastSubsegment.size
+                            - subsegment.offset);
 
                     mLastFragmentUri = mRepresentation.segmentBase.url;
                     try {
-                        source = DataSource.create(mRepresentation.segmentBase.url,
-                                subsegment.offset, subsegment.size, bandwidthEstimator, true);
+                        source = openSegment(mRepresentation.segmentBase.url,
+                                subsegment.offset, size);
                     } catch (IOException e) {
                         return null;
                     }
-                    mNextTimeUs = subsegment.timeUs + subsegment.durationUs;
-                    if (i == mSegmentIndex.size() - 1) {
-                        Message callback = mSession.getFetcherCallbackMessage(mType);
-                        callback.arg1 = DASHSession.FETCHER_EOS;
-                        callback.sendToTarget();
-                        mEOS = true;
+                    mNextTimeUs = lastSubsegment.timeUs + lastSubsegment.durationUs;
+                    if (last == mSegmentIndex.size() - 1) {
+                        // Signaled when the segment has been parsed
+                        mEndOfSegments = true;
                     }
                 } else if (LOGS_ENABLED) {
                     Log.e(TAG, "No fragment uri information");
@@ -611,54 +818,83 @@ public class RepresentationFetcher {
         return source;
     }
 
-    private DataSource createSidxDataSource() {
-        if (mRepresentation.segmentTemplate != null) {
+    /**
+     * Opens a media segment through the segment cache, recording the download
+     * in the QoE metrics.
+     */
+    private DataSource openSegment(String uri, long offset, int length) throws IOException {
+        BandwidthEstimator bandwidthEstimator = mSession.getBandwidthEstimator();
+        QoEMetricsCollector collector = mSession.getQoEMetricsCollector();
+        if (collector != null) {
+            bandwidthEstimator = collector.createSegmentRecorder(mType, uri,
+                    mRepresentation.bandwidth, bandwidthEstimator);
+        }
+        return mSession.getSegmentCache().open(uri, offset, length, bandwidthEstimator);
+    }
 
-            if (mRepresentation.segmentTemplate.segmentTimeline != null) {
-                boolean found = false;
-                long segmentTimelineTemplateTicks = 0;
-                for (SegmentTimelineEntry entry : mRepresentation.segmentTemplate.segmentTimeline) {
-                    long segmentDurationUs = entry.durationTicks * 1000000L
-                            / mRepresentation.segmentTemplate.timescale;
-                    segmentTimelineTemplateTicks = entry.timeTicks;
-
-                    int r = 0;
-                    do {
-                        long timelineTimeUs = segmentTimelineTemplateTicks * 1000000L
-                                / mRepresentation.segmentTemplate.timescale;
-
-                        if (mSeek) {
-                            if (mSeekTimeUs >= timelineTimeUs
-                                    && mSeekTimeUs < timelineTimeUs + segmentDurationUs) {
-                                found = true;
-                                break;
-                            }
-                        }
-                        if (timelineTimeUs >= mNextTimeUs) {
-                            found = true;
-                            break;
-                        }
+    /**
+     * Returns the last of the subsegments following first that can be fetched
+     * together with it in one byte range request. Subsegments are merged
+     * while they are contiguous and the buffer has room for them. Only one
+     * subsegment is fetched at start-up, while seeking and in key frame only
+     * mode, where the rest of a request may be skipped.
+     */
+    private int getLastCoalescedSubsegment(int first) {
+        if (mStartUp || mSeek || mKeyFrameOnly) {
+            return first;
+        }
 
-                        segmentTimelineTemplateTicks += entry.durationTicks;
-                    } while (r++ < entry.repeat);
+        long maxDurationUs = DASHSession.MAX_BUFFER_DURATION_US
+                - mPacketSource.getBufferDuration();
+        for (PendingSegment segment : mPendingSegments) {
+            maxDurationUs -= segment.endTimeUs - segment.timeUs;
+        }
+        maxDurationUs = Math.min(maxDurationUs,
+                Configuration.DASH_MAX_SUBSEGMENT_REQUEST_DURATION_US);
+
+        SubSegment subsegment = mSegmentIndex.get(first);
+        long durationUs = subsegment.durationUs;
+        long size = subsegment.size;
+        int last = first;
+        while (last + 1 < mSegmentIndex.size()) {
+            SubSegment previous = mSegmentIndex.get(last);
+            SubSegment next = mSegmentIndex.get(last + 1);
+            if (next.offset != previous.offset + previous.size
+                    || durationUs + next.durationUs > maxDurationUs
+                    || size + next.size > Integer.MAX_VALUE) {
+                break;
+            }
+            durationUs += next.durationUs;
+            size += next.size;
+            last++;
+        }
 
-                    if (found) {
-                        break;
-                    }
-                }
+        if (LOGS_ENABLED && last > first) {
+            Log.v(TAG, "Fetching subsegments " + first + "-" + last + " in one request");
+        }
+        return last;
+    }
+
+    private DataSource createSidxDataSource() {
+        if (mRepresentation.segmentTemplate != null) {
 
-                if (!found) {
+            if (mRepresentation.segmentTemplate.segmentTimeline != null) {
+                SegmentTimelineIndex index = getTimelineIndex();
+                int segment = findTimelineSegment(index);
+                if (segment < 0 && mSession.isWaitingForLiveSegments()) {
+                    mWaitingForSegment = true;
+                    return null;
+                } else if (segment < 0) {
                     Message callback = mSession.getFetcherCallbackMessage(mType);
                     callback.arg1 = DASHSession.FETCHER_EOS;
-                    callback.sendToTarget();
+                    sendCallback(callback);
                     mEOS = true;
                     return null;
                 }
 
                 try {
-                    return DataSource.create(
-                            getTemplatedUri(mRepresentation.segmentTemplate.media,
-                                    segmentTimelineTemplateTicks), 0, SIDX_HEADER_SNIFF_SIZE, true);
+                    return DataSource.create(getTimelineSegmentUri(index, segment), 0,
+                            SIDX_HEADER_SNIFF_SIZE, true);
                 } catch (IOException e) {
                     return null;
                 }
@@ -705,19 +941,93 @@ public class RepresentationFetcher {
         return null;
     }
 
+    private SegmentTimelineIndex getTimelineIndex() {
+        SegmentTimeline timeline = mRepresentation.segmentTemplate.segmentTimeline;
+
+        // The timeline is replaced when a dynamic MPD is updated or pruned
+        if (mTimelineIndex == null || mIndexedTimeline != timeline) {
+            SegmentTimelineIndex index = new SegmentTimelineIndex(timeline.entries.size(),
+                    mRepresentation.segmentTemplate.timescale);
+            for (SegmentTimelineEntry entry : timeline.entries) {
+                index.addRun(entry.timeTicks, entry.durationTicks, entry.repeat + 1);
+            }
+            mTimelineIndex = index;
+            mIndexedTimeline = timeline;
+        }
+
+        return mTimelineIndex;
+    }
+
+    /**
+     * Returns the uri of a segment of the timeline last indexed by
+     * getTimelineIndex.
+     */
+    private String getTimelineSegmentUri(SegmentTimelineIndex index, int segment) {
+        mSegmentNumber = mIndexedTimeline.startNumber + segment;
+        return getTemplatedUri(mRepresentation.segmentTemplate.media,
+                index.getStartTicks(segment));
+    }
+
+    /**
+     * Returns the first segment in the timeline that either contains the seek
+     * position when seeking or starts at or after the next time, or -1 if
+     * there is none.
+     */
+    private int findTimelineSegment(SegmentTimelineIndex index) {
+        int segment = index.findSegmentStartingAtOrAfter(mNextTimeUs);
+        if (mSeek) {
+            int seekSegment = index.findSegment(mSeekTimeUs);
+            if (seekSegment >= 0 && (segment < 0 || seekSegment < segment)) {
+                segment = seekSegment;
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Checks that the next segment of a live presentation using a segment
+     * number template has been made available, and moves to the start of the
+     * time shift buffer if playback has fallen behind it.
+     */
+    private boolean isNextSegmentAvailable() {
+        long liveEdgeTimeUs = mSession.getLiveEdgeTimeUs();
+        if (liveEdgeTimeUs < 0) {
+            return true;
+        }
+
+        long segmentDurationUs = mRepresentation.segmentTemplate.durationTicks * 1000000L
+                / mRepresentation.segmentTemplate.timescale;
+
+        long bufferStartTimeUs = mSession.getTimeShiftBufferStartTimeUs() - mTimeOffset;
+        if (mNextTimeUs < bufferStartTimeUs) {
+            int segments = (int)((bufferStartTimeUs + segmentDurationUs - 1) / segmentDurationUs);
+            if (LOGS_ENABLED) Log.w(TAG, "Segment at " + mNextTimeUs
+                    + " has left the time shift buffer, continuing at segment " + segments);
+            mNextTimeUs = segments * segmentDurationUs;
+            mSegmentNumber = segments + mRepresentation.segmentTemplate.startNumber;
+        }
+
+        return mNextTimeUs + segmentDurationUs + mTimeOffset <= liveEdgeTimeUs;
+    }
+
     private String getTemplatedUri(String uri) {
         return getTemplatedUri(uri, -1);
     }
 
     private String getTemplatedUri(String uri, long time) {
+        return getTemplatedUri(uri, mRepresentation, mSegmentNumber, time);
+    }
+
+    static String getTemplatedUri(String uri, Representation representation, int number,
+            long time) {
 
-        uri = uri.replaceAll("\\$RepresentationID\\$", mRepresentation.id);
+        uri = uri.replaceAll("\\$RepresentationID\\$", representation.id);
 
-        uri = uri.replaceAll("\\$Number\\$", String.valueOf(mSegmentNumber));
+        uri = uri.replaceAll("\\$Number\\$", String.valueOf(number));
 
         uri = uri.replaceAll("\\$Time\\$", String.valueOf(time));
 
-        uri = uri.replaceAll("\\$Bandwidth\\$", String.valueOf(mRepresentation.bandwidth));
+        uri = uri.replaceAll("\\$Bandwidth\\$", String.valueOf(representation.bandwidth));
 
         return uri;
     }
@@ -738,11 +1048,160 @@ public class RepresentationFetcher {
         return mState.ordinal();
     }
 
+    public TrackType getType() {
+        return mType;
+    }
+
     public Representation getRepresentation() {
         return mRepresentation;
     }
 
+    public void setKeyFrameOnly(final boolean keyFrameOnly) {
+        if (mType == TrackType.VIDEO) {
+            mWorkerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mKeyFrameOnly = keyFrameOnly;
+                    mPushParser.setKeyFrameOnly(keyFrameOnly);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the fetcher. A download in progress is aborted and nothing more
+     * is queued to the packet source or reported to the session.
+     */
     public void release() {
-        mParser.release();
+        synchronized (mPacketSource) {
+            // Nothing is queued by the worker thread after this
+            mReleased = true;
+        }
+
+        // Abort a read blocked on the network instead of waiting for it
+        DataSource source = mCurrentSource;
+        if (source != null) {
+            closeSegment(source);
+        }
+
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (PendingSegment segment : mPendingSegments) {
+                    closeSegment(segment.source);
+                }
+                mPendingSegments.clear();
+                if (mState != State.INIT) {
+                    // Keep the parsed init segment for a switch back
+                    mSession.putInitializedParser(mRepresentation, mParser);
+                } else {
+                    mParser.release();
+                }
+            }
+        });
+        mWorkerThread.quitSafely();
+    }
+
+    private void sendDrmInfo() {
+        MetaData metadata = mParser.getMetaData();
+        if (metadata.containsKey(MetaData.KEY_DRM_UUID)) {
+            Message callback = mSession.getFetcherCallbackMessage(mType);
+            callback.arg1 = DASHSession.FETCHER_DRM_INFO;
+            callback.getData().putByteArray(MetaData.KEY_DRM_UUID,
+                    metadata.getByteBuffer(MetaData.KEY_DRM_UUID));
+            callback.getData().putByteArray(MetaData.KEY_DRM_PSSH_DATA,
+                    metadata.getByteBuffer(MetaData.KEY_DRM_PSSH_DATA));
+            sendCallback(callback);
+        }
+    }
+
+    /**
+     * Closes the source of a media segment, recording the download in the QoE
+     * metrics also if it did not complete.
+     */
+    private void closeSegment(DataSource source) {
+        QoEMetricsCollector collector = mSession.getQoEMetricsCollector();
+        if (collector != null) {
+            collector.onSegmentClosed(source);
+        }
+
+        try {
+            source.close();
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.e(TAG, "Failed to close source");
+        }
+    }
+
+    private void queueAccessUnit(AccessUnit accessUnit) {
+        synchronized (mPacketSource) {
+            if (!mReleased) {
+                mPacketSource.queueAccessUnit(accessUnit);
+            }
+        }
+    }
+
+    private void sendCallback(Message callback) {
+        if (!mReleased) {
+            callback.sendToTarget();
+        }
+    }
+
+    private static final class PendingSegment {
+
+        final DataSource source;
+
+        final long timeUs;
+
+        final long endTimeUs;
+
+        final String uri;
+
+        PendingSegment(DataSource source, long timeUs, long endTimeUs, String uri) {
+            this.source = source;
+            this.timeUs = timeUs;
+            this.endTimeUs = endTimeUs;
+            this.uri = uri;
+        }
+    }
+
+    private final class SegmentListener implements FragmentPushParser.Listener {
+
+        @Override
+        public void onSampleTable(long moofOffset) {
+            mSampleTableParsed = true;
+
+            if (mSeek && mType == TrackType.VIDEO) {
+                Message callback = mSession.getFetcherCallbackMessage(mType);
+                callback.arg1 = DASHSession.FETCHER_TIME_ESTABLISHED;
+                Bundle data = new Bundle(1);
+                data.putLong(DASHSession.KEY_TIMEUS, mCurrentTimeUs + mTimeOffset);
+                callback.setData(data);
+                sendCallback(callback);
+
+                mSeek = false;
+            }
+        }
+
+        @Override
+        public void onAccessUnit(AccessUnit accessUnit) {
+            accessUnit.format = mCurrentFormat;
+
+            if (mSegmentFirstTimeUs < 0 && accessUnit.status == AccessUnit.OK
+                    && accessUnit.timeUs >= 0) {
+                mSegmentFirstTimeUs = accessUnit.timeUs;
+            }
+
+            if (mType == TrackType.SUBTITLE) {
+                accessUnit.trackIndex = mTrackIndex;
+            }
+
+            if (mSeek && mType == TrackType.AUDIO) {
+                if (accessUnit.timeUs < mSeekTimeUs) {
+                    return;
+                }
+            }
+
+            queueAccessUnit(accessUnit);
+        }
     }
 }
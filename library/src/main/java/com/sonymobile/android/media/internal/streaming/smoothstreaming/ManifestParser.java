@@ -32,6 +32,7 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import com.sonymobile.android.media.AudioTrackRepresentation;
+import com.sonymobile.android.media.RepresentationConstraints;
 import com.sonymobile.android.media.TrackInfo;
 import com.sonymobile.android.media.TrackInfo.TrackType;
 import com.sonymobile.android.media.TrackRepresentation;
@@ -41,6 +42,7 @@ import com.sonymobile.android.media.internal.MimeType;
 import com.sonymobile.android.media.internal.Util;
 import com.sonymobile.android.media.internal.drm.MsDrmSession;
 import com.sonymobile.android.media.internal.streaming.common.ParseException;
+import com.sonymobile.android.media.internal.streaming.common.RepresentationFilter;
 
 public class ManifestParser {
 
@@ -64,6 +66,8 @@ public class ManifestParser {
 
     private Protection mProtection;
 
+    private RepresentationConstraints mRepresentationConstraints;
+
     public ManifestParser(String baseUri) {
         mBaseUri = baseUri.substring(0, baseUri.lastIndexOf('/') + 1);
 
@@ -186,6 +190,7 @@ public class ManifestParser {
         }
 
         if (!mCurrentStreamIndex.qualityLevels.isEmpty()) {
+            applyConstraints(mCurrentStreamIndex);
             mStreamIndexes.add(mCurrentStreamIndex);
         } else {
             if (LOGS_ENABLED) Log.w(TAG, "Unsupported StreamIndex skipped");
@@ -304,6 +309,18 @@ public class ManifestParser {
         return null;
     }
 
+    private static String fourCC2Codec(String fourCC) {
+        if (fourCC == null) {
+            return null;
+        } else if (fourCC.equalsIgnoreCase("H264")) {
+            return "avc1";
+        } else if (fourCC.equalsIgnoreCase("AACL")) {
+            return "mp4a";
+        }
+
+        return fourCC.toLowerCase();
+    }
+
     private void endQualityLevel(XmlPullParser parser) {
         mCurrentQualityLevel = null;
     }
@@ -471,6 +488,70 @@ public class ManifestParser {
         return selectedQualityLevels;
     }
 
+    /**
+     * Sets the constraints limiting which quality levels may be selected.
+     *
+     * @param constraints The constraints or null for no constraints.
+     */
+    public void setRepresentationConstraints(RepresentationConstraints constraints) {
+        mRepresentationConstraints = constraints;
+
+        for (StreamIndex streamIndex : mStreamIndexes) {
+            applyConstraints(streamIndex);
+        }
+    }
+
+    private void applyConstraints(StreamIndex streamIndex) {
+        int numQualityLevels = streamIndex.qualityLevels.size();
+        TrackRepresentation[] representations = new TrackRepresentation[numQualityLevels];
+        String[] codecs = new String[numQualityLevels];
+        for (int i = 0; i < numQualityLevels; i++) {
+            QualityLevel qualityLevel = streamIndex.qualityLevels.get(i);
+            if (streamIndex.type == TrackType.VIDEO) {
+                VideoQualityLevel video = (VideoQualityLevel)qualityLevel;
+                representations[i] = new VideoTrackRepresentation(qualityLevel.bitrate,
+                        video.width, video.height, -1.0f);
+            } else {
+                representations[i] = new TrackRepresentation(qualityLevel.bitrate);
+            }
+            codecs[i] = fourCC2Codec(qualityLevel.fourCC);
+        }
+
+        boolean[] allowed = RepresentationFilter.getAllowedRepresentations(
+                mRepresentationConstraints, streamIndex.type, representations, codecs);
+        for (int i = 0; i < numQualityLevels; i++) {
+            streamIndex.qualityLevels.get(i).allowed = allowed[i];
+        }
+    }
+
+    /**
+     * Replaces selected quality levels that are not allowed by the
+     * constraints with the closest allowed ones.
+     *
+     * @param selectedQualityLevels in: The selected quality levels, out: The
+     *            allowed quality levels. Indexed by TrackType.
+     */
+    public void constrainQualityLevels(int[] selectedQualityLevels) {
+        for (int i = 0; i < TrackType.UNKNOWN.ordinal(); i++) {
+            if (mActiveStreamIndexes[i] < 0 || selectedQualityLevels[i] < 0) {
+                continue;
+            }
+
+            StreamIndex streamIndex = mStreamIndexes.get(mActiveStreamIndexes[i]);
+            int numQualityLevels = streamIndex.qualityLevels.size();
+            TrackRepresentation[] representations = new TrackRepresentation[numQualityLevels];
+            boolean[] allowed = new boolean[numQualityLevels];
+            for (int j = 0; j < numQualityLevels; j++) {
+                QualityLevel qualityLevel = streamIndex.qualityLevels.get(j);
+                representations[j] = new TrackRepresentation(qualityLevel.bitrate);
+                allowed[j] = qualityLevel.allowed;
+            }
+
+            selectedQualityLevels[i] = RepresentationFilter.getClosestAllowedRepresentation(
+                    representations, allowed, selectedQualityLevels[i]);
+        }
+    }
+
     public void updateQualityLevels(int[] selectedQualityLevels) {
         for (int i = 0; i < TrackType.UNKNOWN.ordinal(); i++) {
             if (mActiveStreamIndexes[i] > -1) {
@@ -563,6 +644,8 @@ public class ManifestParser {
         String mime;
 
         String cpd;
+
+        boolean allowed = true;
     }
 
     public static class AudioQualityLevel extends QualityLevel {
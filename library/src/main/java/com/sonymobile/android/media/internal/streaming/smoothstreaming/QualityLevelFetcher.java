@@ -29,8 +29,10 @@ import com.sonymobile.android.media.internal.AccessUnit;
 import com.sonymobile.android.media.internal.Configuration;
 import com.sonymobile.android.media.internal.DataSource;
 import com.sonymobile.android.media.internal.MimeType;
+import com.sonymobile.android.media.internal.QoEMetricsCollector;
 import com.sonymobile.android.media.internal.Util;
 import com.sonymobile.android.media.internal.streaming.common.PacketSource;
+import com.sonymobile.android.media.internal.streaming.common.SegmentTimelineIndex;
 
 
 import java.io.IOException;
@@ -74,6 +76,12 @@ public class QualityLevelFetcher {
 
     private boolean mEOS = false;
 
+    private SegmentTimelineIndex mTimelineIndex;
+
+    private ArrayList<FragmentEntry> mIndexedFragments;
+
+    private int mIndexedFragmentsSize;
+
     private MediaFormat mFormat;
 
     public QualityLevelFetcher(SmoothStreamingSession session, QualityLevel qualityLevel,
@@ -173,6 +181,8 @@ public class QualityLevelFetcher {
             }
 
             if (!mParser.parseMoof(source, mCurrentTimeUs)) {
+                closeSegment(source);
+
                 Message callback = mSession.getFetcherCallbackMessage(mType);
                 callback.arg1 = SmoothStreamingSession.FETCHER_ERROR;
                 callback.sendToTarget();
@@ -212,11 +222,7 @@ public class QualityLevelFetcher {
                 }
             }
 
-            try {
-                source.close();
-            } catch (IOException e) {
-                if (LOGS_ENABLED) Log.e(TAG, "Failed to close source");
-            }
+            closeSegment(source);
 
             mStartUp = false;
             mSeek = false;
@@ -262,55 +268,15 @@ public class QualityLevelFetcher {
 
     private DataSource createFragmentDataSource() {
         DataSource source = null;
-        BandwidthEstimator bandwidthEstimator = null;
-
-        if (mType == TrackType.VIDEO) {
-            bandwidthEstimator = mSession.getBandwidthEstimator();
-        }
 
         ArrayList<FragmentEntry> fragments = mQualityLevel.streamIndex.fragments;
 
         if (fragments != null) {
-            boolean found = false;
-            long fragmentTimeTicks = 0;
-
-            for (FragmentEntry entry : fragments) {
-
-                fragmentTimeTicks = entry.timeTicks;
-
-                int r = 1;
-                do {
-                    long timeUs = fragmentTimeTicks * 1000000L / mTimeScale;
-                    if (mSeek) {
-                        if (mSeekTimeUs >= timeUs
-                                && mSeekTimeUs < (timeUs +
-                                (entry.durationTicks * 1000000L / mTimeScale))) {
-                            mCurrentTimeUs = timeUs;
-                            mNextTimeUs =
-                                    (entry.timeTicks + r * entry.durationTicks)
-                                            * 1000000L / mTimeScale;
-                            found = true;
-                            break;
-                        }
-                    } else {
-                        if (timeUs >= mNextTimeUs) {
-                            mNextTimeUs = (entry.timeTicks + r * entry.durationTicks)
-                                    * 1000000L / mTimeScale;
-                            mCurrentTimeUs = timeUs;
-                            found = true;
-                            break;
-                        }
-                    }
-
-                    fragmentTimeTicks += entry.durationTicks;
-                } while (r++ < entry.repeat);
+            SegmentTimelineIndex index = getTimelineIndex(fragments);
+            int fragment = mSeek ? index.findSegment(mSeekTimeUs)
+                    : index.findSegmentStartingAtOrAfter(mNextTimeUs);
 
-                if (found) {
-                    break;
-                }
-            }
-
-            if (!found) {
+            if (fragment < 0) {
                 Message callback = mSession.getFetcherCallbackMessage(mType);
                 callback.arg1 = SmoothStreamingSession.FETCHER_EOS;
                 callback.sendToTarget();
@@ -318,10 +284,20 @@ public class QualityLevelFetcher {
                 return null;
             }
 
+            long fragmentTimeTicks = index.getStartTicks(fragment);
+            mCurrentTimeUs = index.getStartTimeUs(fragment);
+            mNextTimeUs = (fragmentTimeTicks + index.getDurationTicks(fragment)) * 1000000L
+                    / mTimeScale;
+
+            String uri = getTemplatedUri(mQualityLevel.streamIndex.url, fragmentTimeTicks);
+            BandwidthEstimator bandwidthEstimator = mSession.getBandwidthEstimator();
+            QoEMetricsCollector collector = mSession.getQoEMetricsCollector();
+            if (collector != null) {
+                bandwidthEstimator = collector.createSegmentRecorder(mType, uri,
+                        mQualityLevel.bitrate, bandwidthEstimator);
+            }
             try {
-                source = DataSource.create(
-                        getTemplatedUri(mQualityLevel.streamIndex.url, fragmentTimeTicks),
-                        bandwidthEstimator, true);
+                source = mSession.getSegmentCache().open(uri, -1, -1, bandwidthEstimator);
             } catch (IOException e) {
                 return null;
             }
@@ -330,6 +306,38 @@ public class QualityLevelFetcher {
         return source;
     }
 
+    /**
+     * Closes the source of a fragment, recording the download in the QoE
+     * metrics also if it did not complete.
+     */
+    private void closeSegment(DataSource source) {
+        QoEMetricsCollector collector = mSession.getQoEMetricsCollector();
+        if (collector != null) {
+            collector.onSegmentClosed(source);
+        }
+
+        try {
+            source.close();
+        } catch (IOException e) {
+            if (LOGS_ENABLED) Log.e(TAG, "Failed to close source");
+        }
+    }
+
+    private SegmentTimelineIndex getTimelineIndex(ArrayList<FragmentEntry> fragments) {
+        if (mTimelineIndex == null || mIndexedFragments != fragments
+                || mIndexedFragmentsSize != fragments.size()) {
+            SegmentTimelineIndex index = new SegmentTimelineIndex(fragments.size(), mTimeScale);
+            for (FragmentEntry entry : fragments) {
+                index.addRun(entry.timeTicks, entry.durationTicks, entry.repeat);
+            }
+            mTimelineIndex = index;
+            mIndexedFragments = fragments;
+            mIndexedFragmentsSize = fragments.size();
+        }
+
+        return mTimelineIndex;
+    }
+
     private String getTemplatedUri(String uri, long time) {
         uri = uri.replaceAll("\\{start time\\}", String.valueOf(time));
         uri = uri.replaceAll("\\{start_time\\}", String.valueOf(time));
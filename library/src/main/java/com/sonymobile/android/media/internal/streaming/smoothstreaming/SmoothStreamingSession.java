@@ -25,8 +25,10 @@ import android.os.Message;
 import android.util.Log;
 
 import com.sonymobile.android.media.BandwidthEstimator;
+import com.sonymobile.android.media.BufferLevelRepresentationSelector;
 import com.sonymobile.android.media.MediaError;
 import com.sonymobile.android.media.MetaData;
+import com.sonymobile.android.media.RepresentationConstraints;
 import com.sonymobile.android.media.RepresentationSelector;
 import com.sonymobile.android.media.TrackInfo;
 import com.sonymobile.android.media.TrackInfo.TrackType;
@@ -34,16 +36,21 @@ import com.sonymobile.android.media.internal.AccessUnit;
 import com.sonymobile.android.media.internal.Configuration;
 import com.sonymobile.android.media.internal.MetaDataImpl;
 import com.sonymobile.android.media.internal.MimeType;
+import com.sonymobile.android.media.internal.QoEMetricsCollector;
 import com.sonymobile.android.media.internal.streaming.common.DefaultBandwidthEstimator;
 import com.sonymobile.android.media.internal.streaming.common.DefaultRepresentationSelector;
+import com.sonymobile.android.media.internal.streaming.common.PacketBufferBudget;
 import com.sonymobile.android.media.internal.streaming.common.PacketSource;
+import com.sonymobile.android.media.internal.streaming.common.SegmentCache;
 import com.sonymobile.android.media.internal.streaming.smoothstreaming.ManifestParser.QualityLevel;
+import com.sonymobile.android.media.internal.streaming.smoothstreaming.ManifestParser.VideoQualityLevel;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.Map;
 import java.util.Vector;
@@ -68,6 +75,10 @@ public final class SmoothStreamingSession {
 
     private static final int MSG_SELECT_TRACK = 6;
 
+    private static final int MSG_SET_REPRESENTATION_CONSTRAINTS = 7;
+
+    private static final int MSG_SEEK_IN_BUFFER = 8;
+
     public static final int FETCHER_EOS = 0;
 
     public static final int FETCHER_ERROR = 1;
@@ -97,8 +108,13 @@ public final class SmoothStreamingSession {
 
     private BandwidthEstimator mBandwidthEstimator;
 
+    private final SegmentCache mSegmentCache = new SegmentCache(
+            Configuration.SEGMENT_CACHE_MEMORY_SIZE, Configuration.SEGMENT_CACHE_DISK_SIZE);
+
     private RepresentationSelector mRepresentationSelector;
 
+    private RepresentationConstraints mRepresentationConstraints;
+
     private long mLastDequeuedTimeUs;
 
     private final MetaDataImpl mMetaData = new MetaDataImpl();
@@ -111,6 +127,8 @@ public final class SmoothStreamingSession {
 
     private byte[] mDefaultKID;
 
+    private QoEMetricsCollector mQoEMetrics;
+
     public SmoothStreamingSession(Handler callbackHandler, BandwidthEstimator estimator,
                                   RepresentationSelector selector, int maxBufferSize) {
 
@@ -126,6 +144,11 @@ public final class SmoothStreamingSession {
         mPacketSources.put(TrackType.VIDEO, new PacketSource());
         mPacketSources.put(TrackType.SUBTITLE, new PacketSource());
 
+        for (PacketSource packetSource : mPacketSources.values()) {
+            PacketBufferBudget.getInstance().register(packetSource);
+        }
+        PacketBufferBudget.getInstance().register(mSegmentCache);
+
         mBandwidthEstimator = estimator;
         mRepresentationSelector = selector;
 
@@ -140,10 +163,22 @@ public final class SmoothStreamingSession {
         mBandwidthEstimator = estimator;
     }
 
+    public SegmentCache getSegmentCache() {
+        return mSegmentCache;
+    }
+
     public BandwidthEstimator getBandwidthEstimator() {
         return mBandwidthEstimator;
     }
 
+    public void setQoEMetricsCollector(QoEMetricsCollector collector) {
+        mQoEMetrics = collector;
+    }
+
+    public QoEMetricsCollector getQoEMetricsCollector() {
+        return mQoEMetrics;
+    }
+
     public void setRepresentationSelector(RepresentationSelector selector) {
         mRepresentationSelector = selector;
     }
@@ -293,6 +328,9 @@ public final class SmoothStreamingSession {
                 case MSG_SEEK:
                     thiz.onSeek((Long)msg.obj);
                     break;
+                case MSG_SEEK_IN_BUFFER:
+                    thiz.mLastDequeuedTimeUs = (Long)msg.obj;
+                    break;
                 case MSG_DISCONNECT:
                     if (thiz.mEventThread != null) {
                         for (Map.Entry<TrackType, QualityLevelFetcher> item : thiz.mFetchers
@@ -300,12 +338,20 @@ public final class SmoothStreamingSession {
                             QualityLevelFetcher fetcher = item.getValue();
                             fetcher.release();
                         }
+                        PacketBufferBudget.getInstance().unregister(thiz.mSegmentCache);
+                        thiz.mSegmentCache.clear();
+                        for (PacketSource packetSource : thiz.mPacketSources.values()) {
+                            PacketBufferBudget.getInstance().unregister(packetSource);
+                        }
                         thiz.mEventThread.quitSafely();
                     }
                     break;
                 case MSG_SELECT_TRACK:
                     thiz.onSelectTrack(msg.arg1, (TrackType)msg.obj);
                     break;
+                case MSG_SET_REPRESENTATION_CONSTRAINTS:
+                    thiz.onSetRepresentationConstraints((RepresentationConstraints)msg.obj);
+                    break;
                 default:
                     if (LOGS_ENABLED) Log.w(TAG, "Unhandled message: " + msg.what);
                     break;
@@ -331,6 +377,7 @@ public final class SmoothStreamingSession {
 
             if (urlConnection.getResponseCode() / 100 == 2) {
                 mManifestParser = new ManifestParser(uri);
+                mManifestParser.setRepresentationConstraints(mRepresentationConstraints);
 
                 if (mBandwidthEstimator == null) {
                     mBandwidthEstimator = new DefaultBandwidthEstimator();
@@ -369,6 +416,7 @@ public final class SmoothStreamingSession {
                     TrackInfo[] trackInfo = mManifestParser.getTrackInfo();
                     mRepresentationSelector.selectDefaultRepresentations(selectedTracks, trackInfo,
                             selectedQualityLevels);
+                    mManifestParser.constrainQualityLevels(selectedQualityLevels);
                     mManifestParser.updateQualityLevels(selectedQualityLevels);
                     changeConfiguration(0);
                 } else {
@@ -399,8 +447,7 @@ public final class SmoothStreamingSession {
 
         int[] selectedQualityLevels = mManifestParser.getSelectedQualityLevels();
         int[] selectedTracks = mManifestParser.getSelectedTracks();
-        mRepresentationSelector.selectRepresentations(mBandwidthEstimator.getEstimatedBandwidth(),
-                selectedTracks, selectedQualityLevels);
+        selectRepresentations(selectedTracks, selectedQualityLevels);
         mManifestParser.updateQualityLevel(type, selectedQualityLevels[type.ordinal()]);
 
         QualityLevel qualityLevel = mManifestParser.getQualityLevel(type);
@@ -423,7 +470,7 @@ public final class SmoothStreamingSession {
         for (Map.Entry<TrackType, QualityLevelFetcher> item : mFetchers.entrySet()) {
             QualityLevelFetcher fetcher = item.getValue();
             TrackType type = item.getKey();
-            int maxBufferSize = mMaxBufferSizes[type.ordinal()];
+            int maxBufferSize = getBufferSizeLimit(type);
 
             if (selectedFetcher == null) {
                 if (!fetcher.isBufferFull(MAX_BUFFER_DURATION_US, maxBufferSize)) {
@@ -446,6 +493,20 @@ public final class SmoothStreamingSession {
         }
     }
 
+    /**
+     * Returns the number of bytes a track may buffer, the smaller of its share
+     * of the max buffer size and of the PacketBufferBudget, or 0 for no
+     * limit.
+     */
+    private int getBufferSizeLimit(TrackType type) {
+        int maxBufferSize = mMaxBufferSizes[type.ordinal()];
+        long budgetSize = mPacketSources.get(type).getMaxBufferSize();
+        if (budgetSize > 0 && (maxBufferSize <= 0 || budgetSize < maxBufferSize)) {
+            maxBufferSize = (int)Math.min(budgetSize, Integer.MAX_VALUE);
+        }
+        return maxBufferSize;
+    }
+
     private void changeConfiguration(long timeUs) {
         mEventHandler.removeMessages(MSG_DOWNLOAD_NEXT);
 
@@ -503,6 +564,13 @@ public final class SmoothStreamingSession {
             addFetcher(TrackType.SUBTITLE, subtitleQualityLevel, timeUs);
         }
 
+        mPacketSources.get(TrackType.VIDEO).setBitrate(
+                videoQualityLevel != null ? videoQualityLevel.bitrate : 0);
+        mPacketSources.get(TrackType.AUDIO).setBitrate(
+                audioQualityLevel != null ? audioQualityLevel.bitrate : 0);
+        mPacketSources.get(TrackType.SUBTITLE).setBitrate(
+                subtitleQualityLevel != null ? subtitleQualityLevel.bitrate : 0);
+
         if (mMaxBufferSize > 0) {
             // Recalculate buffer allocation between streams
             mMaxBufferSizes[TrackType.VIDEO.ordinal()] = 0;
@@ -563,10 +631,7 @@ public final class SmoothStreamingSession {
 
         int[] selectedRepresentations = mManifestParser.getSelectedQualityLevels();
         int[] selectedTracks = mManifestParser.getSelectedTracks();
-        mRepresentationSelector.selectRepresentations(
-                mBandwidthEstimator.getEstimatedBandwidth(),
-                selectedTracks,
-                selectedRepresentations);
+        selectRepresentations(selectedTracks, selectedRepresentations);
         mManifestParser.updateQualityLevels(selectedRepresentations);
 
         changeConfiguration(timeUs);
@@ -582,6 +647,13 @@ public final class SmoothStreamingSession {
             trackIndex = mManifestParser.getSelectedTrackIndex(type);
         }
 
+        if (qualityLevel instanceof VideoQualityLevel && mQoEMetrics != null) {
+            VideoQualityLevel videoQualityLevel = (VideoQualityLevel)qualityLevel;
+            // Quality levels are identified by their bitrate
+            mQoEMetrics.onRepresentationSwitch(String.valueOf(qualityLevel.bitrate),
+                    qualityLevel.bitrate, videoQualityLevel.width, videoQualityLevel.height);
+        }
+
         mFetchers.put(type,
                 new QualityLevelFetcher(this, qualityLevel, mPacketSources.get(type), type,
                         nextTimeUs, trackIndex, mDefaultKID));
@@ -595,9 +667,7 @@ public final class SmoothStreamingSession {
         int[] selectedTracks = mManifestParser.getSelectedTracks();
         int[] selectedRepresentations = mManifestParser.getSelectedQualityLevels();
 
-        if (mRepresentationSelector.selectRepresentations(
-                mBandwidthEstimator.getEstimatedBandwidth(), selectedTracks,
-                selectedRepresentations)) {
+        if (selectRepresentations(selectedTracks, selectedRepresentations)) {
             mManifestParser.updateQualityLevels(selectedRepresentations);
             mEventHandler.obtainMessage(MSG_CHANGE_CONFIGURATION, -1, 0).sendToTarget();
             return true;
@@ -605,6 +675,38 @@ public final class SmoothStreamingSession {
         return false;
     }
 
+    private boolean selectRepresentations(int[] selectedTracks, int[] selectedRepresentations) {
+        if (mRepresentationSelector instanceof BufferLevelRepresentationSelector) {
+            long[] bufferDurationsUs = new long[TrackType.values().length];
+            for (TrackType type : mPacketSources.keySet()) {
+                bufferDurationsUs[type.ordinal()] = mPacketSources.get(type).getBufferDuration();
+            }
+            ((BufferLevelRepresentationSelector)mRepresentationSelector)
+                    .onBufferLevelsChanged(bufferDurationsUs);
+        }
+
+        int[] previousRepresentations = selectedRepresentations.clone();
+        mRepresentationSelector.selectRepresentations(
+                mBandwidthEstimator.getEstimatedBandwidth(), selectedTracks,
+                selectedRepresentations);
+        mManifestParser.constrainQualityLevels(selectedRepresentations);
+
+        return !Arrays.equals(previousRepresentations, selectedRepresentations);
+    }
+
+    private void onSetRepresentationConstraints(RepresentationConstraints constraints) {
+        mRepresentationConstraints = constraints;
+
+        if (mManifestParser != null) {
+            mManifestParser.setRepresentationConstraints(constraints);
+
+            if (!mFetchers.isEmpty()) {
+                // Switch away from quality levels that are no longer allowed
+                checkBandwidth();
+            }
+        }
+    }
+
     public long getDurationUs() {
         return mManifestParser.getDurationUs();
     }
@@ -614,6 +716,20 @@ public final class SmoothStreamingSession {
     }
 
     public void seekTo(long timeUs) {
+        // A pending seek clears the buffers
+        if (!mEventHandler.hasMessages(MSG_SEEK)) {
+            long seekTimeUs = PacketSource.seekInBuffer(timeUs,
+                    mPacketSources.get(TrackType.VIDEO),
+                    mManifestParser.getSelectedTrackIndex(TrackType.VIDEO) > -1,
+                    mPacketSources.get(TrackType.AUDIO),
+                    mManifestParser.getSelectedTrackIndex(TrackType.AUDIO) > -1,
+                    mPacketSources.get(TrackType.SUBTITLE));
+            if (seekTimeUs >= 0) {
+                if (LOGS_ENABLED) Log.i(TAG, "Seek to " + timeUs + " in buffer at " + seekTimeUs);
+                mEventHandler.obtainMessage(MSG_SEEK_IN_BUFFER, seekTimeUs).sendToTarget();
+                return;
+            }
+        }
 
         mPacketSources.get(TrackType.AUDIO).setClosed(true);
         mPacketSources.get(TrackType.VIDEO).setClosed(true);
@@ -645,6 +761,11 @@ public final class SmoothStreamingSession {
         mEventHandler.obtainMessage(MSG_DISCONNECT).sendToTarget();
     }
 
+    public void setRepresentationConstraints(RepresentationConstraints constraints) {
+        mEventHandler.obtainMessage(MSG_SET_REPRESENTATION_CONSTRAINTS, constraints)
+                .sendToTarget();
+    }
+
     public void selectRepresentations(int trackIndex, Vector<Integer> representations) {
         mManifestParser.selectRepresentations(trackIndex, representations);
     }
@@ -24,6 +24,7 @@ import android.util.Log;
 import com.sonymobile.android.media.BandwidthEstimator;
 import com.sonymobile.android.media.MediaPlayer.Statistics;
 import com.sonymobile.android.media.MetaData;
+import com.sonymobile.android.media.RepresentationConstraints;
 import com.sonymobile.android.media.RepresentationSelector;
 import com.sonymobile.android.media.TrackInfo;
 import com.sonymobile.android.media.TrackInfo.TrackType;
@@ -67,6 +68,8 @@ public class SmoothStreamingSource extends MediaSource {
 
     private RepresentationSelector mRepresentationSelector = null;
 
+    private RepresentationConstraints mRepresentationConstraints = null;
+
     private final int mMaxBufferSize;
 
     public SmoothStreamingSource(String url, Handler notify, int maxBufferSize) {
@@ -90,6 +93,8 @@ public class SmoothStreamingSource extends MediaSource {
 
         mSession = new SmoothStreamingSession(mEventHandler, mBandwidthEstimator,
                 mRepresentationSelector, mMaxBufferSize);
+        mSession.setRepresentationConstraints(mRepresentationConstraints);
+        mSession.setQoEMetricsCollector(getQoEMetricsCollector());
         mSession.connect(mUrl, mUrlConnection);
     }
 
@@ -204,6 +209,15 @@ public class SmoothStreamingSource extends MediaSource {
         }
     }
 
+    @Override
+    public void setRepresentationConstraints(RepresentationConstraints constraints) {
+        if (mSession != null) {
+            mSession.setRepresentationConstraints(constraints);
+        } else {
+            mRepresentationConstraints = constraints;
+        }
+    }
+
     @Override
     public void selectRepresentations(int trackIndex, Vector<Integer> representations) {
         mSession.selectRepresentations(trackIndex, representations);
@@ -214,6 +228,11 @@ public class SmoothStreamingSource extends MediaSource {
         return null;
     }
 
+    @Override
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        // Not supported
+    }
+
     @Override
     public boolean isStreaming() {
         return true;